@@ -1,15 +1,21 @@
 package cn.rongcloud;
 
 import cn.rongcloud.common.JwtTokenHelper;
+import cn.rongcloud.common.SplicedJsonHttpMessageConverter;
 import cn.rongcloud.config.JwtProperties;
+import cn.rongcloud.config.WebProperties;
 import cn.rongcloud.filter.GlobalExceptionHandlerAdvice;
 import cn.rongcloud.filter.JwtFilter;
+import cn.rongcloud.utils.VirtualThreads;
 import com.alibaba.fastjson.serializer.SerializerFeature;
 import com.alibaba.fastjson.support.config.FastJsonConfig;
 import com.alibaba.fastjson.support.spring.FastJsonHttpMessageConverter;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.coyote.AbstractProtocol;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
 import org.springframework.boot.web.servlet.FilterRegistrationBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -25,8 +31,11 @@ import org.springframework.web.filter.CorsFilter;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Created by weiqinxiao on 2019/2/25.
@@ -34,9 +43,15 @@ import java.util.List;
 @Slf4j
 @Configuration
 public class SealClassConfiguration {
+    //Accept this for responses without indentation, whatever cn.rongcloud.web.prettyJson says
+    public static final MediaType APPLICATION_COMPACT_JSON = MediaType.valueOf("application/vnd.sealclass.compact+json");
+
     @Autowired
     private JwtProperties jwtProperties;
 
+    @Autowired
+    private WebProperties webProperties;
+
     @Bean
     public <K, V> RedisTemplate<K, V> redisTemplate(RedisConnectionFactory redisConnectionFactory) {
         log.info("config redisTemplate");
@@ -79,6 +94,13 @@ public class SealClassConfiguration {
                         iterator.remove();
                     }
                 }
+                //actuator responses are written by jackson, as they expect, in their own media type or as json
+                converters.add(new MappingJackson2HttpMessageConverter() {
+                    @Override
+                    public boolean canWrite(Class<?> clazz, MediaType mediaType) {
+                        return clazz.getName().startsWith("org.springframework.boot.actuate.") && super.canWrite(clazz, mediaType);
+                    }
+                });
                 FastJsonHttpMessageConverter converter = new FastJsonHttpMessageConverter();
                 List<MediaType> supportedMediaTypes = new ArrayList<>();
                 supportedMediaTypes.add(MediaType.APPLICATION_JSON);
@@ -87,13 +109,46 @@ public class SealClassConfiguration {
                 supportedMediaTypes.add(MediaType.MULTIPART_FORM_DATA);
                 converter.setSupportedMediaTypes(supportedMediaTypes);
                 FastJsonConfig fastJsonConfig = new FastJsonConfig();
-                fastJsonConfig.setSerializerFeatures(SerializerFeature.WriteMapNullValue, SerializerFeature.PrettyFormat);
+                if (webProperties.isPrettyJson()) {
+                    fastJsonConfig.setSerializerFeatures(SerializerFeature.WriteMapNullValue, SerializerFeature.PrettyFormat);
+                } else {
+                    fastJsonConfig.setSerializerFeatures(SerializerFeature.WriteMapNullValue);
+                }
                 converter.setFastJsonConfig(fastJsonConfig);
                 converters.add(converter);
+                //after the default one, so only clients asking for it get it
+                FastJsonHttpMessageConverter compactConverter = new FastJsonHttpMessageConverter();
+                compactConverter.setSupportedMediaTypes(Collections.singletonList(APPLICATION_COMPACT_JSON));
+                FastJsonConfig compactConfig = new FastJsonConfig();
+                compactConfig.setSerializerFeatures(SerializerFeature.WriteMapNullValue);
+                compactConverter.setFastJsonConfig(compactConfig);
+                converters.add(compactConverter);
+                //pre-encoded responses are written as they are, indented as the others are
+                SplicedJsonHttpMessageConverter splicedConverter = new SplicedJsonHttpMessageConverter(MediaType.APPLICATION_JSON_UTF8, MediaType.APPLICATION_JSON, APPLICATION_COMPACT_JSON);
+                if (webProperties.isPrettyJson()) {
+                    splicedConverter.setPrettyMediaTypes(Arrays.asList(MediaType.APPLICATION_JSON_UTF8, MediaType.APPLICATION_JSON));
+                }
+                converters.add(0, splicedConverter);
+                log.info("config message converters: prettyJson={}, compact={}", webProperties.isPrettyJson(), APPLICATION_COMPACT_JSON);
             }
         };
     }
 
+    @Bean
+    @ConditionalOnProperty(prefix = "cn.rongcloud.web", value = "virtualThreads", havingValue = "true")
+    public WebServerFactoryCustomizer<TomcatServletWebServerFactory> virtualThreadCustomizer() {
+        return factory -> factory.addConnectorCustomizers(connector -> {
+            ExecutorService executor = VirtualThreads.newThreadPerTaskExecutor("http-vt-");
+            if (executor == null) {
+                log.error("virtual threads need JDK 21+, requests stay on the tomcat thread pool: java.version={}", System.getProperty("java.version"));
+                return;
+            }
+            //a virtual thread per request, max-connections is then the only bound of in-flight requests
+            ((AbstractProtocol<?>) connector.getProtocolHandler()).setExecutor(executor);
+            log.info("config tomcat requests on virtual threads, virtualThreads={}", webProperties.isVirtualThreads());
+        });
+    }
+
     @Bean
     @ConditionalOnProperty(prefix = "cn.rongcloud.web", value = "enableCors", havingValue = "true")
     public FilterRegistrationBean corsFilter() {
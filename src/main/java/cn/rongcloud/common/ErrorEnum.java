@@ -36,6 +36,8 @@ public enum ErrorEnum {
     ERR_TEACHER_EXIST_IN_ROOM(32, "Teacher exist in room"),
     ERR_DOWNGRADE_ROLE(33, "Can't downgrade role"),
     ERR_CHANGE_ROLE(34, "Only change student to teacher"),
+    ERR_TICKET_OVER_LIMIT(35, "Too many pending tickets"),
+    ERR_UPDATE_CONFLICT(36, "Room changed concurrently, please retry"),
 
     ;
 
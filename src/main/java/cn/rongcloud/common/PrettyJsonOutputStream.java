@@ -0,0 +1,77 @@
+package cn.rongcloud.common;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Indents the compact JSON written through it as fastjson's PrettyFormat does: a tab per
+ * level, a line per value, empty objects and arrays on one line. Bytes are only passed on or
+ * added, the JSON is not parsed.
+ */
+class PrettyJsonOutputStream extends FilterOutputStream {
+    private int depth;
+    private boolean inString;
+    private boolean escaped;
+    //a brace or bracket held back until the next byte tells whether it is empty
+    private int pendingOpen = -1;
+
+    PrettyJsonOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (pendingOpen >= 0) {
+            int open = pendingOpen;
+            pendingOpen = -1;
+            out.write(open);
+            if (b == (open == '{' ? '}' : ']')) {
+                out.write(b);
+                return;
+            }
+            depth++;
+            newLine();
+        }
+        if (inString) {
+            out.write(b);
+            if (escaped) {
+                escaped = false;
+            } else if (b == '\\') {
+                escaped = true;
+            } else if (b == '"') {
+                inString = false;
+            }
+            return;
+        }
+        switch (b) {
+            case '"':
+                inString = true;
+                out.write(b);
+                break;
+            case '{':
+            case '[':
+                pendingOpen = b;
+                break;
+            case '}':
+            case ']':
+                depth--;
+                newLine();
+                out.write(b);
+                break;
+            case ',':
+                out.write(b);
+                newLine();
+                break;
+            default:
+                out.write(b);
+        }
+    }
+
+    private void newLine() throws IOException {
+        out.write('\n');
+        for (int i = 0; i < depth; i++) {
+            out.write('\t');
+        }
+    }
+}
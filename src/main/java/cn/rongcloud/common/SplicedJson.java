@@ -0,0 +1,69 @@
+package cn.rongcloud.common;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.serializer.SerializerFeature;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A successful {@link BaseResponse} whose result is given as pre-encoded UTF-8 JSON parts,
+ * written one after another to the response stream without being copied or serialized again.
+ */
+public class SplicedJson {
+    private static final byte[] HEAD;
+    private static final byte[] TAIL;
+
+    static {
+        //the envelope around the result, as the message converter writes it
+        String marker = "__result__";
+        String envelope = JSON.toJSONString(new BaseResponse<>(marker), SerializerFeature.WriteMapNullValue);
+        int index = envelope.indexOf("\"" + marker + "\"");
+        HEAD = envelope.substring(0, index).getBytes(StandardCharsets.UTF_8);
+        TAIL = envelope.substring(index + marker.length() + 2).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private final List<byte[]> parts;
+
+    private SplicedJson(List<byte[]> parts) {
+        this.parts = parts;
+    }
+
+    /**
+     * @param resultParts parts making up the JSON of the result when joined
+     */
+    public static SplicedJson response(byte[]... resultParts) {
+        List<byte[]> parts = new ArrayList<>(resultParts.length + 2);
+        parts.add(HEAD);
+        parts.addAll(Arrays.asList(resultParts));
+        parts.add(TAIL);
+        return new SplicedJson(parts);
+    }
+
+    public long length() {
+        long length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        return length;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        for (byte[] part : parts) {
+            out.write(part);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (byte[] part : parts) {
+            sb.append(new String(part, StandardCharsets.UTF_8));
+        }
+        return sb.toString();
+    }
+}
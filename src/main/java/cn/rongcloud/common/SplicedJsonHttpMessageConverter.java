@@ -0,0 +1,73 @@
+package cn.rongcloud.common;
+
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes a {@link SplicedJson} straight to the response body, responses only. The parts are
+ * compact JSON already, indented on the way out for the pretty media types, as the message
+ * converter of the other responses does.
+ */
+public class SplicedJsonHttpMessageConverter extends AbstractHttpMessageConverter<SplicedJson> {
+    private List<MediaType> prettyMediaTypes = new ArrayList<>();
+
+    public SplicedJsonHttpMessageConverter(MediaType... supportedMediaTypes) {
+        super(supportedMediaTypes);
+    }
+
+    public void setPrettyMediaTypes(List<MediaType> prettyMediaTypes) {
+        this.prettyMediaTypes = prettyMediaTypes;
+    }
+
+    private boolean isPretty(MediaType contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        for (MediaType mediaType : prettyMediaTypes) {
+            if (mediaType.includes(contentType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return SplicedJson.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    public boolean canRead(Class<?> clazz, MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    protected SplicedJson readInternal(Class<? extends SplicedJson> clazz, HttpInputMessage inputMessage) {
+        throw new HttpMessageNotReadableException("SplicedJson is write only", inputMessage);
+    }
+
+    @Override
+    protected Long getContentLength(SplicedJson json, MediaType contentType) {
+        return isPretty(contentType) ? null : json.length();
+    }
+
+    @Override
+    protected void writeInternal(SplicedJson json, HttpOutputMessage outputMessage) throws IOException {
+        if (!isPretty(outputMessage.getHeaders().getContentType())) {
+            json.writeTo(outputMessage.getBody());
+            return;
+        }
+        OutputStream out = new PrettyJsonOutputStream(new BufferedOutputStream(outputMessage.getBody(), 8192));
+        json.writeTo(out);
+        out.flush();
+    }
+}
@@ -0,0 +1,31 @@
+package cn.rongcloud.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "cn.rongcloud.http")
+public class HttpProperties {
+    private int maxTotal = 200;
+    private int maxPerRoute = 50;
+    private long idleTimeout = 30000;
+    private int connectTimeout = 5000;
+    private int socketTimeout = 10000;
+    private int sslSessionCacheSize = 100;
+    private int sslSessionTimeout = 3600;
+    //non-blocking client: reactor threads doing socket i/o, threads completing the futures
+    private int ioThreads = Runtime.getRuntime().availableProcessors();
+    private int callbackThreads = 8;
+    //read timeout by api uri, falls back to socketTimeout
+    private Map<String, Integer> operationTimeout = new HashMap<>();
+
+    public int getSocketTimeout(String uri) {
+        Integer timeout = operationTimeout.get(uri);
+        return timeout == null ? socketTimeout : timeout;
+    }
+}
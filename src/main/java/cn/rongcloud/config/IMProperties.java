@@ -14,4 +14,23 @@ public class IMProperties {
     private String appKey;
     private String secret;
     private String host;
+    //MessageDispatcher: publishing threads, retries per message, the base backoff in ms and max queued messages
+    private int dispatchThreads = 4;
+    private int dispatchRetries = 3;
+    private long dispatchRetryInterval = 500;
+    private int dispatchQueueSize = 10000;
+    //PublishGovernor: cluster-wide publish tokens per second, bucket size, and how long a publish may wait for a token
+    private int publishRate = 20;
+    private int publishBurst = 20;
+    private long publishMaxWait = 5000;
+    //IMTokenCache: ms a token is reused, max cached users
+    private long tokenCacheTtl = 3600000;
+    private int tokenCacheSize = 10000;
+    //GroupBatcher: ms joins or quits of a group are gathered, max users per call
+    private long groupBatchWindow = 20;
+    private int groupBatchSize = 100;
+    //MemberDigest: rooms from this many members get member changes in digests, ms between digests, max changes per digest, 0 threshold to turn off
+    private int memberDigestThreshold = 50;
+    private long memberDigestInterval = 1000;
+    private int memberDigestMaxChanges = 200;
 }
@@ -15,4 +15,45 @@ public class RoomProperties {
     private long taskTtl;
     private long roomTtl;
     private long userIMOfflineKickTtl;
+    //online status webhook entries: ms they wait before being applied, max users per member lookup
+    private long onlineStatusInterval = 200;
+    private int onlineStatusBatch = 500;
+    //ms a changed online status must last before it is applied, flaps within the window before offline waits longer
+    private long presenceOfflineDwell = 3000;
+    private long presenceOnlineDwell = 1000;
+    private long presenceFlapWindow = 60000;
+    private int presenceFlapThreshold = 3;
+    private long presenceFlappingOfflineDwell = 15000;
+    //workers running timer callbacks: room expiry, ticket expiry, offline kick
+    private int scheduleThreads = 4;
+    //expired room sweep: interval in ms, max rooms queued per sweep
+    private long roomSweepInterval = 60000;
+    private int roomSweepBatch = 100;
+    //redis delay queues and apply tickets: poll interval in ms, max entries claimed per call, ms before a claimed entry is due again
+    private long delayPollInterval = 1000;
+    private int delayPollBatch = 100;
+    private long delayLease = 60000;
+    //rooms in memory, for a single node deployment only
+    private boolean cacheEnabled = false;
+    private int persistThreads = 4;
+    //workers running room mutations, mutations of one room run in order
+    private int mailboxThreads = 16;
+    //workers running the blocking reads and writes of a join beside its IM calls, and the whiteboard destroys of a leave
+    private int joinThreads = 16;
+    //keep the audience in redis without member rows and out of member lists, max members per audience page
+    private boolean largeAudience = false;
+    private int audiencePageSize = 500;
+    //member changes kept per room for /room/members?sinceVersion, max members per page of /room/members?count
+    private int memberChangeLogSize = 256;
+    private int memberPageSize = 200;
+    //rooms whose encoded members and whiteboards are kept for member lists and join responses
+    private int snapshotCacheSize = 1024;
+    //times a room change conflicting with a change of another node is read and run again
+    private int versionRetries = 3;
+    //keep apply tickets in this node only instead of redis, for a single node deployment
+    private boolean ticketLocal = false;
+    //pending apply tickets: wheel tick in ms, buckets per revolution, max tickets held
+    private long ticketTickMs = 100;
+    private int ticketWheelSize = 512;
+    private int maxTickets = 100000;
 }
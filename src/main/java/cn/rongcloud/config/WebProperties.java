@@ -0,0 +1,16 @@
+package cn.rongcloud.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "cn.rongcloud.web")
+public class WebProperties {
+    private boolean enableCors;
+    //run requests and timer callbacks on virtual threads, needs JDK 21+
+    private boolean virtualThreads = false;
+    //indent JSON responses, clients accepting application/vnd.sealclass.compact+json get them without either way
+    private boolean prettyJson = true;
+}
@@ -4,13 +4,16 @@ import cn.rongcloud.common.ApiException;
 import cn.rongcloud.common.BaseResponse;
 import cn.rongcloud.common.ErrorEnum;
 import cn.rongcloud.common.JwtUser;
+import cn.rongcloud.common.SplicedJson;
 import cn.rongcloud.filter.JwtFilter;
 import cn.rongcloud.pojo.*;
+import cn.rongcloud.room.RoomSnapshot;
 import cn.rongcloud.service.RoomService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.*;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Created by weiqinxiao on 2019/2/25.
@@ -22,19 +25,18 @@ public class RoomController {
     RoomService roomService;
 
     @RequestMapping(value = "/join", method = RequestMethod.POST)
-    public BaseResponse<RoomResult> joinRoom(@RequestBody ReqUserData data,
-                                             @RequestAttribute(value = JwtFilter.JWT_AUTH_DATA, required = false) JwtUser jwtUser)
+    public CompletableFuture<SplicedJson> joinRoom(@RequestBody ReqUserData data,
+                                                   @RequestAttribute(value = JwtFilter.JWT_AUTH_DATA, required = false) JwtUser jwtUser)
             throws ApiException, Exception {
-        RoomResult roomResult = roomService.joinRoom(data.getUserName(), data.getRoomId(), data.isAudience(), data.isDisableCamera(), jwtUser);
-        return new BaseResponse<>(roomResult);
+        return roomService.joinRoom(data.getUserName(), data.getRoomId(), data.isAudience(), data.isDisableCamera(), jwtUser)
+                .thenApply(RoomResult::toJson);
     }
 
     @RequestMapping(value = "/leave", method = RequestMethod.POST)
-    public BaseResponse<Boolean> leaveRoom(@RequestBody ReqUserData data,
-                                           @RequestAttribute(value = JwtFilter.JWT_AUTH_DATA, required = false) JwtUser jwtUser)
+    public CompletableFuture<BaseResponse<Boolean>> leaveRoom(@RequestBody ReqUserData data,
+                                                             @RequestAttribute(value = JwtFilter.JWT_AUTH_DATA, required = false) JwtUser jwtUser)
             throws ApiException, Exception {
-        boolean result = roomService.leaveRoom(jwtUser, data.getRoomId());
-        return new BaseResponse<>(result);
+        return roomService.leaveRoom(jwtUser, data.getRoomId()).thenApply(BaseResponse::new);
     }
 
     @RequestMapping(value = "/downgrade", method = RequestMethod.POST)
@@ -46,11 +48,10 @@ public class RoomController {
     }
 
     @RequestMapping(value = "/kick", method = RequestMethod.POST)
-    public BaseResponse<Boolean> kickMember(@RequestBody ReqUserData data,
-                                            @RequestAttribute(value = JwtFilter.JWT_AUTH_DATA, required = false) JwtUser jwtUser)
+    public CompletableFuture<BaseResponse<Boolean>> kickMember(@RequestBody ReqUserData data,
+                                                              @RequestAttribute(value = JwtFilter.JWT_AUTH_DATA, required = false) JwtUser jwtUser)
             throws ApiException, Exception {
-        boolean result = roomService.kickMember(data.getRoomId(), data.getUserId(), jwtUser);
-        return new BaseResponse<>(result);
+        return roomService.kickMember(data.getRoomId(), data.getUserId(), jwtUser).thenApply(BaseResponse::new);
     }
 
     //only teacher
@@ -144,11 +145,48 @@ public class RoomController {
     }
 
     @RequestMapping(value = "/members", method = RequestMethod.GET)
-    public BaseResponse<List<RoomResult.MemberResult>> getMembers(@RequestParam String roomId,
-                                                                  @RequestAttribute(value = JwtFilter.JWT_AUTH_DATA, required = false) JwtUser jwtUser)
+    public SplicedJson getMembers(@RequestParam String roomId,
+                                  @RequestAttribute(value = JwtFilter.JWT_AUTH_DATA, required = false) JwtUser jwtUser)
             throws ApiException, Exception {
-        List<RoomResult.MemberResult> whiteboards = roomService.getMembers(roomId, jwtUser);
-        return new BaseResponse<>(whiteboards);
+        RoomSnapshot snapshot = roomService.getRoomSnapshot(roomId, jwtUser);
+        return SplicedJson.response(snapshot.getMembers());
+    }
+
+    @RequestMapping(value = "/members", method = RequestMethod.GET, params = "sinceVersion")
+    public BaseResponse<RoomResult.MemberDeltaResult> getMemberChanges(@RequestParam String roomId,
+                                                                       @RequestParam long sinceVersion,
+                                                                       @RequestAttribute(value = JwtFilter.JWT_AUTH_DATA, required = false) JwtUser jwtUser)
+            throws ApiException, Exception {
+        RoomResult.MemberDeltaResult result = roomService.getMemberChanges(roomId, sinceVersion, jwtUser);
+        return new BaseResponse<>(result);
+    }
+
+    @RequestMapping(value = "/members", method = RequestMethod.GET, params = "count")
+    public BaseResponse<RoomResult.MemberPageResult> getMembersPage(@RequestParam String roomId,
+                                                                    @RequestParam(value = "cursor", required = false) String cursor,
+                                                                    @RequestParam int count,
+                                                                    @RequestAttribute(value = JwtFilter.JWT_AUTH_DATA, required = false) JwtUser jwtUser)
+            throws ApiException, Exception {
+        RoomResult.MemberPageResult result = roomService.getMembersPage(roomId, cursor, count, jwtUser);
+        return new BaseResponse<>(result);
+    }
+
+    @RequestMapping(value = "/audience", method = RequestMethod.GET)
+    public BaseResponse<RoomResult.AudienceResult> getAudience(@RequestParam String roomId,
+                                                               @RequestParam(value = "offset", defaultValue = "0") int offset,
+                                                               @RequestParam(value = "count", defaultValue = "100") int count,
+                                                               @RequestAttribute(value = JwtFilter.JWT_AUTH_DATA, required = false) JwtUser jwtUser)
+            throws ApiException, Exception {
+        RoomResult.AudienceResult result = roomService.getAudience(roomId, offset, count, jwtUser);
+        return new BaseResponse<>(result);
+    }
+
+    @RequestMapping(value = "/presence", method = RequestMethod.GET)
+    public BaseResponse<RoomResult.PresenceResult> getPresence(@RequestParam String roomId,
+                                                               @RequestAttribute(value = JwtFilter.JWT_AUTH_DATA, required = false) JwtUser jwtUser)
+            throws ApiException, Exception {
+        RoomResult.PresenceResult result = roomService.getPresence(roomId, jwtUser);
+        return new BaseResponse<>(result);
     }
 
     @RequestMapping(value = "/speech/apply", method = RequestMethod.POST)
@@ -9,6 +9,8 @@ import cn.rongcloud.service.UserService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Created by weiqinxiao on 2019/2/25.
  */
@@ -20,12 +22,13 @@ public class UserController {
     UserService userService;
 
     @RequestMapping(value = "/refresh-token", method = RequestMethod.POST)
-    public BaseResponse<String> refreshToken(@RequestBody ReqUserData reqUserData,
-                                             @RequestAttribute(value = JwtFilter.JWT_AUTH_DATA, required = false) JwtUser jwtUser)
+    public CompletableFuture<BaseResponse<String>> refreshToken(@RequestBody ReqUserData reqUserData,
+                                                                @RequestAttribute(value = JwtFilter.JWT_AUTH_DATA, required = false) JwtUser jwtUser)
             throws ApiException, Exception {
-        String token = userService.refreshToken(reqUserData.getUserId(), reqUserData.getUserId());
-        BaseResponse<String> response = new BaseResponse<>();
-        response.setData(token);
-        return response;
+        return userService.refreshToken(reqUserData.getUserId(), reqUserData.getUserId()).thenApply(token -> {
+            BaseResponse<String> response = new BaseResponse<>();
+            response.setData(token);
+            return response;
+        });
     }
 }
@@ -7,6 +7,7 @@ import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.util.Date;
 import java.util.List;
 
 /**
@@ -22,13 +23,30 @@ public interface RoomDao extends JpaRepository<Room, Long> {
 
     public boolean existsByRid(String rid);
 
+    //range scan on create_dt_idx, oldest rooms first
+    @Query(value = "select rid from t_room where create_dt<?1 order by create_dt limit ?2", nativeQuery = true)
+    public List<String> findRidByCreateDtBefore(Date deadline, int limit);
+
+    //compare-and-set on version, 0 rows updated if the room changed since version was read
+    @Transactional
+    @Modifying
+    @Query(value = "update t_room set display=?2, version=version+1 where rid=?1 and version=?3", nativeQuery = true)
+    public int updateDisplayByRidAndVersion(String rid, String display, long version);
+
+    @Transactional
+    @Modifying
+    @Query(value = "update t_room set whiteboard_name_index=?2, version=version+1 where rid=?1 and version=?3", nativeQuery = true)
+    public int updateWhiteboardNameIndexByRidAndVersion(String rid, int whiteboardNameIndex, long version);
+
+    //compare-and-set on member_version, written with every member change
     @Transactional
     @Modifying
-    @Query(value = "update t_room set display=?2 where rid=?1", nativeQuery = true)
-    public int updateDisplayByRid(String rid, String display);
+    @Query(value = "update t_room set member_version=member_version+1 where rid=?1 and member_version=?2", nativeQuery = true)
+    public int incrementMemberVersionByRidAndMemberVersion(String rid, long memberVersion);
 
+    //whiteboard changes bump the version too, as they do in memory
     @Transactional
     @Modifying
-    @Query(value = "update t_room set whiteboard_name_index=?2 where rid=?1", nativeQuery = true)
-    public int updateWhiteboardNameIndexByRid(String rid, int whiteboardNameIndex);
-}
\ No newline at end of file
+    @Query(value = "update t_room set version=version+1 where rid=?1", nativeQuery = true)
+    public int incrementVersionByRid(String rid);
+}
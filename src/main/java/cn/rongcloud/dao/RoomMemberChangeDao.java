@@ -0,0 +1,26 @@
+package cn.rongcloud.dao;
+
+import cn.rongcloud.pojo.RoomMemberChange;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.List;
+
+@Repository
+public interface RoomMemberChangeDao extends JpaRepository<RoomMemberChange, Long> {
+    //range scan on member_version_idx
+    @Query(value = "select * from t_room_member_change where rid=?1 and member_version>?2 and member_version<=?3 order by member_version", nativeQuery = true)
+    public List<RoomMemberChange> findByRidAndMemberVersionBetween(String rid, long sinceVersion, long memberVersion);
+
+    @Transactional
+    @Modifying
+    @Query(value = "delete from t_room_member_change where rid=?1 and member_version<=?2", nativeQuery = true)
+    public int deleteByRidAndMemberVersionUpTo(String rid, long memberVersion);
+
+    @Transactional
+    @Modifying
+    public int deleteByRid(String rid);
+}
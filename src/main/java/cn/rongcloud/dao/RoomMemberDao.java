@@ -7,6 +7,7 @@ import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -22,6 +23,8 @@ public interface RoomMemberDao extends JpaRepository<RoomMember, Long> {
 
     public List<RoomMember> findByUid(String uid);
 
+    public List<RoomMember> findByUidIn(Collection<String> uids);
+
     public int countByRidAndRole(String rid, int role);
 
     @Modifying
@@ -39,10 +42,11 @@ public interface RoomMemberDao extends JpaRepository<RoomMember, Long> {
     @Query(value = "delete from t_room_member where rid=?1 and uid=?2", nativeQuery = true)
     public int deleteUserByRidAndUid(String rid, String uid);
 
+    //compare-and-set on version, 0 rows updated if the member changed since version was read
     @Transactional
     @Modifying
-    @Query(value = "update t_room_member set role=?3 where rid=?1 and uid=?2", nativeQuery = true)
-    public int updateRoleByRidAndUid(String rid, String uid, int role);
+    @Query(value = "update t_room_member set role=?3, version=version+1 where rid=?1 and uid=?2 and version=?4", nativeQuery = true)
+    public int updateRoleByRidAndUidAndVersion(String rid, String uid, int role, long version);
 
     @Transactional
     @Modifying
@@ -51,13 +55,13 @@ public interface RoomMemberDao extends JpaRepository<RoomMember, Long> {
 
     @Transactional
     @Modifying
-    @Query(value = "update t_room_member set camera=?3 where rid=?1 and uid=?2", nativeQuery = true)
-    public int updateCameraByRidAndUid(String rid, String uid, boolean camera);
+    @Query(value = "update t_room_member set camera=?3, version=version+1 where rid=?1 and uid=?2 and version=?4", nativeQuery = true)
+    public int updateCameraByRidAndUidAndVersion(String rid, String uid, boolean camera, long version);
 
     @Transactional
     @Modifying
-    @Query(value = "update t_room_member set mic=?3 where rid=?1 and uid=?2", nativeQuery = true)
-    public int updateMicByRidAndUid(String rid, String uid, boolean mic);
+    @Query(value = "update t_room_member set mic=?3, version=version+1 where rid=?1 and uid=?2 and version=?4", nativeQuery = true)
+    public int updateMicByRidAndUidAndVersion(String rid, String uid, boolean mic, long version);
 
     public boolean existsByRidAndUid(String rid, String uid);
 
@@ -18,6 +18,8 @@ public interface WhiteboardDao extends JpaRepository<Whiteboard, Long> {
     public List<Whiteboard> findByRidAndCreator(String rid, String creator);
     public List<Whiteboard> findByRidAndWbid(String rid, String wbid);
 
+    @Transactional
+    @Modifying
     public int deleteByRid(String rid);
 
     @Transactional
@@ -31,6 +31,7 @@ import org.springframework.web.multipart.support.MissingServletRequestPartExcept
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.concurrent.CompletionException;
 
 @Slf4j
 @RestControllerAdvice
@@ -88,6 +89,21 @@ public class GlobalExceptionHandlerAdvice {
         return getResponseData(ex);
     }
 
+    //async endpoints fail with the CompletionException wrapping what the stage threw
+    @ResponseStatus(value = HttpStatus.OK)
+    @ExceptionHandler(CompletionException.class)
+    public BaseResponse<Object> handleCompletionException(CompletionException ex) {
+        Throwable cause = ex.getCause();
+        if (cause instanceof ApiException) {
+            return handleMiMicroAPIException((ApiException) cause);
+        } else if (cause instanceof IllegalArgumentException) {
+            return handleRequestParameterException((Exception) cause);
+        } else if (cause instanceof Exception) {
+            return handleOtherException((Exception) cause);
+        }
+        return handleOtherException(ex);
+    }
+
     private void logException(Exception ex) {
         log.error("caught exception:", ex);
     }
@@ -0,0 +1,209 @@
+package cn.rongcloud.http;
+
+import com.alibaba.fastjson.serializer.JSONSerializer;
+import com.alibaba.fastjson.serializer.SerializeConfig;
+import com.alibaba.fastjson.serializer.SerializeWriter;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * An application/x-www-form-urlencoded request body, encoded as URLEncoder does. Fields are
+ * percent-encoded into a buffer kept per thread and reused, a JSON field straight from the
+ * serializer, so no String of the JSON or of the body is made; the finished body is one copy.
+ */
+public final class FormBody {
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+    //large bodies are not kept for the next one
+    private static final int MAX_KEPT = 64 * 1024;
+    private static final ThreadLocal<Builder> BUILDERS = ThreadLocal.withInitial(Builder::new);
+    private static final ContentType FORM = ContentType.create("application/x-www-form-urlencoded");
+
+    private final byte[] bytes;
+
+    private FormBody(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    public static Builder builder() {
+        Builder builder = BUILDERS.get();
+        //a body built while another one is, gets its own buffer
+        if (builder.inUse) {
+            builder = new Builder();
+        }
+        builder.inUse = true;
+        return builder;
+    }
+
+    public int length() {
+        return bytes.length;
+    }
+
+    ByteArrayEntity toEntity() {
+        return new ByteArrayEntity(bytes, FORM);
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    public static final class Builder {
+        private byte[] buf = new byte[1024];
+        private int count;
+        private boolean inUse;
+        //first half of a pair written by the serializer, until the second comes
+        private char highSurrogate;
+        private final Writer encoder = new Writer() {
+            @Override
+            public void write(char[] chars, int off, int len) {
+                for (int i = off; i < off + len; i++) {
+                    encodeChar(chars[i]);
+                }
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        private Builder() {
+        }
+
+        public Builder add(String name, String value) {
+            name(name);
+            for (int i = 0; i < value.length(); i++) {
+                encodeChar(value.charAt(i));
+            }
+            return this;
+        }
+
+        public Builder add(String name, Object value) {
+            return add(name, String.valueOf(value));
+        }
+
+        /**
+         * Adds value as JSON, with the writers of config and the default features of {@code JSON.toJSONString}.
+         */
+        public Builder addJson(String name, Object value, SerializeConfig config) {
+            name(name);
+            SerializeWriter out = new SerializeWriter();
+            try {
+                new JSONSerializer(out, config).write(value);
+                out.writeTo(encoder);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                out.close();
+            }
+            return this;
+        }
+
+        public FormBody build() {
+            endPair();
+            FormBody body = new FormBody(Arrays.copyOf(buf, count));
+            reset();
+            return body;
+        }
+
+        /**
+         * Gives up the body being built, so the buffer is free for the next one. The caller
+         * calls it in a finally block, after {@link #build()} it does nothing.
+         */
+        public void reset() {
+            count = 0;
+            highSurrogate = 0;
+            inUse = false;
+            if (buf.length > MAX_KEPT) {
+                buf = new byte[1024];
+            }
+        }
+
+        private void name(String name) {
+            endPair();
+            if (count > 0) {
+                append('&');
+            }
+            for (int i = 0; i < name.length(); i++) {
+                encodeChar(name.charAt(i));
+            }
+            append('=');
+        }
+
+        private void encodeChar(char c) {
+            if (highSurrogate != 0 && Character.isLowSurrogate(c)) {
+                int codePoint = Character.toCodePoint(highSurrogate, c);
+                highSurrogate = 0;
+                encodeUtf8(codePoint);
+                return;
+            }
+            endPair();
+            if (Character.isHighSurrogate(c)) {
+                highSurrogate = c;
+            } else if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '.' || c == '-' || c == '*' || c == '_') {
+                append(c);
+            } else if (c == ' ') {
+                append('+');
+            } else {
+                encodeUtf8(c);
+            }
+        }
+
+        //a half without its pair is encoded as the UTF-8 encoder replaces it
+        private void endPair() {
+            if (highSurrogate != 0) {
+                highSurrogate = 0;
+                percent('?');
+            }
+        }
+
+        private void encodeUtf8(int codePoint) {
+            if (codePoint < 0x80) {
+                percent(codePoint);
+            } else if (codePoint < 0x800) {
+                percent(0xC0 | (codePoint >> 6));
+                percent(0x80 | (codePoint & 0x3F));
+            } else if (codePoint < 0x10000) {
+                if (Character.isSurrogate((char) codePoint)) {
+                    percent('?');
+                    return;
+                }
+                percent(0xE0 | (codePoint >> 12));
+                percent(0x80 | ((codePoint >> 6) & 0x3F));
+                percent(0x80 | (codePoint & 0x3F));
+            } else {
+                percent(0xF0 | (codePoint >> 18));
+                percent(0x80 | ((codePoint >> 12) & 0x3F));
+                percent(0x80 | ((codePoint >> 6) & 0x3F));
+                percent(0x80 | (codePoint & 0x3F));
+            }
+        }
+
+        private void percent(int b) {
+            ensure(3);
+            buf[count++] = '%';
+            buf[count++] = HEX[(b >> 4) & 0xF];
+            buf[count++] = HEX[b & 0xF];
+        }
+
+        private void append(char c) {
+            ensure(1);
+            buf[count++] = (byte) c;
+        }
+
+        private void ensure(int more) {
+            if (count + more > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + more));
+            }
+        }
+    }
+}
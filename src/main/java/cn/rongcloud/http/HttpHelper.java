@@ -1,29 +1,63 @@
 package cn.rongcloud.http;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.ProtocolException;
-import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.annotation.PostConstruct;
-import javax.net.ssl.HostnameVerifier;
-import javax.net.ssl.HttpsURLConnection;
+import javax.annotation.PreDestroy;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSession;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 
+import cn.rongcloud.config.HttpProperties;
 import cn.rongcloud.config.IMProperties;
 import cn.rongcloud.utils.CodeUtil;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.util.EntityUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+/**
+ * Outbound HTTP for the IM and whiteboard servers. Connections are pooled and kept
+ * alive per host, idle ones are evicted in the background, TLS sessions are resumed
+ * from the session cache of the shared SSLContext.
+ *
+ * The *Async methods go through a non-blocking client: no caller thread waits on the
+ * socket, the returned future is completed on the http-callback pool so the I/O
+ * reactor threads never run caller code.
+ */
 @Slf4j
 @Component
 public class HttpHelper {
@@ -33,13 +67,22 @@ public class HttpHelper {
     private static final String SIGNATURE = "RC-Signature";
 
     private SSLContext sslCtx = null;
+    private PoolingHttpClientConnectionManager connectionManager;
+    private CloseableHttpClient httpClient;
+    private PoolingNHttpClientConnectionManager asyncConnectionManager;
+    private CloseableHttpAsyncClient asyncHttpClient;
+    private ExecutorService callbackExecutor;
+    private ScheduledExecutorService asyncIdleEvictor;
 
     @Autowired
     IMProperties imProperties;
-    
+
+    @Autowired
+    HttpProperties httpProperties;
+
     @PostConstruct
     private void init() {
-        log.info("init HttpHelper");
+        log.info("init HttpHelper: maxTotal={}, maxPerRoute={}, idleTimeout={}", httpProperties.getMaxTotal(), httpProperties.getMaxPerRoute(), httpProperties.getIdleTimeout());
         try {
             sslCtx = SSLContext.getInstance("TLS");
             X509TrustManager tm = new X509TrustManager() {
@@ -56,187 +99,197 @@ public class HttpHelper {
                 }
             };
             sslCtx.init(null, new TrustManager[]{tm}, null);
+            sslCtx.getClientSessionContext().setSessionCacheSize(httpProperties.getSslSessionCacheSize());
+            sslCtx.getClientSessionContext().setSessionTimeout(httpProperties.getSslSessionTimeout());
         } catch (Exception e) {
             log.error("SSLContext exception:{}", e);
         }
 
-        HttpsURLConnection.setDefaultHostnameVerifier(new HostnameVerifier() {
+        Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", new SSLConnectionSocketFactory(sslCtx, NoopHostnameVerifier.INSTANCE))
+                .build();
+        connectionManager = new PoolingHttpClientConnectionManager(registry);
+        connectionManager.setMaxTotal(httpProperties.getMaxTotal());
+        connectionManager.setDefaultMaxPerRoute(httpProperties.getMaxPerRoute());
+        connectionManager.setValidateAfterInactivity(2000);
 
-            @Override
-            public boolean verify(String arg0, SSLSession arg1) {
-                return true;
-            }
+        httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig(httpProperties.getSocketTimeout()))
+                .evictExpiredConnections()
+                .evictIdleConnections(httpProperties.getIdleTimeout(), TimeUnit.MILLISECONDS)
+                .build();
+
+        initAsyncClient();
+    }
+
+    private void initAsyncClient() {
+        log.info("init async HttpHelper: ioThreads={}, callbackThreads={}", httpProperties.getIoThreads(), httpProperties.getCallbackThreads());
+        IOReactorConfig reactorConfig = IOReactorConfig.custom()
+                .setIoThreadCount(httpProperties.getIoThreads())
+                .setConnectTimeout(httpProperties.getConnectTimeout())
+                .setSoKeepAlive(true)
+                .build();
+        Registry<SchemeIOSessionStrategy> registry = RegistryBuilder.<SchemeIOSessionStrategy>create()
+                .register("http", NoopIOSessionStrategy.INSTANCE)
+                .register("https", new SSLIOSessionStrategy(sslCtx, NoopHostnameVerifier.INSTANCE))
+                .build();
+        try {
+            asyncConnectionManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(reactorConfig), registry);
+        } catch (IOReactorException e) {
+            throw new IllegalStateException("init async http client error", e);
+        }
+        asyncConnectionManager.setMaxTotal(httpProperties.getMaxTotal());
+        asyncConnectionManager.setDefaultMaxPerRoute(httpProperties.getMaxPerRoute());
 
+        asyncHttpClient = HttpAsyncClients.custom()
+                .setConnectionManager(asyncConnectionManager)
+                .setDefaultRequestConfig(requestConfig(httpProperties.getSocketTimeout()))
+                .build();
+        asyncHttpClient.start();
+
+        AtomicInteger index = new AtomicInteger();
+        callbackExecutor = Executors.newFixedThreadPool(Math.max(1, httpProperties.getCallbackThreads()), r -> {
+            Thread t = new Thread(r, "http-callback-" + index.incrementAndGet());
+            t.setDaemon(true);
+            return t;
         });
 
-        HttpsURLConnection.setDefaultSSLSocketFactory(sslCtx.getSocketFactory());
+        //the async pool has no built-in evictor like the blocking client
+        long idleTimeout = httpProperties.getIdleTimeout();
+        asyncIdleEvictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "http-async-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        asyncIdleEvictor.scheduleWithFixedDelay(() -> {
+            asyncConnectionManager.closeExpiredConnections();
+            asyncConnectionManager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+        }, idleTimeout, idleTimeout, TimeUnit.MILLISECONDS);
     }
 
-    // 设置body体
-    public void setBodyParameter(StringBuilder sb, HttpURLConnection conn)
-        throws IOException {
-        String str = sb.toString();
-        log.info("Call server api with url: {}, data: {}", conn.getURL().toString(), str);
-        DataOutputStream out = new DataOutputStream(conn.getOutputStream());
-        out.writeBytes(str);
-        out.flush();
-        out.close();
+    @PreDestroy
+    private void destroy() throws IOException {
+        httpClient.close();
+        asyncIdleEvictor.shutdownNow();
+        asyncHttpClient.close();
+        callbackExecutor.shutdown();
     }
 
-    public HttpURLConnection createGetHttpConnection(String uri)
-        throws MalformedURLException, IOException {
-        URL url = new URL(uri);
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        conn.setConnectTimeout(30000);
-        conn.setRequestMethod("GET");
-        return conn;
+    private RequestConfig requestConfig(int socketTimeout) {
+        return RequestConfig.custom()
+                .setConnectTimeout(httpProperties.getConnectTimeout())
+                .setConnectionRequestTimeout(httpProperties.getConnectTimeout())
+                .setSocketTimeout(socketTimeout)
+                .build();
     }
 
-    public void setBodyParameter(String str, HttpURLConnection conn) throws IOException {
-        log.info("Call IM server api with url: {}, data: {}", conn.getURL().toString(), str);
-        DataOutputStream out = new DataOutputStream(conn.getOutputStream());
-        out.write(str.getBytes("utf-8"));
-        out.flush();
-        out.close();
+    public String postIM(String uri, String contentType, String body) throws IOException {
+        HttpPost post = createIMPost(uri, contentType, body);
+        log.info("Call IM server api with url: {}, data: {}", post.getURI(), body);
+        return execute(post, body);
     }
 
-    public HttpURLConnection createWhiteBoardPostHttpConnection(String host, String uri, String contentType)
-        throws MalformedURLException, IOException, ProtocolException {
+    public CompletableFuture<String> postIMAsync(String uri, String contentType, String body) {
+        HttpPost post = createIMPost(uri, contentType, body);
+        log.info("Call IM server api async with url: {}, data: {}", post.getURI(), body);
+        return executeAsync(post, body);
+    }
 
-        URL url = new URL(host + uri);
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        conn.setUseCaches(false);
-        conn.setDoInput(true);
-        conn.setDoOutput(true);
-        conn.setRequestMethod("POST");
-        conn.setInstanceFollowRedirects(true);
-        conn.setConnectTimeout(30000);
-        conn.setReadTimeout(30000);
+    public String postIM(String uri, FormBody body) throws IOException {
+        HttpPost post = createIMPost(uri, body.toEntity());
+        String data = describe(body);
+        log.info("Call IM server api with url: {}, data: {}", post.getURI(), data);
+        return execute(post, data);
+    }
 
-        conn.setRequestProperty("Content-Type", contentType);
+    public CompletableFuture<String> postIMAsync(String uri, FormBody body) {
+        HttpPost post = createIMPost(uri, body.toEntity());
+        String data = describe(body);
+        log.info("Call IM server api async with url: {}, data: {}", post.getURI(), data);
+        return executeAsync(post, data);
+    }
 
-        return conn;
+    //a form body is decoded back into a String for the log at debug only, once per request
+    private static String describe(FormBody body) {
+        return log.isDebugEnabled() ? body.toString() : "form of " + body.length() + " bytes";
     }
 
-    public HttpURLConnection createCommonPostHttpConnection(String host, String appKey,
-        String appSecret, String uri, String contentType)
-        throws MalformedURLException, IOException, ProtocolException {
-        String nonce = String.valueOf(Math.random() * 1000000);
-        String timestamp = String.valueOf(System.currentTimeMillis() / 1000);
-        StringBuilder toSign = new StringBuilder(appSecret).append(nonce).append(timestamp);
-        String sign = CodeUtil.hexSHA1(toSign.toString());
-        uri = host + uri;
-        URL url = new URL(uri);
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        if (conn == null) {
-            log.info("open url connectin fail, url={}", uri);
-            return null;
-        }
+    public String postWhiteBoard(String host, String uri, String contentType, String body) throws IOException {
+        HttpPost post = createPost(host, uri, contentType, body);
+        log.info("Call server api with url: {}, data: {}", post.getURI(), body);
+        return execute(post, body);
+    }
+
+    private HttpPost createIMPost(String uri, String contentType, String body) {
+        HttpPost post = createIMPost(uri, new StringEntity(body, StandardCharsets.UTF_8));
+        post.setHeader("Content-Type", contentType);
+        return post;
+    }
 
-        conn.setUseCaches(false);
-        conn.setDoInput(true);
-        conn.setDoOutput(true);
-        conn.setRequestMethod("POST");
-        conn.setInstanceFollowRedirects(true);
-        conn.setConnectTimeout(30000);
-        conn.setReadTimeout(30000);
-
-        conn.setRequestProperty(APPKEY, appKey);
-        conn.setRequestProperty(NONCE, nonce);
-        conn.setRequestProperty(TIMESTAMP, timestamp);
-        conn.setRequestProperty(SIGNATURE, sign);
-        conn.setRequestProperty("Content-Type", contentType);
-        return conn;
-    }
-
-    public HttpURLConnection createCommonGetHttpConnection(String host, String appKey,
-        String appSecret, String uri, String contentType)
-        throws MalformedURLException, IOException, ProtocolException {
+    private HttpPost createIMPost(String uri, HttpEntity entity) {
         String nonce = String.valueOf(Math.random() * 1000000);
         String timestamp = String.valueOf(System.currentTimeMillis() / 1000);
-        StringBuilder toSign = new StringBuilder(appSecret).append(nonce).append(timestamp);
+        StringBuilder toSign = new StringBuilder(imProperties.getSecret()).append(nonce).append(timestamp);
         String sign = CodeUtil.hexSHA1(toSign.toString());
-        uri = host + uri;
-        URL url = new URL(uri);
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        if (conn == null) {
-            log.info("open url connectin fail, url={}", uri);
-            return null;
-        }
 
-        conn.setUseCaches(false);
-        conn.setDoInput(true);
-        conn.setDoOutput(true);
-        conn.setRequestMethod("GET");
-        conn.setInstanceFollowRedirects(true);
-        conn.setConnectTimeout(10000);
-        conn.setReadTimeout(10000);
-
-        conn.setRequestProperty(APPKEY, appKey);
-        conn.setRequestProperty(NONCE, nonce);
-        conn.setRequestProperty(TIMESTAMP, timestamp);
-        conn.setRequestProperty(SIGNATURE, sign);
-        conn.setRequestProperty("Content-Type", contentType);
-        return conn;
-    }
-
-    public HttpURLConnection createIMGetHttpConnection(String uri, String contentType)
-        throws MalformedURLException, IOException, ProtocolException {
-        return createCommonGetHttpConnection(imProperties.getHost(),
-            imProperties.getAppKey(), imProperties.getSecret(), uri,
-            contentType);
-    }
-
-    public HttpURLConnection createIMPostHttpConnection(String uri, String contentType)
-        throws MalformedURLException, IOException, ProtocolException {
-        return createCommonPostHttpConnection(imProperties.getHost(),
-                imProperties.getAppKey(), imProperties.getSecret(), uri,
-            contentType);
-    }
-
-    public byte[] readInputStream(InputStream inStream) throws Exception {
-        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-        byte[] buffer = new byte[1024];
-        int len = 0;
-        while ((len = inStream.read(buffer)) != -1) {
-            outStream.write(buffer, 0, len);
-        }
-        byte[] data = outStream.toByteArray();
-        outStream.close();
-        inStream.close();
-        return data;
-    }
-
-    public String returnResult(HttpURLConnection conn, String body) throws Exception, IOException {
-        InputStream input = null;
-        if (conn.getResponseCode() == 200) {
-            input = conn.getInputStream();
-        } else {
-            input = conn.getErrorStream();
-        }
-        String result = new String(readInputStream(input), "UTF-8");
-        log.info("IM server api response:{}, {}, {}", conn.getURL(), body, result);
-        return result;
+        HttpPost post = createPost(imProperties.getHost(), uri, entity);
+        post.setHeader(APPKEY, imProperties.getAppKey());
+        post.setHeader(NONCE, nonce);
+        post.setHeader(TIMESTAMP, timestamp);
+        post.setHeader(SIGNATURE, sign);
+        return post;
     }
 
-    public HttpURLConnection createPostHttpConnection(String uri, String contentType)
-        throws IOException {
+    private HttpPost createPost(String host, String uri, String contentType, String body) {
+        HttpPost post = createPost(host, uri, new StringEntity(body, StandardCharsets.UTF_8));
+        post.setHeader("Content-Type", contentType);
+        return post;
+    }
 
-        URL url = new URL(uri);
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        if (conn == null) {
-            log.info("open url connection fail, url={}", uri);
-            return null;
+    private HttpPost createPost(String host, String uri, HttpEntity entity) {
+        HttpPost post = new HttpPost(host + uri);
+        post.setConfig(requestConfig(httpProperties.getSocketTimeout(uri)));
+        post.setEntity(entity);
+        return post;
+    }
+
+    private String execute(HttpPost post, String body) throws IOException {
+        try (CloseableHttpResponse response = httpClient.execute(post)) {
+            String result = response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+            log.info("IM server api response:{}, {}, {}", post.getURI(), body, result);
+            return result;
         }
+    }
 
-        conn.setUseCaches(false);
-        conn.setDoInput(true);
-        conn.setDoOutput(true);
-        conn.setRequestMethod("POST");
-        conn.setInstanceFollowRedirects(true);
-        conn.setConnectTimeout(30000);
-        conn.setReadTimeout(30000);
-        conn.setRequestProperty("Content-Type", contentType);
-        return conn;
+    private CompletableFuture<String> executeAsync(HttpPost post, String body) {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        asyncHttpClient.execute(post, new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse response) {
+                callbackExecutor.execute(() -> {
+                    try {
+                        String result = response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+                        log.info("IM server api response:{}, {}, {}", post.getURI(), body, result);
+                        future.complete(result);
+                    } catch (Exception e) {
+                        future.completeExceptionally(e);
+                    }
+                });
+            }
+
+            @Override
+            public void failed(Exception e) {
+                log.error("IM server api error:{}, {}, {}", post.getURI(), body, e.getMessage());
+                callbackExecutor.execute(() -> future.completeExceptionally(e));
+            }
+
+            @Override
+            public void cancelled() {
+                callbackExecutor.execute(() -> future.cancel(false));
+            }
+        });
+        return future;
     }
 }
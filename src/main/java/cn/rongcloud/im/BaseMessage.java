@@ -1,7 +1,5 @@
 package cn.rongcloud.im;
 
-import com.alibaba.fastjson.JSONObject;
-
 /**
  * Created by weiqinxiao on 2019/3/1.
  */
@@ -11,6 +9,6 @@ public abstract class BaseMessage {
 
     @Override
     public String toString() {
-        return JSONObject.toJSONString(this);
+        return MessageCodec.toJson(this);
     }
 }
@@ -0,0 +1,193 @@
+package cn.rongcloud.im;
+
+import cn.rongcloud.config.IMProperties;
+import cn.rongcloud.pojo.IMApiResultInfo;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Gathers group joins and quits of one group for groupBatchWindow ms or up to groupBatchSize
+ * users, then makes one /group/join.json or /group/quit.json call for all of them. Every
+ * waiting caller gets the result of that call. A group has one call in flight at a time and its
+ * batches go out in arrival order, so a quit never overtakes an earlier join of the same user.
+ */
+@Slf4j
+@Component
+public class GroupBatcher {
+    private static class Batch {
+        final boolean join;
+        final String groupName;
+        final Set<String> userIds = new LinkedHashSet<>();
+        final List<CompletableFuture<IMApiResultInfo>> waiters = new ArrayList<>();
+        boolean ready;
+
+        Batch(boolean join, String groupName) {
+            this.join = join;
+            this.groupName = groupName;
+        }
+    }
+
+    private static class Group {
+        final LinkedList<Batch> batches = new LinkedList<>();
+        boolean inFlight;
+    }
+
+    @Autowired
+    private IMHelper imHelper;
+
+    @Autowired
+    private IMProperties imProperties;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, Group> groups = new HashMap<>();
+    private ScheduledExecutorService windowTimer;
+    private DistributionSummary batchSize;
+
+    public GroupBatcher() {
+    }
+
+    GroupBatcher(IMHelper imHelper, IMProperties imProperties, MeterRegistry meterRegistry) {
+        this.imHelper = imHelper;
+        this.imProperties = imProperties;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    void init() {
+        windowTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "im-group-batcher");
+            t.setDaemon(true);
+            return t;
+        });
+        batchSize = DistributionSummary.builder("sealclass.im.group.batch")
+                .description("users per group join or quit call")
+                .register(meterRegistry);
+        log.info("init GroupBatcher: window={}ms, size={}", imProperties.getGroupBatchWindow(), imProperties.getGroupBatchSize());
+    }
+
+    @PreDestroy
+    void destroy() {
+        windowTimer.shutdownNow();
+    }
+
+    public CompletableFuture<IMApiResultInfo> join(String userId, String groupId, String groupName) {
+        return enqueue(true, userId, groupId, groupName);
+    }
+
+    public CompletableFuture<IMApiResultInfo> quit(String userId, String groupId) {
+        return enqueue(false, userId, groupId, null);
+    }
+
+    private CompletableFuture<IMApiResultInfo> enqueue(boolean join, String userId, String groupId, String groupName) {
+        CompletableFuture<IMApiResultInfo> future = new CompletableFuture<>();
+        Batch batch;
+        boolean opened = false;
+        lock.lock();
+        try {
+            Group group = groups.computeIfAbsent(groupId, k -> new Group());
+            batch = group.batches.peekLast();
+            if (batch == null || batch.ready || batch.join != join) {
+                //the open batch closes when one of the other kind arrives, so the order holds
+                if (batch != null) {
+                    batch.ready = true;
+                }
+                batch = new Batch(join, groupName);
+                group.batches.add(batch);
+                opened = true;
+            }
+            batch.userIds.add(userId);
+            batch.waiters.add(future);
+            if (batch.userIds.size() >= imProperties.getGroupBatchSize()) {
+                batch.ready = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (opened && !batch.ready) {
+            Batch window = batch;
+            windowTimer.schedule(() -> {
+                lock.lock();
+                try {
+                    window.ready = true;
+                } finally {
+                    lock.unlock();
+                }
+                sendNext(groupId);
+            }, imProperties.getGroupBatchWindow(), TimeUnit.MILLISECONDS);
+        }
+        sendNext(groupId);
+        return future;
+    }
+
+    private void sendNext(String groupId) {
+        Batch batch;
+        lock.lock();
+        try {
+            Group group = groups.get(groupId);
+            if (group == null || group.inFlight) {
+                return;
+            }
+            batch = group.batches.peekFirst();
+            if (batch == null) {
+                groups.remove(groupId);
+                return;
+            }
+            if (!batch.ready) {
+                return;
+            }
+            group.batches.removeFirst();
+            group.inFlight = true;
+        } finally {
+            lock.unlock();
+        }
+
+        String[] userIds = batch.userIds.toArray(new String[0]);
+        batchSize.record(userIds.length);
+        log.debug("group {}: groupId={}, users={}", batch.join ? "join" : "quit", groupId, userIds.length);
+        CompletableFuture<IMApiResultInfo> call;
+        try {
+            call = batch.join ? imHelper.joinGroupAsync(userIds, groupId, batch.groupName) : imHelper.quitAsync(userIds, groupId);
+        } catch (Exception e) {
+            call = new CompletableFuture<>();
+            call.completeExceptionally(e);
+        }
+        call.whenComplete((resultInfo, e) -> {
+            lock.lock();
+            try {
+                groups.get(groupId).inFlight = false;
+            } finally {
+                lock.unlock();
+            }
+            for (CompletableFuture<IMApiResultInfo> waiter : batch.waiters) {
+                if (e != null) {
+                    waiter.completeExceptionally(e);
+                } else {
+                    waiter.complete(resultInfo);
+                }
+            }
+            sendNext(groupId);
+        });
+    }
+}
@@ -1,5 +1,6 @@
 package cn.rongcloud.im;
 
+import cn.rongcloud.http.FormBody;
 import cn.rongcloud.http.HttpHelper;
 import cn.rongcloud.pojo.IMApiResultInfo;
 import cn.rongcloud.pojo.IMTokenInfo;
@@ -8,20 +9,34 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import java.net.HttpURLConnection;
+import javax.annotation.PostConstruct;
+import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.util.concurrent.CompletableFuture;
 
 /**
+ * Every api has a blocking form and an *Async form; the async one returns at once and
+ * the future completes on the http callback pool when the IM server replies.
+ *
  * Created by weiqinxiao on 2019/2/28.
  */
 @Slf4j
 @Component
 public class IMHelper {
     private static final String UTF8 = "UTF-8";
+    private static final String FORM = "application/x-www-form-urlencoded";
 
     @Autowired
     HttpHelper httpHelper;
 
+    @Autowired
+    PublishGovernor publishGovernor;
+
+    @PostConstruct
+    private void init() {
+        MessageCodec.compileWriters();
+    }
+
     /**
      * 获取 Token 方法
      *
@@ -31,6 +46,15 @@ public class IMHelper {
      * @return TokenResult
      **/
     public IMTokenInfo getToken(String userId, String name, String portraitUri) throws Exception {
+        return JSON.parseObject(httpHelper.postIM("/user/getToken.json", FORM, getTokenBody(userId, name, portraitUri)), IMTokenInfo.class);
+    }
+
+    public CompletableFuture<IMTokenInfo> getTokenAsync(String userId, String name, String portraitUri) {
+        return httpHelper.postIMAsync("/user/getToken.json", FORM, getTokenBody(userId, name, portraitUri))
+                .thenApply(result -> JSON.parseObject(result, IMTokenInfo.class));
+    }
+
+    private String getTokenBody(String userId, String name, String portraitUri) {
         if (userId == null) {
             throw new IllegalArgumentException("Paramer 'userId' is required");
         }
@@ -44,18 +68,15 @@ public class IMHelper {
         }
 
         StringBuilder sb = new StringBuilder();
-        sb.append("&userId=").append(URLEncoder.encode(userId.toString(), UTF8));
-        sb.append("&name=").append(URLEncoder.encode(name.toString(), UTF8));
-        sb.append("&portraitUri=").append(URLEncoder.encode(portraitUri.toString(), UTF8));
+        sb.append("&userId=").append(encode(userId.toString()));
+        sb.append("&name=").append(encode(name.toString()));
+        sb.append("&portraitUri=").append(encode(portraitUri.toString()));
         String body = sb.toString();
         if (body.indexOf("&") == 0) {
             body = body.substring(1, body.length());
         }
 
-        HttpURLConnection conn = httpHelper.createIMPostHttpConnection("/user/getToken.json", "application/x-www-form-urlencoded");
-        httpHelper.setBodyParameter(body, conn);
-
-        return JSON.parseObject(httpHelper.returnResult(conn, body), IMTokenInfo.class);
+        return body;
     }
 
     /**
@@ -67,8 +88,17 @@ public class IMHelper {
      * @param groupName:群组 Id 对应的名称。（必传）
      * @return CodeSuccessResult
      **/
-    public IMApiResultInfo createGroup(String[] userId, String groupId, String groupName)
-            throws Exception {
+    public IMApiResultInfo createGroup(String[] userId, String groupId, String groupName) throws Exception {
+        return JSON.parseObject(httpHelper.postIM("/group/create.json", FORM, groupBody(userId, groupId, groupName)), IMApiResultInfo.class);
+    }
+
+    public CompletableFuture<IMApiResultInfo> createGroupAsync(String[] userId, String groupId, String groupName) {
+        return httpHelper.postIMAsync("/group/create.json", FORM, groupBody(userId, groupId, groupName))
+                .thenApply(result -> JSON.parseObject(result, IMApiResultInfo.class));
+    }
+
+    //create is an alias of join, both take the same body
+    private String groupBody(String[] userId, String groupId, String groupName) {
         if (userId == null) {
             throw new IllegalArgumentException("Paramer 'userId' is required");
         }
@@ -85,21 +115,17 @@ public class IMHelper {
 
         for (int i = 0; i < userId.length; i++) {
             String child = userId[i];
-            sb.append("&userId=").append(URLEncoder.encode(child, UTF8));
+            sb.append("&userId=").append(encode(child));
         }
 
-        sb.append("&groupId=").append(URLEncoder.encode(groupId.toString(), UTF8));
-        sb.append("&groupName=").append(URLEncoder.encode(groupName.toString(), UTF8));
+        sb.append("&groupId=").append(encode(groupId.toString()));
+        sb.append("&groupName=").append(encode(groupName.toString()));
         String body = sb.toString();
         if (body.indexOf("&") == 0) {
             body = body.substring(1, body.length());
         }
 
-        HttpURLConnection conn = httpHelper
-                .createIMPostHttpConnection("/group/create.json", "application/x-www-form-urlencoded");
-        httpHelper.setBodyParameter(body, conn);
-
-        return JSON.parseObject(httpHelper.returnResult(conn, body), IMApiResultInfo.class);
+        return body;
     }
 
 
@@ -111,42 +137,14 @@ public class IMHelper {
      * @param groupName:要加入的群 Id 对应的名称。（必传）
      * @return CodeSuccessResult
      **/
-    public IMApiResultInfo joinGroup(String[] userId, String groupId, String groupName)
-            throws Exception {
-        if (userId == null) {
-            throw new IllegalArgumentException("Paramer 'userId' is required");
-        }
-
-        if (groupId == null) {
-            throw new IllegalArgumentException("Paramer 'groupId' is required");
-        }
-
-        if (groupName == null) {
-            throw new IllegalArgumentException("Paramer 'groupName' is required");
-        }
-
-        StringBuilder sb = new StringBuilder();
-
-        for (int i = 0; i < userId.length; i++) {
-            String child = userId[i];
-            sb.append("&userId=").append(URLEncoder.encode(child, UTF8));
-        }
-
-        sb.append("&groupId=").append(URLEncoder.encode(groupId.toString(), UTF8));
-        sb.append("&groupName=").append(URLEncoder.encode(groupName.toString(), UTF8));
-        String body = sb.toString();
-        if (body.indexOf("&") == 0) {
-            body = body.substring(1, body.length());
-        }
-
-        HttpURLConnection conn = httpHelper
-                .createIMPostHttpConnection("/group/join.json", "application/x-www-form-urlencoded");
-        httpHelper.setBodyParameter(body, conn);
-
-        return JSON.parseObject(httpHelper.returnResult(conn, body), IMApiResultInfo.class);
+    public IMApiResultInfo joinGroup(String[] userId, String groupId, String groupName) throws Exception {
+        return JSON.parseObject(httpHelper.postIM("/group/join.json", FORM, groupBody(userId, groupId, groupName)), IMApiResultInfo.class);
     }
 
-
+    public CompletableFuture<IMApiResultInfo> joinGroupAsync(String[] userId, String groupId, String groupName) {
+        return httpHelper.postIMAsync("/group/join.json", FORM, groupBody(userId, groupId, groupName))
+                .thenApply(result -> JSON.parseObject(result, IMApiResultInfo.class));
+    }
 
     /**
      * 退出群组方法（将用户从群中移除，不再接收该群组的消息.）
@@ -156,6 +154,15 @@ public class IMHelper {
      * @return CodeSuccessResult
      **/
     public IMApiResultInfo quit(String[] userId, String groupId) throws Exception {
+        return JSON.parseObject(httpHelper.postIM("/group/quit.json", FORM, quitBody(userId, groupId)), IMApiResultInfo.class);
+    }
+
+    public CompletableFuture<IMApiResultInfo> quitAsync(String[] userId, String groupId) {
+        return httpHelper.postIMAsync("/group/quit.json", FORM, quitBody(userId, groupId))
+                .thenApply(result -> JSON.parseObject(result, IMApiResultInfo.class));
+    }
+
+    private String quitBody(String[] userId, String groupId) {
         if (userId == null) {
             throw new IllegalArgumentException("Paramer 'userId' is required");
         }
@@ -168,20 +175,16 @@ public class IMHelper {
 
         for (int i = 0; i < userId.length; i++) {
             String child = userId[i];
-            sb.append("&userId=").append(URLEncoder.encode(child, UTF8));
+            sb.append("&userId=").append(encode(child));
         }
 
-        sb.append("&groupId=").append(URLEncoder.encode(groupId.toString(), UTF8));
+        sb.append("&groupId=").append(encode(groupId.toString()));
         String body = sb.toString();
         if (body.indexOf("&") == 0) {
             body = body.substring(1, body.length());
         }
 
-        HttpURLConnection conn = httpHelper
-                .createIMPostHttpConnection("/group/quit.json", "application/x-www-form-urlencoded");
-        httpHelper.setBodyParameter(body, conn);
-
-        return JSON.parseObject(httpHelper.returnResult(conn, body), IMApiResultInfo.class);
+        return body;
     }
 
 
@@ -193,6 +196,15 @@ public class IMHelper {
      * @return CodeSuccessResult
      **/
     public IMApiResultInfo dismiss(String userId, String groupId) throws Exception {
+        return JSON.parseObject(httpHelper.postIM("/group/dismiss.json", FORM, dismissBody(userId, groupId)), IMApiResultInfo.class);
+    }
+
+    public CompletableFuture<IMApiResultInfo> dismissAsync(String userId, String groupId) {
+        return httpHelper.postIMAsync("/group/dismiss.json", FORM, dismissBody(userId, groupId))
+                .thenApply(result -> JSON.parseObject(result, IMApiResultInfo.class));
+    }
+
+    private String dismissBody(String userId, String groupId) {
         if (userId == null) {
             throw new IllegalArgumentException("Paramer 'userId' is required");
         }
@@ -202,18 +214,14 @@ public class IMHelper {
         }
 
         StringBuilder sb = new StringBuilder();
-        sb.append("&userId=").append(URLEncoder.encode(userId.toString(), UTF8));
-        sb.append("&groupId=").append(URLEncoder.encode(groupId.toString(), UTF8));
+        sb.append("&userId=").append(encode(userId.toString()));
+        sb.append("&groupId=").append(encode(groupId.toString()));
         String body = sb.toString();
         if (body.indexOf("&") == 0) {
             body = body.substring(1, body.length());
         }
 
-        HttpURLConnection conn = httpHelper
-                .createIMPostHttpConnection("/group/dismiss.json", "application/x-www-form-urlencoded");
-        httpHelper.setBodyParameter(body, conn);
-
-        return JSON.parseObject(httpHelper.returnResult(conn, body), IMApiResultInfo.class);
+        return body;
     }
 
 
@@ -257,6 +265,49 @@ public class IMHelper {
                                           BaseMessage message, String pushContent, String pushData, Integer isPersisted,
                                           Integer isCounted, Integer isIncludeSender, Integer isStatus, Integer isMentioned)
             throws Exception {
+        FormBody body = publishMessageBody(fromUserId, toUserId, toGroupId, message, pushContent, pushData, isPersisted,
+                isCounted, isIncludeSender, isMentioned);
+        publishGovernor.acquire();
+        return JSON.parseObject(httpHelper.postIM(publishUri(isStatus), body), IMApiResultInfo.class);
+    }
+
+    public CompletableFuture<IMApiResultInfo> publishMessageAsync(String fromUserId, String toGroupId, BaseMessage message) {
+        return publishMessageAsync(fromUserId, null, new String[]{toGroupId}, message, "", "", 0,
+                0, 0, 0, 0);
+    }
+
+    public CompletableFuture<IMApiResultInfo> publishMessageAsync(String fromUserId, String toGroupId, BaseMessage message, Integer isIncludeSender) {
+        return publishMessageAsync(fromUserId, null, new String[]{toGroupId}, message, "", "", 0,
+                0, isIncludeSender, 0, 0);
+    }
+
+    public CompletableFuture<IMApiResultInfo> publishMessageAsync(String fromUserId, String toUserId, String toGroupId, BaseMessage message) {
+        return publishMessageAsync(fromUserId, toUserId, new String[]{toGroupId}, message, "", "", 0,
+                0, 0, 0, 0);
+    }
+
+    public CompletableFuture<IMApiResultInfo> publishMessageAsync(String fromUserId, String toUserId, String[] toGroupId,
+                                                                  BaseMessage message, String pushContent, String pushData, Integer isPersisted,
+                                                                  Integer isCounted, Integer isIncludeSender, Integer isStatus, Integer isMentioned) {
+        FormBody body = publishMessageBody(fromUserId, toUserId, toGroupId, message, pushContent, pushData, isPersisted,
+                isCounted, isIncludeSender, isMentioned);
+        return publishGovernor.acquireAsync()
+                .thenCompose(v -> httpHelper.postIMAsync(publishUri(isStatus), body))
+                .thenApply(result -> JSON.parseObject(result, IMApiResultInfo.class));
+    }
+
+    private String publishUri(Integer isStatus) {
+        if (isStatus != null && isStatus.intValue() == 1) {
+            return "/statusmessage/group/publish.json";
+        } else {
+            return "/message/group/publish.json";
+        }
+    }
+
+    //the message is encoded once, straight into the form body
+    private FormBody publishMessageBody(String fromUserId, String toUserId, String[] toGroupId,
+                                        BaseMessage message, String pushContent, String pushData, Integer isPersisted,
+                                        Integer isCounted, Integer isIncludeSender, Integer isMentioned) {
         if (fromUserId == null) {
             throw new IllegalArgumentException("Paramer 'fromUserId' is required");
         }
@@ -269,65 +320,57 @@ public class IMHelper {
             throw new IllegalArgumentException("Paramer 'message' is required");
         }
 
-        StringBuilder sb = new StringBuilder();
-        sb.append("&fromUserId=").append(URLEncoder.encode(fromUserId.toString(), UTF8));
+        FormBody.Builder body = FormBody.builder();
+        try {
+            body.add("fromUserId", fromUserId);
 
-        //定向消息
-        if (toUserId != null) {
-            sb.append("&toUserId=").append(URLEncoder.encode(toUserId.toString(), UTF8));
-        }
+            //定向消息
+            if (toUserId != null) {
+                body.add("toUserId", toUserId);
+            }
 
-        for (int i = 0; i < toGroupId.length; i++) {
-            String child = toGroupId[i];
-            sb.append("&toGroupId=").append(URLEncoder.encode(child, UTF8));
-        }
+            for (int i = 0; i < toGroupId.length; i++) {
+                body.add("toGroupId", toGroupId[i]);
+            }
 
-        String msgStr = message.toString();
-        log.info("publish msg: {}", msgStr);
-        sb.append("&objectName=").append(URLEncoder.encode(message.getObjectName(), UTF8));
-        sb.append("&content=").append(URLEncoder.encode(msgStr, UTF8));
+            MessageCodec.addContent(body, message);
 
-        if (pushContent != null) {
-            sb.append("&pushContent=").append(URLEncoder.encode(pushContent.toString(), UTF8));
-        }
+            if (pushContent != null) {
+                body.add("pushContent", pushContent);
+            }
 
-        if (pushData != null) {
-            sb.append("&pushData=").append(URLEncoder.encode(pushData.toString(), UTF8));
-        }
+            if (pushData != null) {
+                body.add("pushData", pushData);
+            }
 
-        if (isPersisted != null) {
-            sb.append("&isPersisted=").append(URLEncoder.encode(isPersisted.toString(), UTF8));
-        }
+            if (isPersisted != null) {
+                body.add("isPersisted", isPersisted);
+            }
 
-        if (isCounted != null) {
-            sb.append("&isCounted=").append(URLEncoder.encode(isCounted.toString(), UTF8));
-        }
+            if (isCounted != null) {
+                body.add("isCounted", isCounted);
+            }
 
-        if (isIncludeSender != null) {
-            sb.append("&isIncludeSender=")
-                    .append(URLEncoder.encode(isIncludeSender.toString(), UTF8));
-        }
+            if (isIncludeSender != null) {
+                body.add("isIncludeSender", isIncludeSender);
+            }
 
-        if (isMentioned != null) {
-            sb.append("&isMentioned=").append(URLEncoder.encode(isMentioned.toString(), UTF8));
-        }
+            if (isMentioned != null) {
+                body.add("isMentioned", isMentioned);
+            }
 
-        String body = sb.toString();
-        if (body.indexOf("&") == 0) {
-            body = body.substring(1, body.length());
+            return body.build();
+        } finally {
+            //a body given up by an exception frees the buffer too
+            body.reset();
         }
+    }
 
-        String url;
-        if (isStatus != null && isStatus.intValue() == 1) {
-            url = "/statusmessage/group/publish.json";
-        } else {
-            url = "/message/group/publish.json";
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, UTF8);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
         }
-
-        HttpURLConnection conn = httpHelper
-                .createIMPostHttpConnection(url, "application/x-www-form-urlencoded");
-        httpHelper.setBodyParameter(body, conn);
-
-        return JSON.parseObject(httpHelper.returnResult(conn, body), IMApiResultInfo.class);
     }
 }
@@ -0,0 +1,142 @@
+package cn.rongcloud.im;
+
+import cn.rongcloud.config.IMProperties;
+import cn.rongcloud.pojo.IMTokenInfo;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * IM tokens by userId. Concurrent requests for a user share one /user/getToken.json call,
+ * failed or unsuccessful results are not kept. A token is reused for the name it was
+ * issued with only, and {@link #refresh} replaces it with a new one. Least recently used
+ * entries are dropped beyond tokenCacheSize.
+ */
+@Slf4j
+@Component
+public class IMTokenCache {
+    @Autowired
+    private IMHelper imHelper;
+
+    @Autowired
+    private IMProperties imProperties;
+
+    private static class Entry {
+        final String name;
+        final CompletableFuture<IMTokenInfo> future;
+        final long expireAt;
+
+        Entry(String name, CompletableFuture<IMTokenInfo> future, long expireAt) {
+            this.name = name;
+            this.future = future;
+            this.expireAt = expireAt;
+        }
+    }
+
+    //a lock rather than the monitor, joins on virtual threads do not pin their carriers here
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, Entry> tokens = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > imProperties.getTokenCacheSize();
+        }
+    };
+
+    public IMTokenCache() {
+    }
+
+    IMTokenCache(IMHelper imHelper, IMProperties imProperties) {
+        this.imHelper = imHelper;
+        this.imProperties = imProperties;
+    }
+
+    public CompletableFuture<IMTokenInfo> getToken(String userId, String name) {
+        Entry entry;
+        boolean load = false;
+        lock.lock();
+        try {
+            entry = tokens.get(userId);
+            if (entry == null || entry.expireAt <= System.currentTimeMillis() || !Objects.equals(entry.name, name)) {
+                entry = newEntry(userId, name);
+                load = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (load) {
+            load(userId, name, entry);
+        } else {
+            log.debug("im token from cache: userId={}", userId);
+        }
+        return entry.future;
+    }
+
+    /**
+     * Gets a new token from the IM server and keeps it in place of the cached one. Requests
+     * meanwhile, refreshes included, share the call; one already loading for name is shared too.
+     */
+    public CompletableFuture<IMTokenInfo> refresh(String userId, String name) {
+        Entry entry;
+        boolean load = false;
+        lock.lock();
+        try {
+            entry = tokens.get(userId);
+            if (entry == null || entry.future.isDone() || !Objects.equals(entry.name, name)) {
+                entry = newEntry(userId, name);
+                load = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (load) {
+            load(userId, name, entry);
+        }
+        return entry.future;
+    }
+
+    public void invalidate(String userId) {
+        lock.lock();
+        try {
+            tokens.remove(userId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Entry newEntry(String userId, String name) {
+        Entry entry = new Entry(name, new CompletableFuture<>(), System.currentTimeMillis() + imProperties.getTokenCacheTtl());
+        tokens.put(userId, entry);
+        return entry;
+    }
+
+    private void load(String userId, String name, Entry entry) {
+        CompletableFuture<IMTokenInfo> remote;
+        try {
+            remote = imHelper.getTokenAsync(userId, name, "");
+        } catch (Exception e) {
+            remote = new CompletableFuture<>();
+            remote.completeExceptionally(e);
+        }
+        remote.whenComplete((tokenInfo, e) -> {
+            if (e != null || !tokenInfo.isSuccess()) {
+                lock.lock();
+                try {
+                    tokens.remove(userId, entry);
+                } finally {
+                    lock.unlock();
+                }
+            }
+            if (e != null) {
+                entry.future.completeExceptionally(e);
+            } else {
+                entry.future.complete(tokenInfo);
+            }
+        });
+    }
+}
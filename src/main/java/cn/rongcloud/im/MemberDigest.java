@@ -0,0 +1,161 @@
+package cn.rongcloud.im;
+
+import cn.rongcloud.config.IMProperties;
+import cn.rongcloud.im.message.MemberChangedMessage;
+import cn.rongcloud.im.message.MemberDigestMessage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Member joins and leaves of rooms with at least memberDigestThreshold members are held for
+ * memberDigestInterval ms and go out as one {@link MemberDigestMessage}, smaller rooms get a
+ * {@link MemberChangedMessage} per change. A room with changes held keeps holding them until the
+ * next flush even if it shrinks meanwhile, so its clients see the changes in order. Any other
+ * message of the room flushes its changes first, see {@link MessageDispatcher#dispatch}.
+ */
+@Slf4j
+@Component
+public class MemberDigest {
+    @Autowired
+    private MessageDispatcher messageDispatcher;
+
+    @Autowired
+    private IMProperties imProperties;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private Map<String, List<MemberDigestMessage.Change>> pending = new LinkedHashMap<>();
+    private ScheduledExecutorService flusher;
+    private Counter digestedCounter;
+
+    public MemberDigest() {
+    }
+
+    MemberDigest(MessageDispatcher messageDispatcher, IMProperties imProperties, MeterRegistry meterRegistry) {
+        this.messageDispatcher = messageDispatcher;
+        this.imProperties = imProperties;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    void init() {
+        digestedCounter = Counter.builder("sealclass.im.member.digested")
+                .description("member changes sent in a digest instead of their own message")
+                .register(meterRegistry);
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "im-member-digest");
+            t.setDaemon(true);
+            return t;
+        });
+        long interval = imProperties.getMemberDigestInterval();
+        flusher.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.MILLISECONDS);
+        log.info("init MemberDigest: threshold={}, interval={}ms", imProperties.getMemberDigestThreshold(), interval);
+    }
+
+    @PreDestroy
+    void destroy() {
+        flusher.shutdownNow();
+        flush();
+    }
+
+    /**
+     * Like {@link MessageDispatcher#dispatch}, held until commit inside a transaction.
+     *
+     * @param memberCount members of the room when the change happened
+     */
+    public void dispatch(String fromUserId, String roomId, MemberChangedMessage message, int memberCount) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    add(fromUserId, roomId, message, memberCount);
+                }
+            });
+        } else {
+            add(fromUserId, roomId, message, memberCount);
+        }
+    }
+
+    private void add(String fromUserId, String roomId, MemberChangedMessage message, int memberCount) {
+        int threshold = imProperties.getMemberDigestThreshold();
+        lock.lock();
+        try {
+            List<MemberDigestMessage.Change> changes = pending.get(roomId);
+            if (changes == null && (threshold <= 0 || memberCount < threshold)) {
+                //dispatched under the lock, so it cannot overtake a digest being flushed
+                messageDispatcher.dispatchNow(fromUserId, roomId, message, 0);
+                return;
+            }
+            if (changes == null) {
+                changes = new ArrayList<>();
+                pending.put(roomId, changes);
+            }
+            changes.add(new MemberDigestMessage.Change(message));
+        } finally {
+            lock.unlock();
+        }
+        digestedCounter.increment();
+    }
+
+    void flush() {
+        lock.lock();
+        try {
+            if (pending.isEmpty()) {
+                return;
+            }
+            for (Map.Entry<String, List<MemberDigestMessage.Change>> entry : pending.entrySet()) {
+                send(entry.getKey(), entry.getValue());
+            }
+            pending = new LinkedHashMap<>();
+        } catch (Exception e) {
+            log.error("member digest flush error: {}", e.getMessage(), e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues the changes held for the room, ahead of a message of the room about to be queued.
+     */
+    void flush(String roomId) {
+        lock.lock();
+        try {
+            List<MemberDigestMessage.Change> changes = pending.remove(roomId);
+            if (changes != null) {
+                send(roomId, changes);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void send(String roomId, List<MemberDigestMessage.Change> changes) {
+        int max = Math.max(1, imProperties.getMemberDigestMaxChanges());
+        //keep each message well under the size limit of the IM server, the sender is one of
+        //the changed users and must get the other changes too
+        for (int from = 0; from < changes.size(); from += max) {
+            MemberDigestMessage digest = new MemberDigestMessage();
+            digest.setChanges(new ArrayList<>(changes.subList(from, Math.min(changes.size(), from + max))));
+            messageDispatcher.dispatchNow(digest.getChanges().get(0).getUserId(), roomId, digest, 1);
+        }
+        log.debug("member digest: roomId={}, changes={}", roomId, changes.size());
+    }
+}
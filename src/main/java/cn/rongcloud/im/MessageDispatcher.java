@@ -0,0 +1,223 @@
+package cn.rongcloud.im;
+
+import cn.rongcloud.config.IMProperties;
+import cn.rongcloud.im.message.DisplayMessage;
+import cn.rongcloud.im.message.MemberChangedMessage;
+import cn.rongcloud.im.message.MemberDigestMessage;
+import cn.rongcloud.im.message.TurnPageMessage;
+import cn.rongcloud.im.message.WhiteboardMessage;
+import cn.rongcloud.pojo.IMApiResultInfo;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes room messages off the caller thread. Inside a transaction the message is held
+ * until commit and dropped on rollback, so no remote call runs while the transaction is open.
+ *
+ * Queued messages wait in a {@link PublishQueue}: messages of the same group keep their order,
+ * groups with a control message go before groups with only informational ones, and a display or
+ * page turn still queued is superseded by a newer one. Up to dispatchQueueSize messages are
+ * queued, more are dropped. Every publish takes a token from the {@link PublishGovernor}.
+ * Member changes the {@link MemberDigest} holds for a room are queued before any other message
+ * of the room, so clients never see a change after a message that followed it.
+ */
+@Slf4j
+@Component
+public class MessageDispatcher {
+    @Autowired
+    private IMHelper imHelper;
+
+    @Autowired
+    private IMProperties imProperties;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private MemberDigest memberDigest;
+
+    private PublishQueue queue;
+    private final List<Thread> workers = new ArrayList<>();
+    private Timer controlWaitTimer;
+    private Timer infoWaitTimer;
+    private Counter coalescedCounter;
+    private Counter droppedCounter;
+
+    public MessageDispatcher() {
+    }
+
+    MessageDispatcher(IMHelper imHelper, IMProperties imProperties, MeterRegistry meterRegistry, MemberDigest memberDigest) {
+        this.imHelper = imHelper;
+        this.imProperties = imProperties;
+        this.meterRegistry = meterRegistry;
+        this.memberDigest = memberDigest;
+    }
+
+    @PostConstruct
+    void init() {
+        queue = new PublishQueue(imProperties.getDispatchQueueSize());
+        Gauge.builder("sealclass.im.publish.queue", queue, q -> q.size(true))
+                .tag("priority", "control")
+                .description("room messages waiting to be published")
+                .register(meterRegistry);
+        Gauge.builder("sealclass.im.publish.queue", queue, q -> q.size(false))
+                .tag("priority", "info")
+                .description("room messages waiting to be published")
+                .register(meterRegistry);
+        controlWaitTimer = Timer.builder("sealclass.im.publish.wait").tag("priority", "control")
+                .description("time a room message spent queued").register(meterRegistry);
+        infoWaitTimer = Timer.builder("sealclass.im.publish.wait").tag("priority", "info")
+                .description("time a room message spent queued").register(meterRegistry);
+        coalescedCounter = Counter.builder("sealclass.im.publish.coalesced")
+                .description("queued messages superseded by a newer one").register(meterRegistry);
+        droppedCounter = Counter.builder("sealclass.im.publish.dropped")
+                .description("room messages dropped because the queue was full").register(meterRegistry);
+
+        int threads = Math.max(1, imProperties.getDispatchThreads());
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(this::work, "im-dispatch-" + (i + 1));
+            t.setDaemon(true);
+            t.start();
+            workers.add(t);
+        }
+        log.info("init MessageDispatcher: dispatchThreads={}, retries={}, queueSize={}", threads,
+                imProperties.getDispatchRetries(), imProperties.getDispatchQueueSize());
+    }
+
+    @PreDestroy
+    void destroy() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (!queue.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        if (!queue.isEmpty()) {
+            log.error("im dispatch queue not drained, pending messages may be lost");
+        }
+        for (Thread t : workers) {
+            t.interrupt();
+        }
+    }
+
+    public void dispatch(String fromUserId, String toGroupId, BaseMessage message) {
+        dispatch(fromUserId, null, toGroupId, message, 0);
+    }
+
+    public void dispatch(String fromUserId, String toGroupId, BaseMessage message, Integer isIncludeSender) {
+        dispatch(fromUserId, null, toGroupId, message, isIncludeSender);
+    }
+
+    public void dispatch(String fromUserId, String toUserId, String toGroupId, BaseMessage message, Integer isIncludeSender) {
+        PublishQueue.Entry entry = new PublishQueue.Entry(fromUserId, toUserId, toGroupId, message, isIncludeSender,
+                isControl(message), coalesceKey(toGroupId, message));
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            //synchronizations run in registration order, so the queue sees them in call order
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    enqueueAfterDigest(entry);
+                }
+            });
+        } else {
+            enqueueAfterDigest(entry);
+        }
+    }
+
+    /**
+     * Queues the message at once, also inside a transaction, for callers already past the commit.
+     */
+    void dispatchNow(String fromUserId, String toGroupId, BaseMessage message, Integer isIncludeSender) {
+        enqueue(new PublishQueue.Entry(fromUserId, null, toGroupId, message, isIncludeSender,
+                isControl(message), coalesceKey(toGroupId, message)));
+    }
+
+    private void enqueueAfterDigest(PublishQueue.Entry entry) {
+        memberDigest.flush(entry.groupId);
+        enqueue(entry);
+    }
+
+    private void enqueue(PublishQueue.Entry entry) {
+        PublishQueue.Offer offer = queue.offer(entry);
+        if (offer == PublishQueue.Offer.COALESCED) {
+            coalescedCounter.increment();
+            log.info("dispatch msg coalesced: groupId={}, key={}", entry.groupId, entry.coalesceKey);
+        } else if (offer == PublishQueue.Offer.DROPPED) {
+            droppedCounter.increment();
+            log.error("dispatch queue full, msg dropped: groupId={}, objectName={}", entry.groupId, entry.message.getObjectName());
+        }
+    }
+
+    private void work() {
+        while (true) {
+            PublishQueue.Entry entry;
+            try {
+                entry = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                (entry.control ? controlWaitTimer : infoWaitTimer)
+                        .record(System.currentTimeMillis() - entry.enqueueTime, TimeUnit.MILLISECONDS);
+                publish(entry);
+            } finally {
+                queue.done(entry);
+            }
+        }
+    }
+
+    private void publish(PublishQueue.Entry entry) {
+        BaseMessage message = entry.message;
+        int retries = imProperties.getDispatchRetries();
+        for (int attempt = 0; ; attempt++) {
+            try {
+                IMApiResultInfo resultInfo = imHelper.publishMessage(entry.fromUserId, entry.toUserId, new String[]{entry.groupId}, message,
+                        "", "", 0, 0, entry.isIncludeSender, 0, 0);
+                if (resultInfo.isSuccess()) {
+                    return;
+                }
+                log.error("dispatch msg fail: groupId={}, objectName={}, attempt={}, {}", entry.groupId, message.getObjectName(), attempt, resultInfo.getErrorMessage());
+            } catch (Exception e) {
+                log.error("dispatch msg error: groupId={}, objectName={}, attempt={}, {}", entry.groupId, message.getObjectName(), attempt, e.getMessage());
+            }
+            if (attempt >= retries) {
+                log.error("dispatch msg dropped: groupId={}, msg={}", entry.groupId, message);
+                return;
+            }
+            try {
+                Thread.sleep(imProperties.getDispatchRetryInterval() * (attempt + 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static boolean isControl(BaseMessage message) {
+        return !(message instanceof DisplayMessage
+                || message instanceof TurnPageMessage
+                || message instanceof WhiteboardMessage
+                || message instanceof MemberChangedMessage
+                || message instanceof MemberDigestMessage);
+    }
+
+    private static String coalesceKey(String groupId, BaseMessage message) {
+        if (message instanceof DisplayMessage) {
+            return "display:" + groupId;
+        } else if (message instanceof TurnPageMessage) {
+            return "page:" + groupId + ":" + ((TurnPageMessage) message).getWhiteboardId();
+        }
+        return null;
+    }
+}
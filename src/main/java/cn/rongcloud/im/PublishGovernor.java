@@ -0,0 +1,149 @@
+package cn.rongcloud.im;
+
+import cn.rongcloud.common.ApiException;
+import cn.rongcloud.common.ErrorEnum;
+import cn.rongcloud.config.IMProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket in Redis in front of the IM publish api, shared by every node of the cluster,
+ * so the app stays under the publish rate limit of the IM server. If Redis is unreachable
+ * the governor lets messages through instead of stopping all publishing.
+ */
+@Slf4j
+@Component
+public class PublishGovernor {
+    private static final String BUCKET_KEY = "sealclass:im:publish:bucket";
+
+    //returns 0 when a token was taken, otherwise the ms until the next token
+    private static final String TOKEN_BUCKET_SCRIPT =
+            "local rate = tonumber(ARGV[1]) " +
+            "local burst = tonumber(ARGV[2]) " +
+            "local now = tonumber(ARGV[3]) " +
+            "local bucket = redis.call('HMGET', KEYS[1], 'tokens', 'ts') " +
+            "local tokens = tonumber(bucket[1]) " +
+            "local ts = tonumber(bucket[2]) " +
+            "if tokens == nil or ts == nil then tokens = burst ts = now end " +
+            "if now > ts then tokens = math.min(burst, tokens + (now - ts) * rate / 1000) ts = now end " +
+            "local wait = 0 " +
+            "if tokens >= 1 then tokens = tokens - 1 else wait = math.ceil((1 - tokens) * 1000 / rate) end " +
+            "redis.call('HMSET', KEYS[1], 'tokens', tokens, 'ts', ts) " +
+            "redis.call('PEXPIRE', KEYS[1], math.ceil(burst * 1000 / rate) + 1000) " +
+            "return wait";
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private IMProperties imProperties;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private DefaultRedisScript<Long> tokenBucketScript;
+    private ScheduledExecutorService retryScheduler;
+    private Timer throttleTimer;
+
+    public PublishGovernor() {
+    }
+
+    PublishGovernor(StringRedisTemplate stringRedisTemplate, IMProperties imProperties, MeterRegistry meterRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.imProperties = imProperties;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    void init() {
+        tokenBucketScript = new DefaultRedisScript<>(TOKEN_BUCKET_SCRIPT, Long.class);
+        retryScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "im-publish-governor");
+            t.setDaemon(true);
+            return t;
+        });
+        throttleTimer = Timer.builder("sealclass.im.publish.throttle")
+                .description("time a publish waited for a rate token")
+                .register(meterRegistry);
+        log.info("init PublishGovernor: rate={}/s, burst={}, maxWait={}", imProperties.getPublishRate(), imProperties.getPublishBurst(), imProperties.getPublishMaxWait());
+    }
+
+    @PreDestroy
+    void destroy() {
+        retryScheduler.shutdownNow();
+    }
+
+    /**
+     * Blocks until a token is granted.
+     *
+     * @throws ApiException ERR_MESSAGE_ERROR when no token is granted within publishMaxWait
+     */
+    public void acquire() throws ApiException {
+        long start = System.currentTimeMillis();
+        while (true) {
+            long wait = tryAcquire();
+            long elapsed = System.currentTimeMillis() - start;
+            if (wait == 0) {
+                throttleTimer.record(elapsed, TimeUnit.MILLISECONDS);
+                return;
+            }
+            if (elapsed + wait > imProperties.getPublishMaxWait()) {
+                throw new ApiException(ErrorEnum.ERR_MESSAGE_ERROR, "publish rate limited");
+            }
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ApiException(ErrorEnum.ERR_MESSAGE_ERROR, "publish interrupted");
+            }
+        }
+    }
+
+    /**
+     * Completes when a token is granted, without holding a thread while waiting.
+     */
+    public CompletableFuture<Void> acquireAsync() {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        acquireLater(future, System.currentTimeMillis());
+        return future;
+    }
+
+    private void acquireLater(CompletableFuture<Void> future, long start) {
+        long wait = tryAcquire();
+        long elapsed = System.currentTimeMillis() - start;
+        if (wait == 0) {
+            throttleTimer.record(elapsed, TimeUnit.MILLISECONDS);
+            future.complete(null);
+        } else if (elapsed + wait > imProperties.getPublishMaxWait()) {
+            future.completeExceptionally(new ApiException(ErrorEnum.ERR_MESSAGE_ERROR, "publish rate limited"));
+        } else {
+            retryScheduler.schedule(() -> acquireLater(future, start), wait, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    long tryAcquire() {
+        try {
+            Long wait = stringRedisTemplate.execute(tokenBucketScript, Collections.singletonList(BUCKET_KEY),
+                    String.valueOf(imProperties.getPublishRate()),
+                    String.valueOf(imProperties.getPublishBurst()),
+                    String.valueOf(System.currentTimeMillis()));
+            return wait == null ? 0 : wait;
+        } catch (Exception e) {
+            log.error("publish governor redis error, let it through: {}", e.getMessage());
+            return 0;
+        }
+    }
+}
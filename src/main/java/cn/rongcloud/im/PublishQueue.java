@@ -0,0 +1,191 @@
+package cn.rongcloud.im;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pending messages of {@link MessageDispatcher}, one FIFO queue per group. A group is handed to
+ * one worker at a time and its messages go out in the order they came, whatever their priority;
+ * priority only decides which group is next, groups holding a control message are taken before
+ * groups holding only informational ones. A queued message with the same coalesce key is
+ * superseded by the newer one instead of being sent twice.
+ *
+ * At most capacity messages are queued, a message offered to a full queue is dropped.
+ * Guarded by a lock rather than the monitor, a waiting or offering virtual thread does not pin its carrier.
+ */
+class PublishQueue {
+    enum Offer {
+        QUEUED, COALESCED, DROPPED
+    }
+
+    static class Entry {
+        final String fromUserId;
+        final String toUserId;
+        final String groupId;
+        final BaseMessage message;
+        final Integer isIncludeSender;
+        final boolean control;
+        final String coalesceKey;
+        final long enqueueTime = System.currentTimeMillis();
+
+        Entry(String fromUserId, String toUserId, String groupId, BaseMessage message, Integer isIncludeSender,
+              boolean control, String coalesceKey) {
+            this.fromUserId = fromUserId;
+            this.toUserId = toUserId;
+            this.groupId = groupId;
+            this.message = message;
+            this.isIncludeSender = isIncludeSender;
+            this.control = control;
+            this.coalesceKey = coalesceKey;
+        }
+    }
+
+    private static class Group {
+        final String groupId;
+        final ArrayDeque<Entry> entries = new ArrayDeque<>();
+        int controls;
+        boolean busy;
+
+        Group(String groupId) {
+            this.groupId = groupId;
+        }
+    }
+
+    private final int capacity;
+    //groups with queued messages or being published
+    private final Map<String, Group> groups = new HashMap<>();
+    //groups not being published with queued messages, in the order they got ready
+    private final LinkedHashSet<Group> controlReady = new LinkedHashSet<>();
+    private final LinkedHashSet<Group> infoReady = new LinkedHashSet<>();
+    private final Map<String, Entry> coalescing = new HashMap<>();
+    private int controlCount;
+    private int infoCount;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    PublishQueue(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    Offer offer(Entry entry) {
+        lock.lock();
+        try {
+            Entry queued = entry.coalesceKey == null ? null : coalescing.get(entry.coalesceKey);
+            if (queued == null && controlCount + infoCount >= capacity) {
+                return Offer.DROPPED;
+            }
+            Group group = groups.computeIfAbsent(entry.groupId, Group::new);
+            if (queued != null) {
+                //the newer one goes to the tail, so it still follows what was queued before it
+                group.entries.remove(queued);
+                count(group, queued, -1);
+            }
+            if (entry.coalesceKey != null) {
+                coalescing.put(entry.coalesceKey, entry);
+            }
+            group.entries.add(entry);
+            count(group, entry, 1);
+            place(group);
+            return queued == null ? Offer.QUEUED : Offer.COALESCED;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the head of the next ready group, the caller must call {@link #done(Entry)} afterwards.
+     */
+    Entry take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (true) {
+                Group group = first(controlReady);
+                if (group == null) {
+                    group = first(infoReady);
+                }
+                if (group != null) {
+                    Entry entry = group.entries.poll();
+                    count(group, entry, -1);
+                    if (entry.coalesceKey != null) {
+                        coalescing.remove(entry.coalesceKey, entry);
+                    }
+                    group.busy = true;
+                    place(group);
+                    return entry;
+                }
+                changed.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void done(Entry entry) {
+        lock.lock();
+        try {
+            Group group = groups.get(entry.groupId);
+            group.busy = false;
+            place(group);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size(boolean control) {
+        lock.lock();
+        try {
+            return control ? controlCount : infoCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isEmpty() {
+        lock.lock();
+        try {
+            return groups.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void count(Group group, Entry entry, int delta) {
+        if (entry.control) {
+            group.controls += delta;
+            controlCount += delta;
+        } else {
+            infoCount += delta;
+        }
+    }
+
+    //puts the group in the ready set of its priority, keeping its place if it is there already
+    private void place(Group group) {
+        boolean ready = !group.busy && !group.entries.isEmpty();
+        LinkedHashSet<Group> target = group.controls > 0 ? controlReady : infoReady;
+        LinkedHashSet<Group> other = target == controlReady ? infoReady : controlReady;
+        other.remove(group);
+        if (!ready) {
+            target.remove(group);
+            if (!group.busy) {
+                groups.remove(group.groupId);
+            }
+        } else if (target.add(group)) {
+            changed.signal();
+        }
+    }
+
+    private static Group first(LinkedHashSet<Group> ready) {
+        Iterator<Group> iterator = ready.iterator();
+        if (!iterator.hasNext()) {
+            return null;
+        }
+        Group group = iterator.next();
+        iterator.remove();
+        return group;
+    }
+}
@@ -0,0 +1,41 @@
+package cn.rongcloud.im.message;
+
+import cn.rongcloud.im.BaseMessage;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Member joins and leaves of a large room gathered over an interval, in the order they happened.
+ */
+public class MemberDigestMessage extends BaseMessage {
+    public static class Change {
+        private @Getter @Setter int action;
+        private @Getter @Setter String userId;
+        private @Getter @Setter String userName;
+        private @Getter @Setter int role;
+        private @Getter @Setter boolean camera;
+        private @Getter @Setter boolean microphone;
+        private @Getter @Setter Date timestamp;
+
+        public Change(MemberChangedMessage msg) {
+            this.action = msg.getAction();
+            this.userId = msg.getUserId();
+            this.userName = msg.getUserName();
+            this.role = msg.getRole();
+            this.camera = msg.isCamera();
+            this.microphone = msg.isMicrophone();
+            this.timestamp = msg.getTimestamp();
+        }
+    }
+
+    private @Getter @Setter List<Change> changes = new ArrayList<>();
+
+    @Override
+    public String getObjectName() {
+        return "SC:RMDMsg";
+    }
+}
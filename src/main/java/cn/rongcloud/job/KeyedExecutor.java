@@ -0,0 +1,100 @@
+package cn.rongcloud.job;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed pool running tasks of the same key one after another in submit order, while tasks
+ * of different keys run in parallel. A key holds no thread while it has nothing queued.
+ */
+@Slf4j
+public class KeyedExecutor {
+    private final ExecutorService workers;
+    private final int capacity;
+    private final ConcurrentHashMap<String, Queue<Runnable>> queues = new ConcurrentHashMap<>();
+    private final AtomicInteger pending = new AtomicInteger();
+
+    public KeyedExecutor(String name, int threads) {
+        AtomicInteger index = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, name + "-" + index.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.capacity = threads;
+    }
+
+    /**
+     * Runs on the given workers, e.g. a virtual thread per task, keys still run in order.
+     * Capacity is the number of tasks the workers are meant to hold at once.
+     */
+    public KeyedExecutor(ExecutorService workers, int capacity) {
+        this.workers = workers;
+        this.capacity = capacity;
+    }
+
+    public void execute(String key, Runnable task) {
+        pending.incrementAndGet();
+        boolean[] first = new boolean[1];
+        queues.compute(key, (k, queue) -> {
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                first[0] = true;
+            }
+            queue.add(task);
+            return queue;
+        });
+        if (first[0]) {
+            workers.execute(() -> drain(key));
+        }
+    }
+
+    /**
+     * Tasks submitted and not finished yet.
+     */
+    public int pendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * Tasks that can be submitted before the workers are all taken.
+     */
+    public int freeSlots() {
+        return Math.max(0, capacity - pending.get());
+    }
+
+    public void shutdown(long timeoutMs) throws InterruptedException {
+        workers.shutdown();
+        if (!workers.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS)) {
+            log.error("keyed executor not terminated, pending tasks: {}", pending.get());
+        }
+    }
+
+    private void drain(String key) {
+        while (true) {
+            Runnable[] next = new Runnable[1];
+            //the queue leaves the map once empty, so the next submit schedules a new drain
+            queues.computeIfPresent(key, (k, queue) -> {
+                next[0] = queue.poll();
+                return next[0] == null ? null : queue;
+            });
+            if (next[0] == null) {
+                return;
+            }
+            try {
+                next[0].run();
+            } catch (Exception e) {
+                log.error("keyed task error: key={}, {}", key, e.getMessage(), e);
+            } finally {
+                pending.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package cn.rongcloud.job;
+
+import cn.rongcloud.config.RoomProperties;
+import cn.rongcloud.pojo.ReqMemberOnlineStatus;
+import cn.rongcloud.pojo.RoomMember;
+import cn.rongcloud.room.RoomRegistry;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Presence of users from the online status webhook, which is answered at once. A status
+ * different from the one last applied waits presenceOfflineDwell or presenceOnlineDwell ms
+ * before it is applied; if the user switches back meanwhile the change is dropped as a flap,
+ * in memory, without a member lookup. Users with presenceFlapThreshold flaps within
+ * presenceFlapWindow ms wait presenceFlappingOfflineDwell ms before going offline.
+ *
+ * Every onlineStatusInterval ms the due changes are applied in batches of up to
+ * onlineStatusBatch users, with one member lookup per batch. Events older, by the time the IM
+ * server gives, than the latest one of the user are dropped.
+ *
+ * Dwell and flaps are kept per node, while the statuses of one user may reach different nodes.
+ * So every online status cancels the kick of the user at the next tick, all of a tick in one
+ * Redis round trip, and an offline status kicks only if no node saw the user online at or after
+ * its time, see {@link ScheduleManager#userIMOffline}.
+ */
+@Slf4j
+@Component
+public class OnlineStatusQueue {
+    //1：offline 离线； 0: online 在线
+    public static final int STATUS_UNKNOWN = -1;
+    public static final int STATUS_ONLINE = 0;
+    public static final int STATUS_OFFLINE = 1;
+    private static final long NO_TIME = -1;
+
+    private static class Presence {
+        //status last applied, unknown until the first change of this node is applied
+        int applied = STATUS_UNKNOWN;
+        //status waiting out its dwell time, unknown if none
+        int pending = STATUS_UNKNOWN;
+        long pendingSince;
+        //time of the event of the pending status, by the IM server if given
+        long pendingTime;
+        long appliedAt;
+        long lastEventTime = NO_TIME;
+        long lastEventAt;
+        int flaps;
+        long flapWindowStart;
+        long totalFlaps;
+    }
+
+    /**
+     * Presence of one user as this node sees it.
+     */
+    public static class UserPresence {
+        private final @Getter int status;
+        private final @Getter int pendingStatus;
+        private final @Getter Date since;
+        //flaps within the current window, and since the user was last forgotten
+        private final @Getter int flaps;
+        private final @Getter long totalFlaps;
+        private final @Getter boolean damped;
+
+        private UserPresence(Presence p, boolean damped) {
+            this.status = p.applied;
+            this.pendingStatus = p.pending;
+            this.since = p.appliedAt == 0 ? null : new Date(p.appliedAt);
+            this.flaps = p.flaps;
+            this.totalFlaps = p.totalFlaps;
+            this.damped = damped;
+        }
+    }
+
+    @Autowired
+    private RoomRegistry roomRegistry;
+
+    @Autowired
+    private ScheduleManager scheduleManager;
+
+    @Autowired
+    private RoomProperties roomProperties;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, Presence> presences = new HashMap<>();
+    //users with a pending status
+    private final Set<String> pendingUsers = new LinkedHashSet<>();
+    //latest online time of users online since the last tick
+    private Map<String, Long> onlineTimes = new HashMap<>();
+    private long lastEvict = System.currentTimeMillis();
+    private ScheduledExecutorService applier;
+    private DistributionSummary batchSize;
+    private Counter flapCounter;
+
+    public OnlineStatusQueue() {
+    }
+
+    OnlineStatusQueue(RoomRegistry roomRegistry, ScheduleManager scheduleManager, RoomProperties roomProperties, MeterRegistry meterRegistry) {
+        this.roomRegistry = roomRegistry;
+        this.scheduleManager = scheduleManager;
+        this.roomProperties = roomProperties;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    void init() {
+        batchSize = DistributionSummary.builder("sealclass.im.online.batch")
+                .description("users per applied batch of offline status changes")
+                .register(meterRegistry);
+        flapCounter = Counter.builder("sealclass.im.presence.flaps")
+                .description("online status changes dropped because the user switched back within the dwell time")
+                .register(meterRegistry);
+        Gauge.builder("sealclass.im.presence.users", this, OnlineStatusQueue::size)
+                .description("users with a presence kept on this node")
+                .register(meterRegistry);
+        applier = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "im-online-status");
+            t.setDaemon(true);
+            return t;
+        });
+        long interval = roomProperties.getOnlineStatusInterval();
+        applier.scheduleWithFixedDelay(() -> apply(false), interval, interval, TimeUnit.MILLISECONDS);
+        log.info("init OnlineStatusQueue: interval={}ms, batch={}, dwell offline={}ms online={}ms flapping={}ms",
+                interval, roomProperties.getOnlineStatusBatch(), roomProperties.getPresenceOfflineDwell(),
+                roomProperties.getPresenceOnlineDwell(), roomProperties.getPresenceFlappingOfflineDwell());
+    }
+
+    @PreDestroy
+    void destroy() {
+        applier.shutdownNow();
+        //pending changes are not lost, an offline user still gets kicked
+        apply(true);
+    }
+
+    public void offer(List<ReqMemberOnlineStatus> statusList) {
+        long now = System.currentTimeMillis();
+        int flaps = 0;
+        lock.lock();
+        try {
+            for (ReqMemberOnlineStatus entry : statusList) {
+                int status;
+                try {
+                    status = Integer.parseInt(entry.getStatus());
+                } catch (NumberFormatException e) {
+                    log.warn("memberOnlineStatus dropped: {}", entry);
+                    continue;
+                }
+                //logout is not acted on
+                if (entry.getUserId() == null || (status != STATUS_ONLINE && status != STATUS_OFFLINE)) {
+                    continue;
+                }
+                Presence p = presences.computeIfAbsent(entry.getUserId(), k -> new Presence());
+                long time = parseTime(entry.getTime());
+                if (time != NO_TIME && p.lastEventTime != NO_TIME && time < p.lastEventTime) {
+                    continue;
+                }
+                if (time != NO_TIME) {
+                    p.lastEventTime = time;
+                }
+                p.lastEventAt = now;
+                long eventTime = time != NO_TIME ? time : now;
+                if (status == STATUS_ONLINE) {
+                    onlineTimes.merge(entry.getUserId(), eventTime, Math::max);
+                }
+                if (p.pending == status) {
+                    continue;
+                }
+                if (p.pending != STATUS_UNKNOWN) {
+                    //switched back before the dwell time was over
+                    flap(p, now);
+                    flaps++;
+                    p.pending = STATUS_UNKNOWN;
+                    pendingUsers.remove(entry.getUserId());
+                }
+                if (status != p.applied) {
+                    p.pending = status;
+                    p.pendingSince = now;
+                    p.pendingTime = eventTime;
+                    pendingUsers.add(entry.getUserId());
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (flaps > 0) {
+            flapCounter.increment(flaps);
+        }
+    }
+
+    /**
+     * @return presence of the user on this node, null if the user sent no status within presenceFlapWindow
+     */
+    public UserPresence getPresence(String userId) {
+        long now = System.currentTimeMillis();
+        lock.lock();
+        try {
+            Presence p = presences.get(userId);
+            if (p == null) {
+                return null;
+            }
+            rollWindow(p, now);
+            return new UserPresence(p, isFlapping(p));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int size() {
+        lock.lock();
+        try {
+            return presences.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void apply(boolean all) {
+        //offline users due, with the time they went offline
+        Map<String, Long> due = new LinkedHashMap<>();
+        Map<String, Long> online;
+        long now = System.currentTimeMillis();
+        lock.lock();
+        try {
+            online = onlineTimes;
+            onlineTimes = new HashMap<>();
+            Iterator<String> iterator = pendingUsers.iterator();
+            while (iterator.hasNext()) {
+                String userId = iterator.next();
+                Presence p = presences.get(userId);
+                rollWindow(p, now);
+                if (!all && now - p.pendingSince < dwell(p)) {
+                    continue;
+                }
+                if (p.pending == STATUS_OFFLINE) {
+                    due.put(userId, p.pendingTime);
+                }
+                p.applied = p.pending;
+                p.appliedAt = now;
+                p.pending = STATUS_UNKNOWN;
+                iterator.remove();
+            }
+            evict(now);
+        } finally {
+            lock.unlock();
+        }
+
+        //cancels first, an offline status of another node before them then kicks nobody
+        if (!online.isEmpty()) {
+            try {
+                scheduleManager.usersIMOnline(online);
+            } catch (Exception e) {
+                log.error("memberOnlineStatus cancel kicks error: users={}, {}", online.size(), e.getMessage(), e);
+            }
+        }
+        int max = Math.max(1, roomProperties.getOnlineStatusBatch());
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(due.entrySet());
+        for (int from = 0; from < entries.size(); from += max) {
+            try {
+                applyBatch(entries.subList(from, Math.min(entries.size(), from + max)));
+            } catch (Exception e) {
+                log.error("memberOnlineStatus apply error: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    private void applyBatch(List<Map.Entry<String, Long>> batch) {
+        List<String> offline = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : batch) {
+            offline.add(entry.getKey());
+        }
+        Set<String> inRoom = new HashSet<>();
+        for (RoomMember member : roomRegistry.getMembersByUids(offline)) {
+            inRoom.add(member.getUid());
+        }
+
+        for (Map.Entry<String, Long> entry : batch) {
+            String userId = entry.getKey();
+            log.debug("memberOnlineStatus offline, userId={}, time={}", userId, entry.getValue());
+            if (inRoom.contains(userId)) {
+                scheduleManager.userIMOffline(userId, entry.getValue());
+            }
+        }
+        batchSize.record(batch.size());
+        log.info("memberOnlineStatus applied: offline={}, inRoom={}", batch.size(), inRoom.size());
+    }
+
+    private long dwell(Presence p) {
+        if (p.pending == STATUS_ONLINE) {
+            return roomProperties.getPresenceOnlineDwell();
+        }
+        return isFlapping(p) ? roomProperties.getPresenceFlappingOfflineDwell() : roomProperties.getPresenceOfflineDwell();
+    }
+
+    private boolean isFlapping(Presence p) {
+        return p.flaps >= roomProperties.getPresenceFlapThreshold();
+    }
+
+    private void flap(Presence p, long now) {
+        rollWindow(p, now);
+        p.flaps++;
+        p.totalFlaps++;
+    }
+
+    private void rollWindow(Presence p, long now) {
+        if (now - p.flapWindowStart >= roomProperties.getPresenceFlapWindow()) {
+            p.flaps = 0;
+            p.flapWindowStart = now;
+        }
+    }
+
+    //users without a status for a flap window are forgotten, their next status is applied as for a new user
+    private void evict(long now) {
+        long window = roomProperties.getPresenceFlapWindow();
+        if (now - lastEvict < window) {
+            return;
+        }
+        lastEvict = now;
+        Iterator<Presence> iterator = presences.values().iterator();
+        while (iterator.hasNext()) {
+            Presence p = iterator.next();
+            if (p.pending == STATUS_UNKNOWN && now - p.lastEventAt >= window) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static long parseTime(String time) {
+        try {
+            return time == null ? NO_TIME : Long.parseLong(time);
+        } catch (NumberFormatException e) {
+            return NO_TIME;
+        }
+    }
+}
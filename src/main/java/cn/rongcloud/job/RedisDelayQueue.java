@@ -0,0 +1,192 @@
+package cn.rongcloud.job;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Delay queue in a Redis sorted set scored by due time, shared by every node. Any node may
+ * offer or cancel an entry, and pollers on every node claim due entries in batches with one
+ * script call. A claimed entry is not removed but leased: its score moves leaseMs ahead, so
+ * if the claiming node dies before ack the entry comes due again on another node. A callback
+ * renews the lease when it starts and skips the entry if it was claimed again, offered again or
+ * cancelled meanwhile; one running longer than the lease may still overlap another node.
+ *
+ * An entry cancelled for an event, with the time of the event, leaves that time in a guard key
+ * beside the queue; an offer for an earlier event, from any node, does not add it again. The
+ * scripts touch the queue and the guard keys together, which needs a standalone Redis.
+ */
+@Slf4j
+public class RedisDelayQueue {
+    public static class Entry {
+        final String member;
+        final long due;
+        long lease;
+
+        Entry(String member, long due, long lease) {
+            this.member = member;
+            this.due = due;
+            this.lease = lease;
+        }
+
+        public String getMember() {
+            return member;
+        }
+
+        public long getDue() {
+            return due;
+        }
+    }
+
+    //returns member, score pairs of the due entries, which are leased until ARGV[3]
+    private static final String CLAIM_SCRIPT =
+            "local due = redis.call('ZRANGEBYSCORE', KEYS[1], '-inf', ARGV[1], 'WITHSCORES', 'LIMIT', 0, ARGV[2]) " +
+            "for i = 1, #due, 2 do redis.call('ZADD', KEYS[1], ARGV[3], due[i]) end " +
+            "return due";
+
+    //adds the entry unless the guard key holds a time at or after the one of the offer
+    private static final String OFFER_AFTER_SCRIPT =
+            "local cancelled = redis.call('GET', KEYS[2]) " +
+            "if cancelled and tonumber(cancelled) >= tonumber(ARGV[3]) then return 0 end " +
+            "redis.call('ZADD', KEYS[1], ARGV[2], ARGV[1]) " +
+            "return 1";
+
+    //removes the entry and keeps the later of the guarded time and ARGV[2] for ARGV[3] ms
+    private static final byte[] CANCEL_AT_SCRIPT = (
+            "local cancelled = redis.call('GET', KEYS[2]) " +
+            "if not cancelled or tonumber(cancelled) < tonumber(ARGV[2]) then " +
+            "redis.call('SET', KEYS[2], ARGV[2], 'PX', ARGV[3]) end " +
+            "return redis.call('ZREM', KEYS[1], ARGV[1])").getBytes(StandardCharsets.UTF_8);
+
+    //moves the lease to ARGV[3] if the entry is still leased until ARGV[2]
+    private static final String RENEW_SCRIPT =
+            "if tonumber(redis.call('ZSCORE', KEYS[1], ARGV[1])) == tonumber(ARGV[2]) then " +
+            "redis.call('ZADD', KEYS[1], ARGV[3], ARGV[1]) return 1 end " +
+            "return 0";
+
+    private static final String OFFER_IF_ABSENT_SCRIPT =
+            "if redis.call('ZSCORE', KEYS[1], ARGV[1]) then return 0 end " +
+            "return redis.call('ZADD', KEYS[1], ARGV[2], ARGV[1])";
+
+    //removes the entry unless it was offered again after the claim
+    private static final String ACK_SCRIPT =
+            "if tonumber(redis.call('ZSCORE', KEYS[1], ARGV[1])) == tonumber(ARGV[2]) then " +
+            "return redis.call('ZREM', KEYS[1], ARGV[1]) end " +
+            "return 0";
+
+    private final StringRedisTemplate redisTemplate;
+    private final String key;
+    private final long leaseMs;
+    @SuppressWarnings("unchecked")
+    private final DefaultRedisScript<List> claimScript = new DefaultRedisScript<>(CLAIM_SCRIPT, List.class);
+    private final DefaultRedisScript<Long> offerAfterScript = new DefaultRedisScript<>(OFFER_AFTER_SCRIPT, Long.class);
+    private final DefaultRedisScript<Long> offerIfAbsentScript = new DefaultRedisScript<>(OFFER_IF_ABSENT_SCRIPT, Long.class);
+    private final DefaultRedisScript<Long> ackScript = new DefaultRedisScript<>(ACK_SCRIPT, Long.class);
+    private final DefaultRedisScript<Long> renewScript = new DefaultRedisScript<>(RENEW_SCRIPT, Long.class);
+
+    public RedisDelayQueue(StringRedisTemplate redisTemplate, String name, long leaseMs) {
+        this.redisTemplate = redisTemplate;
+        this.key = "sealclass:delay:" + name;
+        this.leaseMs = leaseMs;
+    }
+
+    /**
+     * Adds the entry, or moves it to the new due time if it exists.
+     */
+    public void offer(String member, long dueMillis) {
+        redisTemplate.opsForZSet().add(key, member, dueMillis);
+    }
+
+    /**
+     * Adds the entry unless it is queued or being processed already.
+     */
+    public boolean offerIfAbsent(String member, long dueMillis) {
+        Long added = redisTemplate.execute(offerIfAbsentScript, Collections.singletonList(key), member, String.valueOf(dueMillis));
+        return added != null && added == 1;
+    }
+
+    /**
+     * Adds the entry for an event at time, unless it was cancelled for an event at or after it.
+     */
+    public boolean offer(String member, long dueMillis, long time) {
+        Long added = redisTemplate.execute(offerAfterScript, Arrays.asList(key, guardKey(member)),
+                member, String.valueOf(dueMillis), String.valueOf(time));
+        return added != null && added == 1;
+    }
+
+    public void cancel(String member) {
+        redisTemplate.opsForZSet().remove(key, member);
+    }
+
+    /**
+     * Removes the entries, each for an event at the time given, in one round trip. For guardMs
+     * an offer for an earlier event does not add the entry again.
+     */
+    public void cancel(Map<String, Long> times, long guardMs) {
+        if (times.isEmpty()) {
+            return;
+        }
+        byte[] queueKey = key.getBytes(StandardCharsets.UTF_8);
+        byte[] ttl = String.valueOf(guardMs).getBytes(StandardCharsets.UTF_8);
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Map.Entry<String, Long> entry : times.entrySet()) {
+                connection.eval(CANCEL_AT_SCRIPT, ReturnType.INTEGER, 2, queueKey,
+                        guardKey(entry.getKey()).getBytes(StandardCharsets.UTF_8),
+                        entry.getKey().getBytes(StandardCharsets.UTF_8),
+                        String.valueOf(entry.getValue()).getBytes(StandardCharsets.UTF_8), ttl);
+            }
+            return null;
+        });
+    }
+
+    public List<Entry> claim(int batch) {
+        long now = System.currentTimeMillis();
+        List<?> due = redisTemplate.execute(claimScript, Collections.singletonList(key),
+                String.valueOf(now), String.valueOf(batch), String.valueOf(now + leaseMs));
+        if (due == null || due.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Entry> entries = new ArrayList<>(due.size() / 2);
+        for (int i = 0; i + 1 < due.size(); i += 2) {
+            entries.add(new Entry((String) due.get(i), (long) Double.parseDouble((String) due.get(i + 1)), now + leaseMs));
+        }
+        return entries;
+    }
+
+    private String guardKey(String member) {
+        return key + ":cancelled:" + member;
+    }
+
+    /**
+     * Extends the lease of a claimed entry by leaseMs from now.
+     *
+     * @return false if the entry is no longer leased by this claim, it must not run then
+     */
+    public boolean renew(Entry entry) {
+        long lease = System.currentTimeMillis() + leaseMs;
+        Long renewed = redisTemplate.execute(renewScript, Collections.singletonList(key), entry.member,
+                String.valueOf(entry.lease), String.valueOf(lease));
+        if (renewed == null || renewed != 1) {
+            return false;
+        }
+        entry.lease = lease;
+        return true;
+    }
+
+    public void ack(Entry entry) {
+        try {
+            redisTemplate.execute(ackScript, Collections.singletonList(key), entry.member, String.valueOf(entry.lease));
+        } catch (Exception e) {
+            log.error("delay queue ack error: key={}, member={}, {}", key, entry.member, e.getMessage());
+        }
+    }
+}
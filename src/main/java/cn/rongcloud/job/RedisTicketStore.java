@@ -0,0 +1,150 @@
+package cn.rongcloud.job;
+
+import cn.rongcloud.pojo.ControlDeviceTaskInfo;
+import cn.rongcloud.pojo.ScheduledTaskInfo;
+import cn.rongcloud.pojo.UpgradeRoleTaskInfo;
+import com.alibaba.fastjson.JSON;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Apply tickets in Redis, so a ticket issued on one node can be approved on any other.
+ * A ticket is kept under a data key and in a sorted set scored by its due time. Removing a
+ * ticket not due yet claims both in one script call, and so does the poller of every node for
+ * the due ones, in batches, so each ticket is either executed or expired, once in the whole
+ * cluster. The data key outlives the due time by a grace period and is dropped by Redis if no
+ * poller is left to claim it.
+ *
+ * The poll script reads data keys it is not given as keys, which needs a standalone Redis.
+ */
+@Slf4j
+public class RedisTicketStore implements TicketStore<ScheduledTaskInfo> {
+    private static final String DATA_PREFIX = "sealclass:ticket:data:";
+    private static final String DUE_KEY = "sealclass:ticket:due";
+    private static final long DATA_GRACE_MS = 60000;
+
+    private static final String ADD_SCRIPT =
+            "if redis.call('SET', KEYS[2], ARGV[2], 'NX', 'PX', ARGV[4]) then " +
+            "redis.call('ZADD', KEYS[1], ARGV[3], ARGV[1]) return 1 end " +
+            "return 0";
+
+    //claims a ticket not due at ARGV[2]
+    private static final String CLAIM_SCRIPT =
+            "local due = redis.call('ZSCORE', KEYS[1], ARGV[1]) " +
+            "if not due or tonumber(due) <= tonumber(ARGV[2]) then return false end " +
+            "redis.call('ZREM', KEYS[1], ARGV[1]) " +
+            "local v = redis.call('GET', KEYS[2]) " +
+            "redis.call('DEL', KEYS[2]) " +
+            "return v";
+
+    //claims up to ARGV[2] tickets due at ARGV[1], returns ticket, data pairs
+    private static final String EXPIRE_SCRIPT =
+            "local due = redis.call('ZRANGEBYSCORE', KEYS[1], '-inf', ARGV[1], 'LIMIT', 0, ARGV[2]) " +
+            "local expired = {} " +
+            "for i = 1, #due do " +
+            "redis.call('ZREM', KEYS[1], due[i]) " +
+            "local v = redis.call('GET', ARGV[3] .. due[i]) " +
+            "if v then redis.call('DEL', ARGV[3] .. due[i]) " +
+            "expired[#expired + 1] = due[i] expired[#expired + 1] = v end " +
+            "end " +
+            "return {#due, expired}";
+
+    private static final Map<String, Class<? extends ScheduledTaskInfo>> TYPES = new HashMap<>();
+
+    static {
+        for (Class<? extends ScheduledTaskInfo> type : Arrays.asList(ScheduledTaskInfo.class, ControlDeviceTaskInfo.class, UpgradeRoleTaskInfo.class)) {
+            TYPES.put(type.getSimpleName(), type);
+        }
+    }
+
+    private final StringRedisTemplate redisTemplate;
+    private final Consumer<ScheduledTaskInfo> onExpired;
+    private final int batch;
+    private final DefaultRedisScript<Long> addScript = new DefaultRedisScript<>(ADD_SCRIPT, Long.class);
+    private final DefaultRedisScript<String> claimScript = new DefaultRedisScript<>(CLAIM_SCRIPT, String.class);
+    @SuppressWarnings("unchecked")
+    private final DefaultRedisScript<List> expireScript = new DefaultRedisScript<>(EXPIRE_SCRIPT, List.class);
+    private final ScheduledExecutorService poller;
+
+    public RedisTicketStore(StringRedisTemplate redisTemplate, long pollMs, int batch, Consumer<ScheduledTaskInfo> onExpired) {
+        this.redisTemplate = redisTemplate;
+        this.onExpired = onExpired;
+        this.batch = Math.max(1, batch);
+        this.poller = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ticket-expiry");
+            t.setDaemon(true);
+            return t;
+        });
+        poller.scheduleWithFixedDelay(this::poll, pollMs, pollMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public boolean add(String ticket, ScheduledTaskInfo value, long delayMs) {
+        String data = value.getClass().getSimpleName() + "|" + JSON.toJSONString(value);
+        Long added = redisTemplate.execute(addScript, Arrays.asList(DUE_KEY, DATA_PREFIX + ticket), ticket, data,
+                String.valueOf(System.currentTimeMillis() + delayMs), String.valueOf(delayMs + DATA_GRACE_MS));
+        return added != null && added == 1;
+    }
+
+    @Override
+    public ScheduledTaskInfo remove(String ticket) {
+        String data = redisTemplate.execute(claimScript, Arrays.asList(DUE_KEY, DATA_PREFIX + ticket),
+                ticket, String.valueOf(System.currentTimeMillis()));
+        return data == null ? null : parse(ticket, data);
+    }
+
+    @Override
+    public void close() {
+        poller.shutdownNow();
+    }
+
+    //every node polls, only the one claiming a ticket reports it
+    void poll() {
+        try {
+            int claimed;
+            do {
+                List<?> result = redisTemplate.execute(expireScript, Collections.singletonList(DUE_KEY),
+                        String.valueOf(System.currentTimeMillis()), String.valueOf(batch), DATA_PREFIX);
+                if (result == null || result.size() < 2) {
+                    return;
+                }
+                claimed = ((Number) result.get(0)).intValue();
+                List<?> expired = (List<?>) result.get(1);
+                for (int i = 0; i + 1 < expired.size(); i += 2) {
+                    String ticket = (String) expired.get(i);
+                    try {
+                        ScheduledTaskInfo task = parse(ticket, (String) expired.get(i + 1));
+                        if (task != null) {
+                            onExpired.accept(task);
+                        }
+                    } catch (Exception e) {
+                        log.error("ticket expired callback error: ticket={}, {}", ticket, e.getMessage(), e);
+                    }
+                }
+            } while (claimed == batch);
+        } catch (Exception e) {
+            log.error("poll expired tickets error: {}", e.getMessage());
+        }
+    }
+
+    private ScheduledTaskInfo parse(String ticket, String data) {
+        int index = data.indexOf('|');
+        Class<? extends ScheduledTaskInfo> type = TYPES.get(data.substring(0, index));
+        if (type == null) {
+            log.error("unknown ticket type: ticket={}, {}", ticket, data);
+            return null;
+        }
+        return JSON.parseObject(data.substring(index + 1), type);
+    }
+}
@@ -3,31 +3,56 @@ package cn.rongcloud.job;
 import cn.rongcloud.common.ApiException;
 import cn.rongcloud.common.ErrorEnum;
 import cn.rongcloud.config.RoomProperties;
+import cn.rongcloud.config.WebProperties;
 import cn.rongcloud.config.WhiteBoardProperties;
 import cn.rongcloud.dao.RoomDao;
-import cn.rongcloud.dao.RoomMemberDao;
-import cn.rongcloud.im.IMHelper;
+import cn.rongcloud.im.MessageDispatcher;
 import cn.rongcloud.im.message.TicketExpiredMessage;
 import cn.rongcloud.pojo.ScheduledTaskInfo;
 import cn.rongcloud.service.RoomService;
+import cn.rongcloud.utils.DateTimeUtils;
+import cn.rongcloud.utils.VirtualThreads;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.scheduling.annotation.SchedulingConfigurer;
-import org.springframework.scheduling.config.ScheduledTask;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
 import org.springframework.scheduling.config.ScheduledTaskRegistrar;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 /**
+ * Timers of the rooms. Timer threads (the Spring scheduler and the ticket store) only hand
+ * due callbacks to a bounded worker pool; callbacks of the same room run in order, so a slow
+ * callback never delays the expiry of another room.
+ *
+ * Room expiry and offline kicks wait in Redis delay queues polled by every node, so a node
+ * may enqueue work another node runs, and work of a lost node is picked up by the others.
+ * Rooms are not timed one by one: a sweep picks the rooms older than roomTtl from t_room in
+ * create_dt order and queues them for destroy, so expiry survives a restart.
+ *
  * Created by weiqinxiao on 2019/3/15.
  */
 @Slf4j
 @Service
 public class ScheduleManager implements SchedulingConfigurer {
-    private ScheduledTaskRegistrar taskRegistrar;
+    private static final String ROOM_SWEEPER = "room-sweeper";
+    private static final String DELAY_POLLER = "delay-poller";
+
+    private ThreadPoolTaskScheduler taskScheduler;
+    private KeyedExecutor callbackExecutor;
+    private Timer lagTimer;
 
     @Autowired
     RoomProperties roomProperties;
@@ -36,94 +61,184 @@ public class ScheduleManager implements SchedulingConfigurer {
     WhiteBoardProperties whiteBoardProperties;
 
     @Autowired
-    IMHelper imHelper;
+    WebProperties webProperties;
 
     @Autowired
-    RoomMemberDao roomMemberDao;
+    MessageDispatcher messageDispatcher;
+
+    @Autowired
+    RoomService roomService;
 
     @Autowired
     RoomDao roomDao;
 
     @Autowired
-    RoomService roomService;
+    StringRedisTemplate stringRedisTemplate;
 
-    private ConcurrentHashMap<String, ScheduledTask> schedulingTasks = new ConcurrentHashMap<>();
-    private ConcurrentHashMap<String, ScheduledTask> roomCacheTasks = new ConcurrentHashMap<>();
-    private ConcurrentHashMap<String, Date> userIMOfflineMap = new ConcurrentHashMap<>();
-    private ScheduledDelayTask userIMOfflineKickTask = new ScheduledDelayTask(new Runnable() {
-        @Override
-        public void run() {
-            for (Map.Entry<String, Date> entry : userIMOfflineMap.entrySet()) {
-                long currentTimeMillis = System.currentTimeMillis();
-                log.info("userIMOfflineKickTask entry={}, currentTimeMillis={}", entry.getValue().getTime(), currentTimeMillis);
-                if (currentTimeMillis - entry.getValue().getTime() > roomProperties.getUserIMOfflineKickTtl()) {
-                    userIMOfflineMap.remove(entry.getKey());
-                    roomService.userIMOfflineKick(entry.getKey());
-                }
-            }
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    private TicketStore<ScheduledTaskInfo> ticketStore;
+    private RedisDelayQueue roomExpiryQueue;
+    private RedisDelayQueue offlineKickQueue;
+
+    @PostConstruct
+    private void init() {
+        taskScheduler = new ThreadPoolTaskScheduler();
+        taskScheduler.setPoolSize(1);
+        taskScheduler.setThreadNamePrefix("schedule-dispatch-");
+        taskScheduler.setRemoveOnCancelPolicy(true);
+        taskScheduler.initialize();
+        ExecutorService virtualWorkers = webProperties.isVirtualThreads() ? VirtualThreads.newThreadPerTaskExecutor("schedule-worker-") : null;
+        if (virtualWorkers != null) {
+            callbackExecutor = new KeyedExecutor(virtualWorkers, Math.max(1, roomProperties.getDelayPollBatch()));
+            log.info("timer callbacks run on virtual threads");
+        } else {
+            callbackExecutor = new KeyedExecutor("schedule-worker", Math.max(1, roomProperties.getScheduleThreads()));
         }
-    }, 60000, 60000, null);
+
+        lagTimer = Timer.builder("sealclass.schedule.lag")
+                .description("time from a timer due to its callback starting")
+                .register(meterRegistry);
+        Gauge.builder("sealclass.schedule.queue", callbackExecutor, KeyedExecutor::pendingCount)
+                .description("timer callbacks waiting or running")
+                .register(meterRegistry);
+
+        Consumer<ScheduledTaskInfo> onExpired = task -> dispatch(task.getRoomId(), System.currentTimeMillis(), () -> onTicketExpired(task));
+        if (roomProperties.isTicketLocal()) {
+            TicketWheel<ScheduledTaskInfo> ticketWheel = new TicketWheel<>("ticket-wheel", roomProperties.getTicketTickMs(),
+                    roomProperties.getTicketWheelSize(), roomProperties.getMaxTickets(), onExpired);
+            Gauge.builder("sealclass.schedule.tickets", ticketWheel, TicketWheel::size)
+                    .description("apply tickets pending")
+                    .register(meterRegistry);
+            ticketStore = ticketWheel;
+            log.info("init ticket wheel: tickMs={}, wheelSize={}, maxTickets={}", roomProperties.getTicketTickMs(), roomProperties.getTicketWheelSize(), roomProperties.getMaxTickets());
+        } else {
+            ticketStore = new RedisTicketStore(stringRedisTemplate, roomProperties.getDelayPollInterval(),
+                    roomProperties.getDelayPollBatch(), onExpired);
+            log.info("init redis ticket store: pollInterval={}ms", roomProperties.getDelayPollInterval());
+        }
+
+        roomExpiryQueue = new RedisDelayQueue(stringRedisTemplate, "room-expiry", roomProperties.getDelayLease());
+        offlineKickQueue = new RedisDelayQueue(stringRedisTemplate, "offline-kick", roomProperties.getDelayLease());
+        long pollInterval = roomProperties.getDelayPollInterval();
+        taskScheduler.scheduleWithFixedDelay(() -> dispatch(DELAY_POLLER, System.currentTimeMillis(), this::pollDelayQueues),
+                new Date(System.currentTimeMillis() + pollInterval), pollInterval);
+
+        long sweepInterval = roomProperties.getRoomSweepInterval();
+        taskScheduler.scheduleWithFixedDelay(() -> dispatch(ROOM_SWEEPER, System.currentTimeMillis(), this::sweepExpiredRooms),
+                new Date(System.currentTimeMillis() + sweepInterval), sweepInterval);
+    }
+
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        ticketStore.close();
+        taskScheduler.shutdown();
+        callbackExecutor.shutdown(10000);
+    }
 
     @Override
     public void configureTasks(ScheduledTaskRegistrar scheduledTaskRegistrar) {
-        scheduledTaskRegistrar.scheduleFixedDelayTask(userIMOfflineKickTask);
-        this.taskRegistrar = scheduledTaskRegistrar;
-        log.info("config schedule: taskTtl = {}, roomTtl={}, roomMaxCount={}, ", roomProperties.getTaskTtl(), roomProperties.getRoomTtl(), roomProperties.getMaxCount());
+        scheduledTaskRegistrar.setTaskScheduler(taskScheduler);
+        log.info("config schedule: taskTtl = {}, roomTtl={}, roomMaxCount={}, scheduleThreads={}", roomProperties.getTaskTtl(), roomProperties.getRoomTtl(), roomProperties.getMaxCount(), roomProperties.getScheduleThreads());
         log.info("config whiteboard: host={}", whiteBoardProperties.getHost());
     }
 
-    public void userIMOffline(String userId) {
-        userIMOfflineMap.put(userId, new Date());
+    private void dispatch(String key, long dueMillis, Runnable callback) {
+        callbackExecutor.execute(key, () -> {
+            lagTimer.record(Math.max(0, System.currentTimeMillis() - dueMillis), TimeUnit.MILLISECONDS);
+            callback.run();
+        });
     }
 
-    public void userIMOnline(String userId) {
-        userIMOfflineMap.remove(userId);
+    /**
+     * Kicks the user after userIMOfflineKickTtl, unless an online status at or after time
+     * reached any node already.
+     */
+    public void userIMOffline(String userId, long time) {
+        offlineKickQueue.offer(userId, System.currentTimeMillis() + roomProperties.getUserIMOfflineKickTtl(), time);
     }
 
-    public void addExpiredTask(RoomService roomService, String roomId) {
-        log.info("addExpiredTask destroyRoom: {}", roomId);
-        ScheduledTask task = taskRegistrar.scheduleFixedDelayTask(new ScheduledDelayTask(new Runnable() {
-            @Override
-            public void run() {
-                ScheduledTask task = roomCacheTasks.remove(roomId);
-                task.cancel();
-                roomService.destroyRoom(roomId);
+    /**
+     * Cancels the kicks of users online at the times given; an offline status from before them,
+     * applied later on another node, does not kick them within presenceFlapWindow.
+     */
+    public void usersIMOnline(Map<String, Long> times) {
+        offlineKickQueue.cancel(times, roomProperties.getPresenceFlapWindow());
+    }
 
+    private void sweepExpiredRooms() {
+        Date deadline = new Date(DateTimeUtils.currentUTC().getTime() - roomProperties.getRoomTtl());
+        List<String> roomIds = roomDao.findRidByCreateDtBefore(deadline, roomProperties.getRoomSweepBatch());
+        int count = 0;
+        long now = System.currentTimeMillis();
+        for (String roomId : roomIds) {
+            //every node sweeps, a room queued or being destroyed is not queued again
+            if (roomExpiryQueue.offerIfAbsent(roomId, now)) {
+                count++;
             }
-        }, roomProperties.getRoomTtl() * 10, roomProperties.getRoomTtl(), null));
-        roomCacheTasks.put(roomId, task);
+        }
+        if (count > 0) {
+            log.info("sweep expired rooms: count={}, deadline={}", count, deadline);
+        }
     }
 
-    public void addTask(ScheduledTaskInfo task) {
-        log.info("add speech task: {}", task);
-        schedulingTasks.put(task.getTicket(), taskRegistrar.scheduleFixedDelayTask(new ScheduledDelayTask(new Runnable() {
-            @Override
-            public void run() {
-                log.info("speech task expired, execute task: {}", task);
-                TicketExpiredMessage msg = new TicketExpiredMessage();
-                msg.setFromUserId(task.getApplyUserId());
-                msg.setToUserId(task.getTargetUserId());
-                msg.setTicket(task.getTicket());
+    private void pollDelayQueues() {
+        poll(roomExpiryQueue, roomId -> {
+            log.info("room expired, destroyRoom: {}", roomId);
+            roomService.destroyRoom(roomId);
+        });
+        poll(offlineKickQueue, roomService::userIMOfflineKick);
+    }
+
+    /**
+     * Claims no more entries than the workers can start, the rest stays queued for the next poll
+     * or another node, instead of outliving its lease here behind the others.
+     */
+    private void poll(RedisDelayQueue queue, Consumer<String> callback) {
+        //the slot of this poll is free again once it returns
+        int free = Math.min(roomProperties.getDelayPollBatch(), callbackExecutor.freeSlots() + 1);
+        if (free <= 0) {
+            return;
+        }
+        for (RedisDelayQueue.Entry entry : queue.claim(free)) {
+            dispatch(entry.getMember(), entry.getDue(), () -> {
+                if (!queue.renew(entry)) {
+                    log.info("delay entry claimed again or cancelled, skipped: {}", entry.getMember());
+                    return;
+                }
                 try {
-                    imHelper.publishMessage(task.getTargetUserId(), task.getRoomId(), msg);
-                } catch (Exception e) {
-                    log.error("msg send error: {}", e.getMessage());
+                    callback.accept(entry.getMember());
+                } finally {
+                    queue.ack(entry);
                 }
-                ScheduledTask scheduledTask = schedulingTasks.remove(task.getTicket());
-                scheduledTask.cancel();
-            }
-        }, roomProperties.getTaskTtl() * 60, roomProperties.getTaskTtl(), task)));
+            });
+        }
+    }
+
+    public void addTask(ScheduledTaskInfo task) {
+        log.info("add speech task: {}", task);
+        if (!ticketStore.add(task.getTicket(), task, roomProperties.getTaskTtl())) {
+            log.error("add speech task rejected: {}", task);
+            throw new ApiException(ErrorEnum.ERR_TICKET_OVER_LIMIT);
+        }
+    }
+
+    private void onTicketExpired(ScheduledTaskInfo task) {
+        log.info("speech task expired, execute task: {}", task);
+        TicketExpiredMessage msg = new TicketExpiredMessage();
+        msg.setFromUserId(task.getApplyUserId());
+        msg.setToUserId(task.getTargetUserId());
+        msg.setTicket(task.getTicket());
+        messageDispatcher.dispatch(task.getTargetUserId(), task.getRoomId(), msg);
     }
 
     public ScheduledTaskInfo executeTask(String key) {
-        ScheduledTask scheduledTask = schedulingTasks.remove(key);
-        if (scheduledTask == null) {
+        ScheduledTaskInfo taskInfo = ticketStore.remove(key);
+        if (taskInfo == null) {
             log.error("task not exist: key={}", key);
             throw new ApiException(ErrorEnum.ERR_APPLY_TICKET_INVALID);
         }
-        ScheduledDelayTask task = (ScheduledDelayTask)scheduledTask.getTask();
-        ScheduledTaskInfo taskInfo = task.getScheduledTaskInfo();
-        scheduledTask.cancel();
         log.info("execute speech task: {}", taskInfo);
         return taskInfo;
     }
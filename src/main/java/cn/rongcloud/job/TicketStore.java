@@ -0,0 +1,18 @@
+package cn.rongcloud.job;
+
+/**
+ * Pending apply tickets. A ticket is taken out exactly once, either by remove or by expiry.
+ */
+public interface TicketStore<T> {
+    /**
+     * @return false if the store is full or the ticket exists
+     */
+    boolean add(String ticket, T value, long delayMs);
+
+    /**
+     * @return the value of the ticket, null if it does not exist or has expired
+     */
+    T remove(String ticket);
+
+    void close();
+}
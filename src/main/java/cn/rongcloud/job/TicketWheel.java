@@ -0,0 +1,146 @@
+package cn.rongcloud.job;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel holding apply tickets until they are executed or expire. A ticket sits
+ * in the bucket of its deadline tick together with the revolutions it still has to wait, so
+ * add, remove and expiry are O(1) and one ticker thread serves any number of tickets.
+ * The wheel refuses tickets beyond maxTickets.
+ */
+@Slf4j
+public class TicketWheel<T> implements TicketStore<T> {
+    private static class Node<T> {
+        final String ticket;
+        final T value;
+        final int bucket;
+        long rounds;
+        Node<T> prev;
+        Node<T> next;
+
+        Node(String ticket, T value, int bucket, long rounds) {
+            this.ticket = ticket;
+            this.value = value;
+            this.bucket = bucket;
+            this.rounds = rounds;
+        }
+    }
+
+    private final long tickMs;
+    private final int maxTickets;
+    private final Consumer<T> onExpired;
+    private final Node<T>[] buckets;
+    private final Map<String, Node<T>> nodes = new HashMap<>();
+    private final Thread ticker;
+    private long tick;
+    private volatile boolean running = true;
+
+    @SuppressWarnings("unchecked")
+    public TicketWheel(String name, long tickMs, int wheelSize, int maxTickets, Consumer<T> onExpired) {
+        this.tickMs = tickMs;
+        this.maxTickets = maxTickets;
+        this.onExpired = onExpired;
+        this.buckets = (Node<T>[]) new Node[wheelSize];
+        this.ticker = new Thread(this::run, name);
+        this.ticker.setDaemon(true);
+        this.ticker.start();
+    }
+
+    @Override
+    public synchronized boolean add(String ticket, T value, long delayMs) {
+        if (nodes.size() >= maxTickets || nodes.containsKey(ticket)) {
+            return false;
+        }
+        long ticks = Math.max(1, (delayMs + tickMs - 1) / tickMs);
+        int bucket = (int) ((tick + ticks) % buckets.length);
+        Node<T> node = new Node<>(ticket, value, bucket, (ticks - 1) / buckets.length);
+        node.next = buckets[bucket];
+        if (node.next != null) {
+            node.next.prev = node;
+        }
+        buckets[bucket] = node;
+        nodes.put(ticket, node);
+        return true;
+    }
+
+    @Override
+    public synchronized T remove(String ticket) {
+        Node<T> node = nodes.remove(ticket);
+        if (node == null) {
+            return null;
+        }
+        unlink(node);
+        return node.value;
+    }
+
+    public synchronized int size() {
+        return nodes.size();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        ticker.interrupt();
+    }
+
+    private void run() {
+        long tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMs);
+        long deadline = System.nanoTime();
+        while (running) {
+            deadline += tickNanos;
+            long wait;
+            while (running && (wait = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, wait);
+            }
+            if (!running) {
+                return;
+            }
+            for (T value : advance()) {
+                try {
+                    onExpired.accept(value);
+                } catch (Exception e) {
+                    log.error("ticket expired callback error: {}", e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    private synchronized List<T> advance() {
+        tick++;
+        List<T> expired = new ArrayList<>();
+        Node<T> node = buckets[(int) (tick % buckets.length)];
+        while (node != null) {
+            Node<T> next = node.next;
+            if (node.rounds == 0) {
+                unlink(node);
+                nodes.remove(node.ticket);
+                expired.add(node.value);
+            } else {
+                node.rounds--;
+            }
+            node = next;
+        }
+        return expired;
+    }
+
+    private void unlink(Node<T> node) {
+        if (node.prev != null) {
+            node.prev.next = node.next;
+        } else {
+            buckets[node.bucket] = node.next;
+        }
+        if (node.next != null) {
+            node.next.prev = node.prev;
+        }
+        node.prev = null;
+        node.next = null;
+    }
+}
@@ -3,10 +3,10 @@ package cn.rongcloud.permission;
 import cn.rongcloud.common.ApiException;
 import cn.rongcloud.common.ErrorEnum;
 import cn.rongcloud.common.JwtUser;
-import cn.rongcloud.dao.RoomMemberDao;
 import cn.rongcloud.filter.JwtFilter;
 import cn.rongcloud.pojo.RoleEnum;
 import cn.rongcloud.pojo.RoomMember;
+import cn.rongcloud.room.RoomRegistry;
 import lombok.extern.slf4j.Slf4j;
 import org.aspectj.lang.JoinPoint;
 import org.aspectj.lang.annotation.Aspect;
@@ -28,7 +28,7 @@ import java.util.List;
 @Component
 public class AuthChecker {
     @Autowired
-    RoomMemberDao roomMemberDao;
+    RoomRegistry roomRegistry;
 
     @Before("@annotation(permAnno)")
     public void checkPermission(JoinPoint joinPoint, DeclarePermissions permAnno) throws ApiException {
@@ -46,15 +46,15 @@ public class AuthChecker {
                 perms.add(permEnum);
             }
 
-            List<RoomMember> roomMemberList = roomMemberDao.findByRidAndUid(jwtUser.getRoomId(), jwtUser.getUserId());
-            if (roomMemberList.isEmpty()) {
+            RoomMember roomMember = roomRegistry.getMember(jwtUser.getRoomId(), jwtUser.getUserId());
+            if (roomMember == null) {
                 log.error("user not exist in room: {}", jwtUser);
                 throw new ApiException(ErrorEnum.ERR_INVALID_AUTH);
             } else {
-                int role = roomMemberList.get(0).getRole();
+                int role = roomMember.getRole();
                 RoleEnum roleEnum = RoleEnum.getEnumByValue(role);
                 if (!perms.contains(roleEnum)) {
-                    log.error("has not permission: {}, {}, memCount={}, apiPerm={}", jwtUser, roleEnum, roomMemberList.size(), perms);
+                    log.error("has not permission: {}, {}, apiPerm={}", jwtUser, roleEnum, perms);
                     throw new ApiException(ErrorEnum.ERR_ACCESS_DENIED);
                 }
             }
@@ -25,6 +25,11 @@ public class Room implements Serializable {
     private @Getter @Setter Date createDt;
     private @Getter @Setter String display;
     private @Getter @Setter int whiteboardNameIndex;
+    //bumped by every member change, shared by the nodes serving the room
+    private @Getter @Setter long memberVersion;
+
+    @Version
+    private @Getter @Setter long version;
 
     @Override
     public String toString() {
@@ -35,6 +40,8 @@ public class Room implements Serializable {
                 ", createDt=" + createDt +
                 ", display='" + display + '\'' +
                 ", whiteboardNameIndex='" + whiteboardNameIndex + '\'' +
+                ", version=" + version +
+                ", memberVersion=" + memberVersion +
                 '}';
     }
 }
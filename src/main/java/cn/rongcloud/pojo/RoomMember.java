@@ -24,6 +24,9 @@ public class RoomMember {
     private @Getter @Setter boolean camera = true;
     private @Getter @Setter boolean mic = true;
 
+    @Version
+    private @Getter @Setter long version;
+
     public RoomMember() {
     }
 
@@ -42,6 +45,7 @@ public class RoomMember {
                 ", name='" + name + '\'' +
                 ", camera=" + camera +
                 ", mic=" + mic +
+                ", version=" + version +
                 '}';
     }
 //
@@ -0,0 +1,39 @@
+package cn.rongcloud.pojo;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import javax.persistence.*;
+
+/**
+ * One change of a room member: the member version it brought the room to, and the member changed.
+ */
+@Entity
+@Table(name = "t_room_member_change")
+public class RoomMemberChange {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private long id;
+
+    private @Getter @Setter String rid;
+    private @Getter @Setter long memberVersion;
+    private @Getter @Setter String uid;
+
+    public RoomMemberChange() {
+    }
+
+    public RoomMemberChange(String rid, long memberVersion, String uid) {
+        this.rid = rid;
+        this.memberVersion = memberVersion;
+        this.uid = uid;
+    }
+
+    @Override
+    public String toString() {
+        return "RoomMemberChange{" +
+                "rid='" + rid + '\'' +
+                ", memberVersion=" + memberVersion +
+                ", uid='" + uid + '\'' +
+                '}';
+    }
+}
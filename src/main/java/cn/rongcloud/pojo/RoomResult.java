@@ -1,10 +1,18 @@
 package cn.rongcloud.pojo;
 
+import cn.rongcloud.common.SplicedJson;
+import cn.rongcloud.room.RoomSnapshot;
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.annotation.JSONField;
+import com.alibaba.fastjson.serializer.SerializerFeature;
+import com.alibaba.fastjson.serializer.SimplePropertyPreFilter;
 import lombok.Data;
 import lombok.Getter;
 import lombok.Setter;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
@@ -20,6 +28,41 @@ public class RoomResult {
     private @Getter @Setter String display;
     private @Getter @Setter List<WhiteboardResult> whiteboards = new ArrayList<>();
     private @Getter @Setter MemberResult userInfo;
+    //version of the room state, a client holding the same version is up to date
+    private @Getter @Setter long version;
+    //members kept out of the members list with cn.rongcloud.room.largeAudience, listed by /room/audience
+    private @Getter @Setter int audienceCount;
+    //member version of the room, /room/members?sinceVersion returns the member changes after it
+    private @Getter @Setter long memberVersion;
+    //members, whiteboards, display and versions encoded once for everyone joining the room, see toJson
+    @JSONField(serialize = false)
+    private @Getter @Setter RoomSnapshot snapshot;
+
+    private static final byte[] MEMBERS_FIELD = "\"members\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] COMMA = {','};
+    private static final byte[] CLOSE = {'}'};
+
+    /**
+     * The response of a join: the fields of this user are encoded here, the rest is spliced in
+     * from the snapshot as it is.
+     */
+    public SplicedJson toJson() {
+        RoomSnapshot shared = snapshot == null ? RoomSnapshot.EMPTY : snapshot;
+        //only the fields of the room, a member keeps its version
+        SimplePropertyPreFilter filter = new SimplePropertyPreFilter(RoomResult.class);
+        filter.getExcludes().addAll(Arrays.asList("members", "display", "whiteboards", "version", "memberVersion"));
+        byte[] own = JSON.toJSONBytes(this, filter, SerializerFeature.WriteMapNullValue);
+        //open the object again to append the shared fields
+        byte[] open = Arrays.copyOf(own, own.length - 1);
+        byte[] members = own.length > 2 ? concat(COMMA, MEMBERS_FIELD) : MEMBERS_FIELD;
+        return SplicedJson.response(open, members, shared.getMembers(), COMMA, shared.getFields(), CLOSE);
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
 
     @Data
     public static class MemberResult {
@@ -29,6 +72,70 @@ public class RoomResult {
         Date joinTime;
         boolean camera;
         boolean microphone;
+        long version;
+    }
+
+    @Data
+    public static class AudienceResult {
+        int total;
+        //offset of the next page, -1 on the last one
+        int next;
+        List<MemberResult> members = new ArrayList<>();
+
+        public void setMembers(List<RoomMember> roomMemberList) {
+            for (RoomMember member : roomMemberList) {
+                members.add(toMemberResult(member));
+            }
+        }
+    }
+
+    @Data
+    public static class PresenceResult {
+        //flaps of the members within the flap window, members applied offline late for flapping
+        int flaps;
+        int damped;
+        List<MemberPresence> members = new ArrayList<>();
+    }
+
+    @Data
+    public static class MemberPresence {
+        String userId;
+        //0 online, 1 offline, -1 not known on this node
+        int status;
+        int pendingStatus;
+        Date since;
+        int flaps;
+        long totalFlaps;
+        boolean damped;
+    }
+
+    @Data
+    public static class MemberDeltaResult {
+        long memberVersion;
+        //true if the changes are no longer known, the client lists all members again by /room/members?count
+        boolean full;
+        List<MemberResult> members = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+
+        public void setMembers(List<RoomMember> roomMemberList) {
+            for (RoomMember member : roomMemberList) {
+                members.add(toMemberResult(member));
+            }
+        }
+    }
+
+    @Data
+    public static class MemberPageResult {
+        long memberVersion;
+        //cursor of the next page, null on the last one
+        String next;
+        List<MemberResult> members = new ArrayList<>();
+
+        public void setMembers(List<RoomMember> roomMemberList) {
+            for (RoomMember member : roomMemberList) {
+                members.add(toMemberResult(member));
+            }
+        }
     }
 
     @Data
@@ -40,17 +147,22 @@ public class RoomResult {
 
     public void setMembers(List<RoomMember> roomMemberList) {
         for (RoomMember member : roomMemberList) {
-            MemberResult result = new MemberResult();
-            result.setUserId(member.getUid());
-            result.setJoinTime(member.getJoinDt());
-            result.setRole(member.getRole());
-            result.setMicrophone(member.isMic());
-            result.setCamera(member.isCamera());
-            result.setUserName(member.getName());
-            members.add(result);
+            members.add(toMemberResult(member));
         }
     }
 
+    public static MemberResult toMemberResult(RoomMember member) {
+        MemberResult result = new MemberResult();
+        result.setUserId(member.getUid());
+        result.setJoinTime(member.getJoinDt());
+        result.setRole(member.getRole());
+        result.setMicrophone(member.isMic());
+        result.setCamera(member.isCamera());
+        result.setUserName(member.getName());
+        result.setVersion(member.getVersion());
+        return result;
+    }
+
     public void setWhiteboards(List<Whiteboard> whiteboardList) {
         for (Whiteboard wb : whiteboardList) {
             WhiteboardResult r = new WhiteboardResult();
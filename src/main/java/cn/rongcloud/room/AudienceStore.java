@@ -0,0 +1,183 @@
+package cn.rongcloud.room;
+
+import cn.rongcloud.config.RoomProperties;
+import cn.rongcloud.pojo.RoleEnum;
+import cn.rongcloud.pojo.RoomMember;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Audience of large rooms in Redis, without t_room_member rows. Per room a hash holds
+ * "joinTime|name" by userId and a sorted set orders the userIds by join time for paging,
+ * so joining, leaving, looking up and counting cost the same at any audience size.
+ * Each user also points to the room, for lookups by userId only.
+ *
+ * The scripts touch the keys of a room and of a user together, and lookups by userIds read keys
+ * of many users in one call, which needs a standalone Redis.
+ */
+@Component
+public class AudienceStore {
+    private static final String MEMBERS_PREFIX = "sealclass:audience:members:";
+    private static final String ORDER_PREFIX = "sealclass:audience:order:";
+    private static final String USER_PREFIX = "sealclass:audience:user:";
+
+    private static final String ADD_SCRIPT =
+            "if redis.call('HSETNX', KEYS[1], ARGV[1], ARGV[2]) == 0 then return 0 end " +
+            "redis.call('ZADD', KEYS[2], ARGV[3], ARGV[1]) " +
+            "redis.call('SET', KEYS[3], ARGV[4], 'PX', ARGV[5]) " +
+            "return 1";
+
+    private static final String REMOVE_SCRIPT =
+            "if redis.call('HDEL', KEYS[1], ARGV[1]) == 0 then return 0 end " +
+            "redis.call('ZREM', KEYS[2], ARGV[1]) " +
+            "if redis.call('GET', KEYS[3]) == ARGV[2] then redis.call('DEL', KEYS[3]) end " +
+            "return 1";
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Autowired
+    private RoomProperties roomProperties;
+
+    private final DefaultRedisScript<Long> addScript = new DefaultRedisScript<>(ADD_SCRIPT, Long.class);
+    private final DefaultRedisScript<Long> removeScript = new DefaultRedisScript<>(REMOVE_SCRIPT, Long.class);
+
+    public AudienceStore() {
+    }
+
+    AudienceStore(StringRedisTemplate redisTemplate, RoomProperties roomProperties) {
+        this.redisTemplate = redisTemplate;
+        this.roomProperties = roomProperties;
+    }
+
+    /**
+     * @return false if the user is in the audience already
+     */
+    public boolean add(RoomMember member) {
+        long joinTime = member.getJoinDt() == null ? System.currentTimeMillis() : member.getJoinDt().getTime();
+        String value = joinTime + "|" + (member.getName() == null ? "" : member.getName());
+        Long added = redisTemplate.execute(addScript, keys(member.getRid(), member.getUid()),
+                member.getUid(), value, String.valueOf(joinTime), member.getRid(), String.valueOf(roomProperties.getRoomTtl()));
+        return added != null && added == 1;
+    }
+
+    public boolean remove(String roomId, String userId) {
+        Long removed = redisTemplate.execute(removeScript, keys(roomId, userId), userId, roomId);
+        return removed != null && removed == 1;
+    }
+
+    public RoomMember get(String roomId, String userId) {
+        Object value = redisTemplate.opsForHash().get(MEMBERS_PREFIX + roomId, userId);
+        return value == null ? null : toMember(roomId, userId, (String) value);
+    }
+
+    public RoomMember getByUid(String userId) {
+        String roomId = redisTemplate.opsForValue().get(USER_PREFIX + userId);
+        return roomId == null ? null : get(roomId, userId);
+    }
+
+    /**
+     * @return the audience members among userIds, room pointers are read in one call and
+     * the members of the users found in one pipeline
+     */
+    public List<RoomMember> getByUids(Collection<String> userIds) {
+        List<String> keys = new ArrayList<>(userIds.size());
+        for (String userId : userIds) {
+            keys.add(USER_PREFIX + userId);
+        }
+        List<String> roomIds = redisTemplate.opsForValue().multiGet(keys);
+        List<RoomMember> result = new ArrayList<>();
+        if (roomIds == null) {
+            return result;
+        }
+        List<String> foundUsers = new ArrayList<>();
+        List<String> foundRooms = new ArrayList<>();
+        int i = 0;
+        for (String userId : userIds) {
+            String roomId = roomIds.get(i++);
+            if (roomId != null) {
+                foundUsers.add(userId);
+                foundRooms.add(roomId);
+            }
+        }
+        if (foundUsers.isEmpty()) {
+            return result;
+        }
+        List<Object> values = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int j = 0; j < foundUsers.size(); j++) {
+                connection.hGet((MEMBERS_PREFIX + foundRooms.get(j)).getBytes(StandardCharsets.UTF_8),
+                        foundUsers.get(j).getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+        for (int j = 0; j < foundUsers.size(); j++) {
+            //pointers outlive the audience of a cleared room
+            if (values.get(j) != null) {
+                result.add(toMember(foundRooms.get(j), foundUsers.get(j), (String) values.get(j)));
+            }
+        }
+        return result;
+    }
+
+    public int count(String roomId) {
+        Long count = redisTemplate.opsForZSet().zCard(ORDER_PREFIX + roomId);
+        return count == null ? 0 : count.intValue();
+    }
+
+    /**
+     * @return up to count members from offset, in join order
+     */
+    public List<RoomMember> page(String roomId, int offset, int count) {
+        List<RoomMember> result = new ArrayList<>();
+        Set<ZSetOperations.TypedTuple<String>> page = redisTemplate.opsForZSet().rangeWithScores(ORDER_PREFIX + roomId, offset, offset + count - 1L);
+        if (page == null || page.isEmpty()) {
+            return result;
+        }
+        List<Object> userIds = new ArrayList<>(page.size());
+        for (ZSetOperations.TypedTuple<String> tuple : page) {
+            userIds.add(tuple.getValue());
+        }
+        List<Object> values = redisTemplate.opsForHash().multiGet(MEMBERS_PREFIX + roomId, userIds);
+        for (int i = 0; i < userIds.size(); i++) {
+            //left between the two reads
+            if (values.get(i) != null) {
+                result.add(toMember(roomId, (String) userIds.get(i), (String) values.get(i)));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Drops the audience of a removed room, pointers of its users expire by themselves.
+     */
+    public void clear(String roomId) {
+        redisTemplate.delete(Arrays.asList(MEMBERS_PREFIX + roomId, ORDER_PREFIX + roomId));
+    }
+
+    private static List<String> keys(String roomId, String userId) {
+        return Arrays.asList(MEMBERS_PREFIX + roomId, ORDER_PREFIX + roomId, USER_PREFIX + userId);
+    }
+
+    private static RoomMember toMember(String roomId, String userId, String value) {
+        int index = value.indexOf('|');
+        RoomMember member = new RoomMember(userId, roomId);
+        member.setRole(RoleEnum.RoleAudience.getValue());
+        member.setJoinDt(new Date(Long.parseLong(value.substring(0, index))));
+        member.setName(value.substring(index + 1));
+        member.setCamera(false);
+        member.setMic(false);
+        return member;
+    }
+}
@@ -0,0 +1,21 @@
+package cn.rongcloud.room;
+
+import cn.rongcloud.pojo.RoomMember;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Member changes of a room after a member version: the current state of every member added
+ * or updated since, and the userIds of those gone.
+ */
+public class MemberDelta {
+    private final @Getter long memberVersion;
+    private final @Getter List<RoomMember> updated = new ArrayList<>();
+    private final @Getter List<String> removed = new ArrayList<>();
+
+    MemberDelta(long memberVersion) {
+        this.memberVersion = memberVersion;
+    }
+}
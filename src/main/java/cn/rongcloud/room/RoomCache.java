@@ -0,0 +1,394 @@
+package cn.rongcloud.room;
+
+import cn.rongcloud.pojo.Room;
+import cn.rongcloud.pojo.RoomMember;
+import cn.rongcloud.pojo.RoomMemberChange;
+import cn.rongcloud.pojo.Whiteboard;
+import lombok.Getter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory state of one live room, owned by {@link RoomRegistry}.
+ * Members and whiteboards keep join/create order, getters hand out copies.
+ * Versions of the room and its members go up with every update, as their rows do, and the room
+ * version, in memory and in its row, also with every whiteboard change, so the two versions
+ * cover everything in a {@link RoomSnapshot} and a room loaded again does not go back.
+ * Without the cache a RoomCache is the copy one task read, kept in step with the rows by the
+ * updates of the {@link RoomRegistry}.
+ *
+ * The member version goes up with every join, leave, role or device change of a member, as
+ * t_room.member_version does, and the last changes are logged, in memory and in
+ * t_room_member_change, so a client can catch up from the member version it holds on any node.
+ */
+public class RoomCache {
+    private static final Comparator<RoomMember> JOIN_ORDER = Comparator
+            .comparing((RoomMember m) -> m.getJoinDt() == null ? 0L : m.getJoinDt().getTime())
+            .thenComparing(RoomMember::getUid);
+
+    private final @Getter String rid;
+    private final @Getter String name;
+    private final @Getter Date createDt;
+    private String display;
+    private int whiteboardNameIndex;
+    private long version;
+    private long memberVersion;
+    private final int changeLogSize;
+    //last member changes, oldest first
+    private final ArrayDeque<MemberChange> changeLog = new ArrayDeque<>();
+
+    private static class MemberChange {
+        final long memberVersion;
+        final String uid;
+
+        MemberChange(long memberVersion, String uid) {
+            this.memberVersion = memberVersion;
+            this.uid = uid;
+        }
+    }
+
+    private final Map<String, RoomMember> members = new LinkedHashMap<>();
+    private final Map<String, Whiteboard> whiteboards = new LinkedHashMap<>();
+
+    RoomCache(Room room, List<RoomMember> memberList, List<Whiteboard> whiteboardList, int changeLogSize) {
+        this.changeLogSize = changeLogSize;
+        this.rid = room.getRid();
+        this.name = room.getName();
+        this.createDt = room.getCreateDt();
+        this.display = room.getDisplay() == null ? "" : room.getDisplay();
+        this.whiteboardNameIndex = room.getWhiteboardNameIndex();
+        this.version = room.getVersion();
+        this.memberVersion = room.getMemberVersion();
+        for (RoomMember member : memberList) {
+            members.put(member.getUid(), copyOf(member));
+        }
+        for (Whiteboard wb : whiteboardList) {
+            whiteboards.put(wb.getWbid(), copyOf(wb));
+        }
+    }
+
+    public synchronized String getDisplay() {
+        return display;
+    }
+
+    synchronized void setDisplay(String display) {
+        this.display = display;
+        version++;
+    }
+
+    public synchronized int getWhiteboardNameIndex() {
+        return whiteboardNameIndex;
+    }
+
+    synchronized int nextWhiteboardNameIndex() {
+        version++;
+        return ++whiteboardNameIndex;
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    public synchronized long getMemberVersion() {
+        return memberVersion;
+    }
+
+    /**
+     * @return changes after sinceVersion, null if they are no longer logged and the client must list all members again
+     */
+    public synchronized MemberDelta getMemberDelta(long sinceVersion) {
+        if (sinceVersion > memberVersion) {
+            return null;
+        }
+        long oldest = changeLog.isEmpty() ? memberVersion : changeLog.peekFirst().memberVersion - 1;
+        if (sinceVersion < oldest) {
+            return null;
+        }
+        Set<String> changed = new LinkedHashSet<>();
+        Iterator<MemberChange> iterator = changeLog.descendingIterator();
+        while (iterator.hasNext()) {
+            MemberChange change = iterator.next();
+            if (change.memberVersion <= sinceVersion) {
+                break;
+            }
+            changed.add(change.uid);
+        }
+        return deltaOf(changed);
+    }
+
+    /**
+     * As {@link #getMemberDelta(long)}, from the changes logged in the database.
+     *
+     * @param changes changes after sinceVersion up to the member version of this room, oldest first
+     * @return null unless changes hold every member version after sinceVersion
+     */
+    synchronized MemberDelta getMemberDelta(long sinceVersion, List<RoomMemberChange> changes) {
+        //one change per member version: as many as versions in between, or some are missing
+        if (sinceVersion > memberVersion || changes.size() != memberVersion - sinceVersion) {
+            return null;
+        }
+        Set<String> changed = new LinkedHashSet<>();
+        for (int i = changes.size() - 1; i >= 0; i--) {
+            changed.add(changes.get(i).getUid());
+        }
+        return deltaOf(changed);
+    }
+
+    //current state of the changed members, newest change first
+    private MemberDelta deltaOf(Set<String> changed) {
+        MemberDelta delta = new MemberDelta(memberVersion);
+        for (String uid : changed) {
+            RoomMember member = members.get(uid);
+            if (member != null) {
+                delta.getUpdated().add(copyOf(member));
+            } else {
+                delta.getRemoved().add(uid);
+            }
+        }
+        return delta;
+    }
+
+    /**
+     * @param after cursor from the previous page, null for the first one
+     * @return up to count members after the cursor in join order
+     */
+    public synchronized List<RoomMember> getMembersPage(String after, int count) {
+        List<RoomMember> sorted = new ArrayList<>(members.values());
+        sorted.sort(JOIN_ORDER);
+        RoomMember last = after == null ? null : parseCursor(after);
+        List<RoomMember> result = new ArrayList<>();
+        for (RoomMember member : sorted) {
+            if (last != null && JOIN_ORDER.compare(member, last) <= 0) {
+                continue;
+            }
+            if (result.size() == count) {
+                break;
+            }
+            result.add(copyOf(member));
+        }
+        return result;
+    }
+
+    /**
+     * Cursor after the member, stays valid when members before it leave.
+     */
+    public static String cursorOf(RoomMember member) {
+        return (member.getJoinDt() == null ? 0L : member.getJoinDt().getTime()) + ":" + member.getUid();
+    }
+
+    private static RoomMember parseCursor(String cursor) {
+        int index = cursor.indexOf(':');
+        if (index <= 0) {
+            throw new IllegalArgumentException("invalid cursor");
+        }
+        RoomMember member = new RoomMember(cursor.substring(index + 1), null);
+        try {
+            member.setJoinDt(new Date(Long.parseLong(cursor.substring(0, index))));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid cursor");
+        }
+        return member;
+    }
+
+    private void memberChanged(String uid) {
+        memberVersion++;
+        changeLog.addLast(new MemberChange(memberVersion, uid));
+        while (changeLog.size() > changeLogSize) {
+            changeLog.removeFirst();
+        }
+    }
+
+    public synchronized RoomMember getMember(String uid) {
+        RoomMember member = members.get(uid);
+        return member == null ? null : copyOf(member);
+    }
+
+    public synchronized List<RoomMember> getMembers() {
+        List<RoomMember> result = new ArrayList<>(members.size());
+        for (RoomMember member : members.values()) {
+            result.add(copyOf(member));
+        }
+        return result;
+    }
+
+    public synchronized List<RoomMember> getMembersByRole(int role) {
+        List<RoomMember> result = new ArrayList<>();
+        for (RoomMember member : members.values()) {
+            if (member.getRole() == role) {
+                result.add(copyOf(member));
+            }
+        }
+        return result;
+    }
+
+    public synchronized int getMemberCount() {
+        return members.size();
+    }
+
+    public synchronized int countMembersExcludeRole(int excludeRole) {
+        int count = 0;
+        for (RoomMember member : members.values()) {
+            if (member.getRole() != excludeRole) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    synchronized boolean addMember(RoomMember member) {
+        if (members.putIfAbsent(member.getUid(), copyOf(member)) != null) {
+            return false;
+        }
+        memberChanged(member.getUid());
+        return true;
+    }
+
+    synchronized RoomMember removeMember(String uid) {
+        RoomMember removed = members.remove(uid);
+        if (removed != null) {
+            memberChanged(uid);
+        }
+        return removed;
+    }
+
+    synchronized boolean updateRole(String uid, int role) {
+        RoomMember member = members.get(uid);
+        if (member == null) {
+            return false;
+        }
+        member.setRole(role);
+        member.setVersion(member.getVersion() + 1);
+        memberChanged(uid);
+        return true;
+    }
+
+    synchronized boolean updateCamera(String uid, boolean camera) {
+        RoomMember member = members.get(uid);
+        if (member == null) {
+            return false;
+        }
+        member.setCamera(camera);
+        member.setVersion(member.getVersion() + 1);
+        memberChanged(uid);
+        return true;
+    }
+
+    synchronized boolean updateMic(String uid, boolean mic) {
+        RoomMember member = members.get(uid);
+        if (member == null) {
+            return false;
+        }
+        member.setMic(mic);
+        member.setVersion(member.getVersion() + 1);
+        memberChanged(uid);
+        return true;
+    }
+
+    public synchronized Whiteboard getWhiteboard(String wbid) {
+        Whiteboard wb = whiteboards.get(wbid);
+        return wb == null ? null : copyOf(wb);
+    }
+
+    public synchronized List<Whiteboard> getWhiteboards() {
+        List<Whiteboard> result = new ArrayList<>(whiteboards.size());
+        for (Whiteboard wb : whiteboards.values()) {
+            result.add(copyOf(wb));
+        }
+        return result;
+    }
+
+    public synchronized List<Whiteboard> getWhiteboardsByCreator(String creator) {
+        List<Whiteboard> result = new ArrayList<>();
+        for (Whiteboard wb : whiteboards.values()) {
+            if (creator.equals(wb.getCreator())) {
+                result.add(copyOf(wb));
+            }
+        }
+        return result;
+    }
+
+    synchronized void addWhiteboard(Whiteboard wb) {
+        whiteboards.put(wb.getWbid(), copyOf(wb));
+        version++;
+    }
+
+    synchronized Whiteboard removeWhiteboard(String wbid) {
+        Whiteboard removed = whiteboards.remove(wbid);
+        if (removed != null) {
+            version++;
+        }
+        return removed;
+    }
+
+    synchronized List<Whiteboard> removeWhiteboardsByCreator(String creator) {
+        List<Whiteboard> removed = new ArrayList<>();
+        Iterator<Whiteboard> iterator = whiteboards.values().iterator();
+        while (iterator.hasNext()) {
+            Whiteboard wb = iterator.next();
+            if (creator.equals(wb.getCreator())) {
+                removed.add(wb);
+                iterator.remove();
+            }
+        }
+        if (!removed.isEmpty()) {
+            version++;
+        }
+        return removed;
+    }
+
+    synchronized boolean updateWhiteboardPage(String wbid, int page) {
+        Whiteboard wb = whiteboards.get(wbid);
+        if (wb == null) {
+            return false;
+        }
+        wb.setCurPg(page);
+        version++;
+        return true;
+    }
+
+    static RoomMember copyOf(RoomMember member) {
+        RoomMember copy = new RoomMember(member.getUid(), member.getRid());
+        copy.setRole(member.getRole());
+        copy.setJoinDt(member.getJoinDt());
+        copy.setName(member.getName());
+        copy.setCamera(member.isCamera());
+        copy.setMic(member.isMic());
+        copy.setVersion(member.getVersion());
+        return copy;
+    }
+
+    static Whiteboard copyOf(Whiteboard wb) {
+        Whiteboard copy = new Whiteboard();
+        copy.setRid(wb.getRid());
+        copy.setWbid(wb.getWbid());
+        copy.setWbRoom(wb.getWbRoom());
+        copy.setName(wb.getName());
+        copy.setCreator(wb.getCreator());
+        copy.setCreateDt(wb.getCreateDt());
+        copy.setPgCount(wb.getPgCount());
+        copy.setCurPg(wb.getCurPg());
+        return copy;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RoomCache{" +
+                "rid='" + rid + '\'' +
+                ", display='" + display + '\'' +
+                ", whiteboardNameIndex=" + whiteboardNameIndex +
+                ", version=" + version +
+                ", memberVersion=" + memberVersion +
+                ", members=" + members.size() +
+                ", whiteboards=" + whiteboards.size() +
+                '}';
+    }
+}
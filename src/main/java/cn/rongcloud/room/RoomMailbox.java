@@ -0,0 +1,90 @@
+package cn.rongcloud.room;
+
+import cn.rongcloud.config.RoomProperties;
+import cn.rongcloud.job.KeyedExecutor;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Mailbox of each room. Mutations of one room run one after another, so a read-modify-write
+ * on the registry (member count then add, whiteboard index then update, teacher swap) needs
+ * no database lock, while rooms run in parallel on the pool. A task submitted from a task of
+ * the same room runs inline.
+ */
+@Slf4j
+@Component
+public class RoomMailbox {
+    private static final ThreadLocal<String> currentRoom = new ThreadLocal<>();
+
+    @Autowired
+    private RoomProperties roomProperties;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private KeyedExecutor executor;
+
+    @PostConstruct
+    private void init() {
+        int threads = Math.max(1, roomProperties.getMailboxThreads());
+        executor = new KeyedExecutor("room-mailbox", threads);
+        Gauge.builder("sealclass.room.mailbox.queue", executor, KeyedExecutor::pendingCount)
+                .description("room mutations waiting or running")
+                .register(meterRegistry);
+        log.info("init RoomMailbox: mailboxThreads={}", threads);
+    }
+
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        executor.shutdown(10000);
+    }
+
+    public <T> CompletableFuture<T> submit(String roomId, Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        if (roomId.equals(currentRoom.get())) {
+            run(task, future);
+        } else {
+            executor.execute(roomId, () -> {
+                currentRoom.set(roomId);
+                try {
+                    run(task, future);
+                } finally {
+                    currentRoom.remove();
+                }
+            });
+        }
+        return future;
+    }
+
+    /**
+     * Runs the task in the mailbox of the room and waits for it, exceptions of the task are rethrown as is.
+     */
+    public <T> T call(String roomId, Callable<T> task) throws Exception {
+        try {
+            return submit(roomId, task).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw (Error) cause;
+        }
+    }
+
+    private static <T> void run(Callable<T> task, CompletableFuture<T> future) {
+        try {
+            future.complete(task.call());
+        } catch (Throwable e) {
+            future.completeExceptionally(e);
+        }
+    }
+}
@@ -0,0 +1,718 @@
+package cn.rongcloud.room;
+
+import cn.rongcloud.common.ApiException;
+import cn.rongcloud.common.ErrorEnum;
+import cn.rongcloud.config.RoomProperties;
+import cn.rongcloud.dao.RoomDao;
+import cn.rongcloud.dao.RoomMemberChangeDao;
+import cn.rongcloud.dao.RoomMemberDao;
+import cn.rongcloud.dao.UserDao;
+import cn.rongcloud.dao.WhiteboardDao;
+import cn.rongcloud.pojo.RoleEnum;
+import cn.rongcloud.pojo.Room;
+import cn.rongcloud.pojo.RoomMember;
+import cn.rongcloud.pojo.RoomMemberChange;
+import cn.rongcloud.pojo.UserInfo;
+import cn.rongcloud.pojo.Whiteboard;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongFunction;
+
+/**
+ * Room state behind the room DAOs. By default every read goes to the database and every
+ * write is executed inline, so any number of nodes can serve the same room.
+ *
+ * With cn.rongcloud.room.cacheEnabled=true, for a single node deployment only, reads are
+ * served from memory and writes update memory first and are persisted to JPA in the
+ * background. Nothing tells other nodes about a change, they would serve their own copy.
+ * Persistence is striped by key so that all writes of one room (or one user) hit the
+ * database in the order they were made. A room whose write fails is dropped from memory
+ * and loaded again from the database on its next read.
+ *
+ * Either way every member change moves t_room.member_version on by compare-and-set and is
+ * logged in t_room_member_change, so member versions and deltas are the same on every node.
+ *
+ * With cn.rongcloud.room.largeAudience=true the audience is kept in the {@link AudienceStore}
+ * instead: member lookups and updates here cover it, but room member lists and counts of a
+ * {@link RoomCache} do not, see {@link #countAudience(String)}.
+ */
+@Slf4j
+@Component
+public class RoomRegistry {
+    @Autowired
+    private RoomProperties roomProperties;
+
+    @Autowired
+    private RoomDao roomDao;
+
+    @Autowired
+    private RoomMemberDao roomMemberDao;
+
+    @Autowired
+    private RoomMemberChangeDao roomMemberChangeDao;
+
+    @Autowired
+    private WhiteboardDao whiteboardDao;
+
+    @Autowired
+    private UserDao userDao;
+
+    @Autowired
+    private AudienceStore audienceStore;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final ConcurrentHashMap<String, RoomCache> rooms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<String>> userRooms = new ConcurrentHashMap<>();
+    //encoded rooms by room id, outside the RoomCache: copies read without the cache share them too
+    private final ReentrantLock snapshotLock = new ReentrantLock();
+    private final Map<String, RoomSnapshot> snapshots = new LinkedHashMap<String, RoomSnapshot>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, RoomSnapshot> eldest) {
+            return size() > roomProperties.getSnapshotCacheSize();
+        }
+    };
+    //rooms removed from memory, counted per slot of room ids: a room loaded meanwhile is not kept
+    private final AtomicLongArray evictions = new AtomicLongArray(64);
+    private ExecutorService[] persistExecutors;
+    private Counter persistErrors;
+
+    public RoomRegistry() {
+    }
+
+    RoomRegistry(RoomProperties roomProperties, RoomDao roomDao, RoomMemberDao roomMemberDao, RoomMemberChangeDao roomMemberChangeDao, WhiteboardDao whiteboardDao, UserDao userDao, AudienceStore audienceStore, MeterRegistry meterRegistry) {
+        this.roomProperties = roomProperties;
+        this.roomDao = roomDao;
+        this.roomMemberDao = roomMemberDao;
+        this.roomMemberChangeDao = roomMemberChangeDao;
+        this.whiteboardDao = whiteboardDao;
+        this.userDao = userDao;
+        this.audienceStore = audienceStore;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    void init() {
+        persistErrors = Counter.builder("sealclass.room.persist.errors")
+                .description("room writes failed in the background, the room is loaded again from the database")
+                .register(meterRegistry);
+        int threads = Math.max(1, roomProperties.getPersistThreads());
+        persistExecutors = new ExecutorService[threads];
+        AtomicInteger index = new AtomicInteger();
+        for (int i = 0; i < threads; i++) {
+            persistExecutors[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "room-persist-" + index.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        log.info("init RoomRegistry: cacheEnabled={}, persistThreads={}", roomProperties.isCacheEnabled(), threads);
+    }
+
+    @PreDestroy
+    void destroy() throws InterruptedException {
+        for (ExecutorService executor : persistExecutors) {
+            executor.shutdown();
+        }
+        for (ExecutorService executor : persistExecutors) {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                log.error("room persist executor not terminated, pending writes may be lost");
+            }
+        }
+    }
+
+    public boolean isCacheEnabled() {
+        return roomProperties.isCacheEnabled();
+    }
+
+    public RoomCache getRoom(String roomId) {
+        if (!isCacheEnabled()) {
+            return loadRoom(roomId);
+        }
+        while (true) {
+            RoomCache room = rooms.get(roomId);
+            if (room != null) {
+                return room;
+            }
+
+            long evicted = evictions.get(slot(roomId));
+            //load on the persist thread of this room, so that pending writes are flushed first
+            RoomCache loaded;
+            try {
+                loaded = stripe(roomId).submit(() -> loadRoom(roomId)).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("load room interrupted: " + roomId, e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("load room error: " + roomId, e.getCause());
+            }
+            if (loaded == null) {
+                return null;
+            }
+            room = rooms.compute(roomId, (k, prev) -> {
+                if (prev != null) {
+                    return prev;
+                }
+                //removed while loading, the delete is queued before the next load
+                if (evictions.get(slot(roomId)) != evicted) {
+                    return null;
+                }
+                for (RoomMember member : loaded.getMembers()) {
+                    indexUser(member.getUid(), roomId);
+                }
+                log.info("room loaded: {}", loaded);
+                return loaded;
+            });
+            if (room != null) {
+                return room;
+            }
+        }
+    }
+
+    /**
+     * The room the caller read before, for a task after the one that read it: with the cache the
+     * room in memory now, without it the copy read, not read again. Its updates fail with
+     * ERR_UPDATE_CONFLICT if the room changed since, as for any copy. The copy must be as
+     * committed, not changed by a task that failed since.
+     *
+     * @return null if the room is gone
+     */
+    public RoomCache getRoom(RoomCache read) {
+        return isCacheEnabled() ? getRoom(read.getRid()) : read;
+    }
+
+    /**
+     * The encoded room, made again only after the room or its members changed: the room and
+     * member versions, the same on every node, cover everything in it.
+     */
+    public RoomSnapshot getSnapshot(RoomCache room) {
+        String roomId = room.getRid();
+        //versions first: a change while encoding is then in the snapshot under the older versions, which are stale next time
+        long version = room.getVersion();
+        long memberVersion = room.getMemberVersion();
+        RoomSnapshot current;
+        snapshotLock.lock();
+        try {
+            current = snapshots.get(roomId);
+        } finally {
+            snapshotLock.unlock();
+        }
+        if (current != null && current.getVersion() == version && current.getMemberVersion() == memberVersion) {
+            return current;
+        }
+        current = RoomSnapshot.encode(version, memberVersion, room.getDisplay(), room.getMembers(), room.getWhiteboards());
+        snapshotLock.lock();
+        try {
+            snapshots.put(roomId, current);
+        } finally {
+            snapshotLock.unlock();
+        }
+        return current;
+    }
+
+    public boolean existsRoom(String roomId) {
+        if (!isCacheEnabled()) {
+            return roomDao.existsByRid(roomId);
+        }
+        return getRoom(roomId) != null;
+    }
+
+    public boolean isLargeAudience() {
+        return roomProperties.isLargeAudience();
+    }
+
+    public RoomMember getMember(String roomId, String userId) {
+        RoomMember member;
+        if (!isCacheEnabled()) {
+            List<RoomMember> list = roomMemberDao.findByRidAndUid(roomId, userId);
+            member = list.isEmpty() ? null : list.get(0);
+        } else {
+            RoomCache room = getRoom(roomId);
+            member = room == null ? null : room.getMember(userId);
+        }
+        if (member == null && isLargeAudience()) {
+            member = audienceStore.get(roomId, userId);
+        }
+        return member;
+    }
+
+    /**
+     * {@link #getMember(String, String)} in the room the caller read.
+     */
+    public RoomMember getMember(RoomCache room, String userId) {
+        RoomMember member = room.getMember(userId);
+        if (member == null && isLargeAudience()) {
+            member = audienceStore.get(room.getRid(), userId);
+        }
+        return member;
+    }
+
+    /**
+     * Members of the room outside the {@link RoomCache}, 0 unless largeAudience is on.
+     */
+    public int countAudience(String roomId) {
+        return isLargeAudience() ? audienceStore.count(roomId) : 0;
+    }
+
+    public List<RoomMember> getAudience(String roomId, int offset, int count) {
+        return isLargeAudience() ? audienceStore.page(roomId, offset, count) : new ArrayList<>();
+    }
+
+    public List<RoomMember> getMembersByUid(String userId) {
+        List<RoomMember> result = getRegularMembersByUid(userId);
+        if (isLargeAudience()) {
+            RoomMember audience = audienceStore.getByUid(userId);
+            if (audience != null) {
+                result.add(audience);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * {@link #getMembersByUid} of many users, with one query for the users not in memory.
+     */
+    public List<RoomMember> getMembersByUids(Collection<String> userIds) {
+        List<RoomMember> result = new ArrayList<>();
+        if (userIds.isEmpty()) {
+            return result;
+        }
+        if (!isCacheEnabled()) {
+            result.addAll(roomMemberDao.findByUidIn(userIds));
+        } else {
+            Map<String, Set<String>> roomIdsByUid = new LinkedHashMap<>();
+            List<String> missing = new ArrayList<>();
+            for (String userId : userIds) {
+                Set<String> roomIds = userRooms.get(userId);
+                if (roomIds == null || roomIds.isEmpty()) {
+                    missing.add(userId);
+                } else {
+                    roomIdsByUid.put(userId, roomIds);
+                }
+            }
+            if (!missing.isEmpty()) {
+                for (RoomMember member : roomMemberDao.findByUidIn(missing)) {
+                    roomIdsByUid.computeIfAbsent(member.getUid(), k -> new HashSet<>()).add(member.getRid());
+                }
+            }
+            for (Map.Entry<String, Set<String>> entry : roomIdsByUid.entrySet()) {
+                for (String roomId : entry.getValue()) {
+                    RoomCache room = getRoom(roomId);
+                    RoomMember member = room == null ? null : room.getMember(entry.getKey());
+                    if (member != null) {
+                        result.add(member);
+                    }
+                }
+            }
+        }
+        if (isLargeAudience()) {
+            result.addAll(audienceStore.getByUids(userIds));
+        }
+        return result;
+    }
+
+    private List<RoomMember> getRegularMembersByUid(String userId) {
+        if (!isCacheEnabled()) {
+            return roomMemberDao.findByUid(userId);
+        }
+        Set<String> roomIds = userRooms.get(userId);
+        if (roomIds == null || roomIds.isEmpty()) {
+            roomIds = ConcurrentHashMap.newKeySet();
+            for (RoomMember member : roomMemberDao.findByUid(userId)) {
+                roomIds.add(member.getRid());
+            }
+        }
+        List<RoomMember> result = new ArrayList<>();
+        for (String roomId : roomIds) {
+            RoomCache room = getRoom(roomId);
+            RoomMember member = room == null ? null : room.getMember(userId);
+            if (member != null) {
+                result.add(member);
+            }
+        }
+        return result;
+    }
+
+    public RoomCache createRoom(String roomId, String roomName, Date createTime, String display) {
+        Room room = new Room();
+        room.setRid(roomId);
+        room.setName(roomName);
+        room.setCreateDt(createTime);
+        room.setDisplay(display);
+        room.setWhiteboardNameIndex(0);
+        //above the member versions of an earlier room with the same id, a client still holding one lists all members
+        room.setMemberVersion(createTime.getTime() * 1000);
+        if (!isCacheEnabled()) {
+            roomDao.save(room);
+            return loadRoom(roomId);
+        }
+
+        RoomCache created = new RoomCache(room, new ArrayList<>(), new ArrayList<>(), roomProperties.getMemberChangeLogSize());
+        RoomCache prev = rooms.putIfAbsent(roomId, created);
+        if (prev != null) {
+            log.info("room already created: {}", prev);
+            return prev;
+        }
+        persistRoom(roomId, () -> roomDao.save(room));
+        return created;
+    }
+
+    public void removeRoom(String roomId) {
+        snapshotLock.lock();
+        try {
+            snapshots.remove(roomId);
+        } finally {
+            snapshotLock.unlock();
+        }
+        if (isLargeAudience()) {
+            audienceStore.clear(roomId);
+        }
+        if (!isCacheEnabled()) {
+            roomDao.deleteByRid(roomId);
+            whiteboardDao.deleteByRid(roomId);
+            roomMemberDao.deleteByRid(roomId);
+            roomMemberChangeDao.deleteByRid(roomId);
+            return;
+        }
+        //queued first, a load of the room after the eviction finds it deleted
+        persistRoom(roomId, () -> {
+            roomDao.deleteByRid(roomId);
+            whiteboardDao.deleteByRid(roomId);
+            roomMemberDao.deleteByRid(roomId);
+            roomMemberChangeDao.deleteByRid(roomId);
+        });
+        evict(roomId);
+    }
+
+    /**
+     * Adds the member to the room the caller read, see {@link #changeMember}.
+     */
+    public boolean addMember(RoomCache room, RoomMember member) {
+        if (isLargeAudience() && member.getRole() == RoleEnum.RoleAudience.getValue()) {
+            return audienceStore.add(member);
+        }
+        String roomId = room.getRid();
+        RoomMember entity = RoomCache.copyOf(member);
+        if (!changeMember(room, member.getUid(), () -> room.addMember(member), () -> roomMemberDao.save(entity))) {
+            return false;
+        }
+        if (isCacheEnabled()) {
+            indexUser(member.getUid(), roomId);
+        }
+        return true;
+    }
+
+    public boolean removeMember(RoomCache room, String userId) {
+        String roomId = room.getRid();
+        if (isLargeAudience() && audienceStore.remove(roomId, userId)) {
+            return true;
+        }
+        if (!changeMember(room, userId, () -> room.removeMember(userId) != null,
+                () -> roomMemberDao.deleteUserByRidAndUid(roomId, userId))) {
+            return false;
+        }
+        if (isCacheEnabled()) {
+            unindexUser(userId, roomId);
+        }
+        return true;
+    }
+
+    /**
+     * Member changes of room after sinceVersion, from the log in memory, or else from the one in
+     * the database: without the cache room was just read, with it its log starts at its last load.
+     *
+     * @return null if the changes are no longer logged
+     */
+    public MemberDelta getMemberDelta(RoomCache room, long sinceVersion) {
+        MemberDelta delta = room.getMemberDelta(sinceVersion);
+        long memberVersion = room.getMemberVersion();
+        if (delta != null || sinceVersion >= memberVersion) {
+            return delta;
+        }
+        return room.getMemberDelta(sinceVersion, roomMemberChangeDao.findByRidAndMemberVersionBetween(room.getRid(), sinceVersion, memberVersion));
+    }
+
+    /**
+     * Changes the role the caller read in room, see {@link #updateMember}.
+     */
+    public boolean updateRole(RoomCache room, String userId, int role) {
+        String roomId = room.getRid();
+        if (isLargeAudience()) {
+            //moving in or out of the audience moves the member between the store and the room
+            RoomMember audience = audienceStore.get(roomId, userId);
+            if (audience != null) {
+                if (role == RoleEnum.RoleAudience.getValue()) {
+                    return true;
+                }
+                audienceStore.remove(roomId, userId);
+                audience.setRole(role);
+                audience.setCamera(true);
+                audience.setMic(true);
+                return addMember(room, audience);
+            }
+            if (role == RoleEnum.RoleAudience.getValue()) {
+                RoomMember member = getMember(roomId, userId);
+                if (member == null || !removeMember(room, userId)) {
+                    return false;
+                }
+                member.setRole(role);
+                return audienceStore.add(member);
+            }
+        }
+        return updateMember(room, userId, () -> room.updateRole(userId, role),
+                version -> roomMemberDao.updateRoleByRidAndUidAndVersion(roomId, userId, role, version));
+    }
+
+    public boolean updateCamera(RoomCache room, String userId, boolean camera) {
+        String roomId = room.getRid();
+        return updateMember(room, userId, () -> room.updateCamera(userId, camera),
+                version -> roomMemberDao.updateCameraByRidAndUidAndVersion(roomId, userId, camera, version));
+    }
+
+    public boolean updateMic(RoomCache room, String userId, boolean mic) {
+        String roomId = room.getRid();
+        return updateMember(room, userId, () -> room.updateMic(userId, mic),
+                version -> roomMemberDao.updateMicByRidAndUidAndVersion(roomId, userId, mic, version));
+    }
+
+    /**
+     * Changes the display the caller read in room, see {@link #updateMember}.
+     */
+    public void updateDisplay(RoomCache room, String display) {
+        String roomId = room.getRid();
+        long version = room.getVersion();
+        room.setDisplay(display);
+        persistRoom(roomId, () -> checkVersion(roomDao.updateDisplayByRidAndVersion(roomId, display, version), roomId, version));
+    }
+
+    public int nextWhiteboardNameIndex(RoomCache room) {
+        String roomId = room.getRid();
+        long version = room.getVersion();
+        int index = room.nextWhiteboardNameIndex();
+        persistRoom(roomId, () -> checkVersion(roomDao.updateWhiteboardNameIndexByRidAndVersion(roomId, index, version), roomId, version));
+        return index;
+    }
+
+    public void addWhiteboard(RoomCache room, Whiteboard wb) {
+        String roomId = room.getRid();
+        Whiteboard entity = RoomCache.copyOf(wb);
+        room.addWhiteboard(wb);
+        persistRoom(roomId, () -> {
+            whiteboardDao.save(entity);
+            roomDao.incrementVersionByRid(roomId);
+        });
+    }
+
+    public boolean removeWhiteboard(RoomCache room, String whiteboardId) {
+        String roomId = room.getRid();
+        if (room.removeWhiteboard(whiteboardId) == null) {
+            return false;
+        }
+        persistRoom(roomId, () -> {
+            whiteboardDao.deleteByWbid(whiteboardId);
+            roomDao.incrementVersionByRid(roomId);
+        });
+        return true;
+    }
+
+    public List<Whiteboard> removeWhiteboardsByCreator(RoomCache room, String creator) {
+        String roomId = room.getRid();
+        List<Whiteboard> list = room.removeWhiteboardsByCreator(creator);
+        if (!list.isEmpty()) {
+            persistRoom(roomId, () -> {
+                whiteboardDao.deleteByRidAndCreator(roomId, creator);
+                roomDao.incrementVersionByRid(roomId);
+            });
+        }
+        return list;
+    }
+
+    public boolean updateWhiteboardPage(RoomCache room, String whiteboardId, int page) {
+        String roomId = room.getRid();
+        if (!room.updateWhiteboardPage(whiteboardId, page)) {
+            return false;
+        }
+        persistRoom(roomId, () -> {
+            whiteboardDao.updatePageByRidAndWbid(roomId, whiteboardId, page);
+            roomDao.incrementVersionByRid(roomId);
+        });
+        return true;
+    }
+
+    public void saveUser(String userId, String userName, Date updateTime) {
+        persist(userId, () -> {
+            List<UserInfo> userInfoList = userDao.findByUid(userId);
+            if (userInfoList.isEmpty()) {
+                UserInfo userInfo = new UserInfo();
+                userInfo.setUid(userId);
+                userInfo.setName(userName);
+                userInfo.setCreateDt(updateTime);
+                userInfo.setUpdateDt(updateTime);
+                userDao.save(userInfo);
+            } else {
+                UserInfo user = userInfoList.get(0);
+                user.setUpdateDt(updateTime);
+                userDao.save(user);
+            }
+        });
+    }
+
+    public void deleteUser(String userId) {
+        persist(userId, () -> userDao.deleteByUid(userId));
+    }
+
+    private RoomCache loadRoom(String roomId) {
+        List<Room> roomList = roomDao.findByRid(roomId);
+        if (roomList.isEmpty()) {
+            return null;
+        }
+        return new RoomCache(roomList.get(0), roomMemberDao.findByRid(roomId), whiteboardDao.findByRid(roomId), roomProperties.getMemberChangeLogSize());
+    }
+
+    /**
+     * Compare-and-set update of a member of room, with the version the caller read in room: the
+     * change is applied to room, then to its row if the row still has that version. Without the
+     * cache room is the caller's own copy, and a row changed meanwhile, by another node, fails
+     * the update with ERR_UPDATE_CONFLICT, the caller reads the room again and starts over.
+     *
+     * @return false if the member is not in room
+     */
+    private boolean updateMember(RoomCache room, String userId, BooleanSupplier change, LongFunction<Integer> update) {
+        RoomMember member = room.getMember(userId);
+        if (member == null) {
+            return false;
+        }
+        long version = member.getVersion();
+        String key = room.getRid() + "/" + userId;
+        return changeMember(room, userId, change, () -> checkVersion(update.apply(version), key, version));
+    }
+
+    /**
+     * Applies change to room and writes it, in one transaction with the member version bump: a
+     * compare-and-set from the member version room had, which fails as {@link #updateMember}
+     * does if a member changed since on another node, and the change logged under the new one.
+     *
+     * @return false if change changed nothing
+     */
+    private boolean changeMember(RoomCache room, String userId, BooleanSupplier change, Runnable write) {
+        String roomId = room.getRid();
+        //under the room lock, writes are queued in the order of their member versions
+        synchronized (room) {
+            long memberVersion = room.getMemberVersion();
+            if (!change.getAsBoolean()) {
+                return false;
+            }
+            persistRoom(roomId, () -> {
+                checkVersion(roomDao.incrementMemberVersionByRidAndMemberVersion(roomId, memberVersion), roomId, memberVersion);
+                write.run();
+                logMemberChange(roomId, memberVersion + 1, userId);
+            });
+            return true;
+        }
+    }
+
+    private void logMemberChange(String roomId, long memberVersion, String userId) {
+        roomMemberChangeDao.save(new RoomMemberChange(roomId, memberVersion, userId));
+        //trimmed once every log size changes, a room keeps one to two logs of changes
+        int size = Math.max(1, roomProperties.getMemberChangeLogSize());
+        if (memberVersion % size == 0) {
+            roomMemberChangeDao.deleteByRidAndMemberVersionUpTo(roomId, memberVersion - size);
+        }
+    }
+
+    //no row updated: the row changed, or is gone, since version was read
+    private static void checkVersion(int updated, String key, long version) {
+        if (updated == 0) {
+            log.info("version conflict: key={}, version={}", key, version);
+            throw new ApiException(ErrorEnum.ERR_UPDATE_CONFLICT);
+        }
+    }
+
+    private void indexUser(String userId, String roomId) {
+        userRooms.computeIfAbsent(userId, k -> ConcurrentHashMap.newKeySet()).add(roomId);
+    }
+
+    private void unindexUser(String userId, String roomId) {
+        userRooms.computeIfPresent(userId, (k, roomIds) -> {
+            roomIds.remove(roomId);
+            return roomIds.isEmpty() ? null : roomIds;
+        });
+    }
+
+    private void evict(String roomId) {
+        evictions.incrementAndGet(slot(roomId));
+        RoomCache room = rooms.remove(roomId);
+        if (room != null) {
+            for (RoomMember member : room.getMembers()) {
+                unindexUser(member.getUid(), roomId);
+            }
+        }
+    }
+
+    private int slot(String roomId) {
+        return (roomId.hashCode() & Integer.MAX_VALUE) % evictions.length();
+    }
+
+    private ExecutorService stripe(String key) {
+        return persistExecutors[(key.hashCode() & Integer.MAX_VALUE) % persistExecutors.length];
+    }
+
+    private void persist(String key, Runnable write) {
+        if (!isCacheEnabled()) {
+            write.run();
+            return;
+        }
+        stripe(key).execute(() -> {
+            try {
+                write.run();
+            } catch (Exception e) {
+                persistErrors.increment();
+                log.error("persist error: key={}, {}", key, e.getMessage(), e);
+            }
+        });
+    }
+
+    /**
+     * As {@link #persist}, but a failed write drops the room from memory: the next read loads
+     * it from the database, after the writes queued behind the failed one.
+     */
+    private void persistRoom(String roomId, Runnable write) {
+        if (!isCacheEnabled()) {
+            write.run();
+            return;
+        }
+        stripe(roomId).execute(() -> {
+            try {
+                write.run();
+            } catch (Exception e) {
+                persistErrors.increment();
+                log.error("persist error, room dropped from memory: roomId={}, {}", roomId, e.getMessage(), e);
+                evict(roomId);
+            }
+        });
+    }
+}
@@ -0,0 +1,52 @@
+package cn.rongcloud.room;
+
+import cn.rongcloud.pojo.RoomMember;
+import cn.rongcloud.pojo.RoomResult;
+import cn.rongcloud.pojo.Whiteboard;
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.serializer.SerializerFeature;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The part of a room response that is the same for every user, encoded once per room and
+ * member version and shared by every response until the room changes.
+ */
+public class RoomSnapshot {
+    public static final RoomSnapshot EMPTY = encode(0, 0, null, new ArrayList<>(), new ArrayList<>());
+
+    private final @Getter long version;
+    private final @Getter long memberVersion;
+    //JSON array of the members
+    private final @Getter byte[] members;
+    //display, versions and whiteboards as JSON object fields, without the braces
+    private final @Getter byte[] fields;
+
+    private RoomSnapshot(long version, long memberVersion, byte[] members, byte[] fields) {
+        this.version = version;
+        this.memberVersion = memberVersion;
+        this.members = members;
+        this.fields = fields;
+    }
+
+    static RoomSnapshot encode(long version, long memberVersion, String display, List<RoomMember> members, List<Whiteboard> whiteboards) {
+        RoomResult result = new RoomResult();
+        result.setMembers(members);
+        result.setWhiteboards(whiteboards);
+
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put("display", display);
+        fields.put("memberVersion", memberVersion);
+        fields.put("version", version);
+        fields.put("whiteboards", result.getWhiteboards());
+        byte[] object = JSON.toJSONBytes(fields, SerializerFeature.WriteMapNullValue);
+        return new RoomSnapshot(version, memberVersion,
+                JSON.toJSONBytes(result.getMembers(), SerializerFeature.WriteMapNullValue),
+                Arrays.copyOfRange(object, 1, object.length - 1));
+    }
+}
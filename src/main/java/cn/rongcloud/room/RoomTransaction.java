@@ -0,0 +1,66 @@
+package cn.rongcloud.room;
+
+import cn.rongcloud.common.ApiException;
+import cn.rongcloud.common.ErrorEnum;
+import cn.rongcloud.config.RoomProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.concurrent.Callable;
+
+/**
+ * Runs a task that reads a room and changes it with the versions it read. Without the room
+ * cache it runs in a transaction, and again from the start while another node changes the
+ * room meanwhile, up to versionRetries times; messages of an attempt that fails are dropped
+ * with its transaction. The rooms in memory are changed by this node only, the task runs once.
+ */
+@Slf4j
+@Component
+public class RoomTransaction {
+    @Autowired
+    private RoomRegistry roomRegistry;
+
+    @Autowired
+    private RoomProperties roomProperties;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    public RoomTransaction() {
+    }
+
+    RoomTransaction(RoomRegistry roomRegistry, RoomProperties roomProperties, TransactionTemplate transactionTemplate) {
+        this.roomRegistry = roomRegistry;
+        this.roomProperties = roomProperties;
+        this.transactionTemplate = transactionTemplate;
+    }
+
+    public <T> T versioned(Callable<T> task) throws Exception {
+        if (roomRegistry.isCacheEnabled()) {
+            return task.call();
+        }
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return transactionTemplate.execute(status -> {
+                    try {
+                        return task.call();
+                    } catch (RuntimeException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        throw new UndeclaredThrowableException(e);
+                    }
+                });
+            } catch (UndeclaredThrowableException e) {
+                throw (Exception) e.getCause();
+            } catch (ApiException e) {
+                if (e.getError() != ErrorEnum.ERR_UPDATE_CONFLICT || attempt >= roomProperties.getVersionRetries()) {
+                    throw e;
+                }
+                log.info("room changed by another node, run again: attempt={}", attempt);
+            }
+        }
+    }
+}
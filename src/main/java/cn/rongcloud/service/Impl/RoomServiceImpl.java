@@ -3,12 +3,22 @@ package cn.rongcloud.service.Impl;
 import cn.rongcloud.common.*;
 import cn.rongcloud.config.IMProperties;
 import cn.rongcloud.config.RoomProperties;
-import cn.rongcloud.dao.*;
+import cn.rongcloud.im.GroupBatcher;
 import cn.rongcloud.im.IMHelper;
+import cn.rongcloud.im.IMTokenCache;
+import cn.rongcloud.im.MemberDigest;
+import cn.rongcloud.im.MessageDispatcher;
 import cn.rongcloud.im.message.*;
+import cn.rongcloud.job.OnlineStatusQueue;
 import cn.rongcloud.job.ScheduleManager;
 import cn.rongcloud.permission.DeclarePermissions;
 import cn.rongcloud.pojo.*;
+import cn.rongcloud.room.MemberDelta;
+import cn.rongcloud.room.RoomCache;
+import cn.rongcloud.room.RoomMailbox;
+import cn.rongcloud.room.RoomRegistry;
+import cn.rongcloud.room.RoomSnapshot;
+import cn.rongcloud.room.RoomTransaction;
 import cn.rongcloud.service.RoomService;
 import cn.rongcloud.utils.CheckUtils;
 import cn.rongcloud.utils.CodeUtil;
@@ -18,11 +28,19 @@ import cn.rongcloud.whiteboard.WhiteBoardHelper;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Created by weiqinxiao on 2019/2/28.
@@ -37,10 +55,7 @@ public class RoomServiceImpl implements RoomService {
     private RoomProperties roomProperties;
 
     @Autowired
-    private RoomDao roomDao;
-
-    @Autowired
-    private RoomMemberDao roomMemberDao;
+    private RoomRegistry roomRegistry;
 
     @Autowired
     private JwtTokenHelper tokenHelper;
@@ -48,266 +63,409 @@ public class RoomServiceImpl implements RoomService {
     @Autowired
     private WhiteBoardHelper whiteBoardHelper;
 
-    @Autowired
-    private WhiteboardDao whiteboardDao;
-
     @Autowired
     private ScheduleManager scheduleManager;
 
     @Autowired
-    private UserDao userDao;
+    private OnlineStatusQueue onlineStatusQueue;
 
     @Autowired
     private IMProperties imProperties;
 
-    @Transactional
+    @Autowired
+    private MessageDispatcher messageDispatcher;
+
+    @Autowired
+    private IMTokenCache imTokenCache;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @Autowired
+    private RoomTransaction roomTransaction;
+
+    @Autowired
+    private RoomMailbox roomMailbox;
+
+    @Autowired
+    private GroupBatcher groupBatcher;
+
+    @Autowired
+    private MemberDigest memberDigest;
+
+    private ExecutorService joinExecutor;
+
+    @PostConstruct
+    private void init() {
+        AtomicInteger index = new AtomicInteger();
+        joinExecutor = Executors.newFixedThreadPool(Math.max(1, roomProperties.getJoinThreads()), r -> {
+            Thread t = new Thread(r, "room-join-" + index.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    private void destroy() {
+        joinExecutor.shutdown();
+    }
+
     @Override
-    public RoomResult joinRoom(String userName, String roomId, boolean isAudience, boolean isDisableCamera, JwtUser jwtUser) throws ApiException, Exception {
+    public CompletableFuture<RoomResult> joinRoom(String userName, String roomId, boolean isAudience, boolean isDisableCamera, JwtUser jwtUser) throws ApiException, Exception {
         CheckUtils.checkArgument(userName != null, "userName must't be null");
         CheckUtils.checkArgument(roomId != null, "roomId must't be null");
 
         log.info("joinRoom: jwtUser={}, roomId={}, userName={}, isAudience={}, isDisableCamera={}", jwtUser, roomId, userName, isAudience, isDisableCamera);
         String userId;
         if (jwtUser != null) {
-            userId = jwtUser.getUserId();
             if (!jwtUser.getUserName().equals(userName) || !jwtUser.getRoomId().equals(roomId)) {
                 userId = IdentifierUtils.uuid();
                 log.info("generate new user: roomId={} , userId={}, userName={}", roomId, userId, userName);
             } else {
+                userId = jwtUser.getUserId();
                 log.info("join the old room: roomId={} , userId={}, userName={}", roomId, userId, userName);
             }
         } else {
             userId = IdentifierUtils.uuid();
         }
 
-        String display = "";
         Date curTime = DateTimeUtils.currentUTC();
-        List<Room> roomList = roomDao.findByRid(roomId);
-        if (roomList.isEmpty()) {
-            saveRoom(roomId, roomId, curTime, display);
-            IMApiResultInfo resultInfo = imHelper.createGroup(new String[]{userId}, roomId, roomId);
-            if (!resultInfo.isSuccess()) {
-                log.error("joinRoom IM error: roomId={}, {}", roomId, resultInfo.getErrorMessage());
-                throw new ApiException(ErrorEnum.ERR_CREATE_ROOM_ERROR, resultInfo.getErrorMessage());
-            } else {
-                scheduleManager.addExpiredTask(this, roomId);
-            }
+        RoomResult roomResult = new RoomResult();
+        RoomResult.MemberResult userResult = new RoomResult.MemberResult();
+        userResult.setUserName(userName);
+        userResult.setUserId(userId);
+
+        //generate authorization
+        JwtUser authUser = new JwtUser();
+        authUser.setUserId(userId);
+        authUser.setUserName(userName);
+        authUser.setRoomId(roomId);
+        JwtToken jwtToken = tokenHelper.createJwtToken(authUser);
+
+        //every IM call below is async, no request thread waits on the IM server,
+        //registry work runs in the room mailbox so concurrent joins see each other.
+        //the token does not depend on the group, it loads while the user joins
+        CompletableFuture<IMTokenInfo> tokenFuture = imTokenCache.getToken(userId, userId);
+        CompletableFuture<Void> roomFuture;
+        if (!roomRegistry.existsRoom(roomId)) {
+            roomFuture = imHelper.createGroupAsync(new String[]{userId}, roomId, roomId).thenCompose(resultInfo -> {
+                if (!resultInfo.isSuccess()) {
+                    log.error("joinRoom IM error: roomId={}, {}", roomId, resultInfo.getErrorMessage());
+                    throw new ApiException(ErrorEnum.ERR_CREATE_ROOM_ERROR, resultInfo.getErrorMessage());
+                }
+                return roomMailbox.submit(roomId, () -> {
+                    if (!roomRegistry.existsRoom(roomId)) {
+                        roomRegistry.createRoom(roomId, roomId, curTime, "");
+                    }
+                    return null;
+                });
+            });
         } else {
-            display = roomList.get(0).getDisplay();
+            roomFuture = CompletableFuture.completedFuture(null);
         }
 
-        RoleEnum roleEnum;
-        RoomResult roomResult = new RoomResult();
-        RoomResult.MemberResult userResult = new RoomResult.MemberResult();
-        List<RoomMember> memberList = roomMemberDao.findByRidAndUid(roomId, userId);
-        if (memberList.isEmpty()) {
-            int count = roomMemberDao.countByRidAndExcludeRole(roomId, RoleEnum.RoleAudience.getValue());
-            if (!isAudience && count == roomProperties.getMaxCount()) {
-                log.info("join error: roomId = {}, userName = {}, isAudience = {}", roomId, userName, isAudience);
-                throw new ApiException(ErrorEnum.ERR_OVER_MAX_COUNT);
+        //the room is read once and handed from step to step, a step whose update conflicts reads it again
+        AtomicReference<RoomCache> joinedRoom = new AtomicReference<>();
+        CompletableFuture<String> joined = roomFuture
+                .thenCompose(v -> roomMailbox.submit(roomId, () -> roomTransaction.versioned(() -> admitMember(roomId, userResult, isAudience, isDisableCamera, curTime, joinedRoom))))
+                .thenCompose(admitted -> admitted ? joinGroup(roomId, userId) : CompletableFuture.completedFuture(null))
+                .thenCompose(v -> roomMailbox.submit(roomId, () -> roomTransaction.versioned(() -> notifyMemberJoined(roomId, userResult, isDisableCamera, curTime, joinedRoom))));
+
+        //once joined, saving the user and reading the room do not wait on each other.
+        //a failed join fails them too, and its error comes first, then these, then the token's
+        CompletableFuture<Void> userSaved = joined.thenAcceptAsync(display -> {
+            //a large audience leaves no rows behind
+            if (!isLargeAudience(userResult.getRole())) {
+                roomRegistry.saveUser(userId, userName, curTime);
             }
-            if (!isAudience) {
-                List<RoomMember> assistantList = roomMemberDao.findByRidAndRole(roomId, RoleEnum.RoleAssistant.getValue());
-                if (!assistantList.isEmpty()) {
-                    if (count == 1) {
-                        roleEnum = RoleEnum.RoleTeacher;
+        }, joinExecutor);
+        CompletableFuture<Void> snapshot = joined.thenAcceptAsync(display -> {
+            RoomCache current = joinedRoom.get();
+            roomResult.setSnapshot(current == null ? RoomSnapshot.EMPTY : roomRegistry.getSnapshot(current));
+            roomResult.setAudienceCount(roomRegistry.countAudience(roomId));
+        }, joinExecutor);
+
+        return joined
+                .thenCombine(userSaved, (display, v) -> display)
+                .thenCombine(snapshot, (display, v) -> display)
+                .thenCombine(tokenFuture, (display, tokenInfo) -> {
+                    if (tokenInfo.isSuccess()) {
+                        roomResult.setImToken(tokenInfo.getToken());
                     } else {
-                        roleEnum = RoleEnum.RoleStudent;
+                        throw new ApiException(ErrorEnum.ERR_IM_TOKEN_ERROR, tokenInfo.getErrorMessage());
                     }
+                    roomResult.setUserInfo(userResult);
+                    roomResult.setAuthorization(jwtToken.getToken());
+                    roomResult.setRoomId(roomId);
+                    log.info("join success: roomId = {}, userId = {}, userName={}, role = {}", roomId, userId, userName, RoleEnum.getEnumByValue(userResult.getRole()));
+                    return roomResult;
+                });
+    }
+
+    /**
+     * Runs in the room mailbox. A new member is saved before joining the IM group, so the
+     * next join counts it, and removed again if the IM join fails.
+     *
+     * @param joinedRoom set to the room the user is admitted in
+     * @return true if the user is a new member of the room
+     */
+    private boolean admitMember(String roomId, RoomResult.MemberResult userResult, boolean isAudience, boolean isDisableCamera, Date curTime, AtomicReference<RoomCache> joinedRoom) {
+        RoomCache room = roomRegistry.getRoom(roomId);
+        if (room == null) {
+            throw new ApiException(ErrorEnum.ERR_ROOM_NOT_EXIST);
+        }
+        joinedRoom.set(room);
+        String userId = userResult.getUserId();
+        RoomMember member = roomRegistry.getMember(room, userId);
+        if (member != null) {
+            RoleEnum roleEnum = RoleEnum.getEnumByValue(member.getRole());
+            roomRegistry.updateCamera(room, userId, !isDisableCamera);
+            userResult.setRole(roleEnum.getValue());
+            userResult.setCamera(!isDisableCamera);
+            userResult.setJoinTime(member.getJoinDt());
+
+            log.info("user exist in the room: roomId={} , userId={}, use the last role={}", roomId, userId, roleEnum);
+            return false;
+        }
+
+        RoleEnum roleEnum;
+        int count = room.countMembersExcludeRole(RoleEnum.RoleAudience.getValue());
+        if (!isAudience && count == roomProperties.getMaxCount()) {
+            log.info("join error: roomId = {}, userName = {}, isAudience = {}", roomId, userResult.getUserName(), isAudience);
+            throw new ApiException(ErrorEnum.ERR_OVER_MAX_COUNT);
+        }
+        if (!isAudience) {
+            List<RoomMember> assistantList = room.getMembersByRole(RoleEnum.RoleAssistant.getValue());
+            if (!assistantList.isEmpty()) {
+                if (count == 1) {
+                    roleEnum = RoleEnum.RoleTeacher;
                 } else {
-                    roleEnum = RoleEnum.RoleAssistant;
+                    roleEnum = RoleEnum.RoleStudent;
                 }
             } else {
-                roleEnum = RoleEnum.RoleAudience;
-            }
-            saveRoomMember(userId, userName, roomId, roleEnum.getValue(), !isDisableCamera, curTime);
-            IMApiResultInfo resultInfo = imHelper.joinGroup(new String[]{userId}, roomId, roomId);
-            if (!resultInfo.isSuccess()) {
-                throw new ApiException(ErrorEnum.ERR_CREATE_ROOM_ERROR, resultInfo.getErrorMessage());
+                roleEnum = RoleEnum.RoleAssistant;
             }
-            userResult.setMicrophone(true);
-            userResult.setCamera(!isDisableCamera);
-            userResult.setJoinTime(curTime);
-            log.info("user join the room: roomId={} , userId={}, roleEnum={}, memCount: {}", roomId, userId, roleEnum, count);
         } else {
-            roleEnum = RoleEnum.getEnumByValue(memberList.get(0).getRole());
-            roomMemberDao.updateCameraByRidAndUid(roomId, userId, !isDisableCamera);
-            userResult.setCamera(!isDisableCamera);
-            userResult.setJoinTime(memberList.get(0).getJoinDt());
-
-            log.info("user exist in the room: roomId={} , userId={}, use the last role={}", roomId, userId, roleEnum);
+            roleEnum = RoleEnum.RoleAudience;
         }
+        userResult.setRole(roleEnum.getValue());
+        saveRoomMember(room, userId, userResult.getUserName(), roleEnum.getValue(), !isDisableCamera, curTime);
+        userResult.setMicrophone(true);
+        userResult.setCamera(!isDisableCamera);
+        userResult.setJoinTime(curTime);
+        log.info("user join the room: roomId={} , userId={}, roleEnum={}, memCount: {}", roomId, userId, roleEnum, count);
+        return true;
+    }
 
+    private CompletableFuture<Void> joinGroup(String roomId, String userId) {
+        return groupBatcher.join(userId, roomId, roomId).handle((resultInfo, e) -> {
+            if (e != null) {
+                return e;
+            }
+            return resultInfo.isSuccess() ? null : new ApiException(ErrorEnum.ERR_CREATE_ROOM_ERROR, resultInfo.getErrorMessage());
+        }).thenCompose(error -> {
+            CompletableFuture<Void> joined = new CompletableFuture<>();
+            if (error == null) {
+                joined.complete(null);
+                return joined;
+            }
+            log.error("join IM group error, remove member: roomId={}, userId={}, {}", roomId, userId, error.getMessage());
+            roomMailbox.submit(roomId, () -> roomTransaction.versioned(() -> {
+                RoomCache room = roomRegistry.getRoom(roomId);
+                return room != null && roomRegistry.removeMember(room, userId);
+            }))
+                    .whenComplete((r, e) -> joined.completeExceptionally(error));
+            return joined;
+        });
+    }
+
+    /**
+     * Runs in the room mailbox, in the room admitMember read: members and display may be behind
+     * by the changes made since, as the versions of the response say. Only the first run takes
+     * it: a run again after a conflict reads the room anew, the copy holds the failed changes.
+     *
+     * @param joinedRoom the room the user was admitted in, set to the room as notified
+     */
+    private String notifyMemberJoined(String roomId, RoomResult.MemberResult userResult, boolean isDisableCamera, Date curTime, AtomicReference<RoomCache> joinedRoom) {
+        RoomCache admitted = joinedRoom.getAndSet(null);
+        RoomCache room = admitted != null ? roomRegistry.getRoom(admitted) : roomRegistry.getRoom(roomId);
+        if (room == null) {
+            throw new ApiException(ErrorEnum.ERR_ROOM_NOT_EXIST);
+        }
+        String userId = userResult.getUserId();
+        RoleEnum roleEnum = RoleEnum.getEnumByValue(userResult.getRole());
         MemberChangedMessage msg = new MemberChangedMessage(MemberChangedMessage.Action_Join, userId, roleEnum.getValue());
         msg.setTimestamp(curTime);
-        msg.setUserName(userName);
+        msg.setUserName(userResult.getUserName());
         msg.setCamera(!isDisableCamera);
-        imHelper.publishMessage(userId, roomId, msg);
+        memberDigest.dispatch(userId, roomId, msg, countMembers(room));
+
+        String display = room.getDisplay();
         if (roleEnum == RoleEnum.RoleTeacher) {
             display = "display://type=1?userId=" + userId + "?uri=";
-            updateDisplay(roomId, userId, display, 0);
+            updateDisplay(room, userId, display, 0);
             log.info("joinRoom, display changed: roomId={}, {}, userId={}", roomId, display, userId);
         } else if (roleEnum == RoleEnum.RoleAssistant && display.isEmpty()) {
             display = "display://type=0?userId=" + userId + "?uri=";
-            updateDisplay(roomId, userId, display, 0);
+            updateDisplay(room, userId, display, 0);
             log.info("joinRoom, display changed: roomId={}, {}, userId={}", roomId, display, userId);
         }
-
-        List<UserInfo> userInfoList = userDao.findByUid(userId);
-        if (userInfoList.isEmpty()) {
-            UserInfo userInfo = new UserInfo();
-            userInfo.setUid(userId);
-            userInfo.setName(userName);
-            userInfo.setCreateDt(curTime);
-            userInfo.setUpdateDt(curTime);
-            userDao.save(userInfo);
-        } else {
-            UserInfo user = userInfoList.get(0);
-            user.setUpdateDt(curTime);
-            userDao.save(user);
-        }
-
-        userResult.setUserName(userName);
-        userResult.setUserId(userId);
-        userResult.setRole(roleEnum.getValue());
-        roomResult.setUserInfo(userResult);
-        roomResult.setDisplay(display);
-
-        //generate authorization
-        jwtUser = new JwtUser();
-        jwtUser.setUserId(userId);
-        jwtUser.setUserName(userName);
-        jwtUser.setRoomId(roomId);
-        JwtToken jwtToken = tokenHelper.createJwtToken(jwtUser);
-        IMTokenInfo tokenInfo = imHelper.getToken(userId, userId, "");
-        if (tokenInfo.isSuccess()) {
-            roomResult.setImToken(tokenInfo.getToken());
-        } else {
-            throw new ApiException(ErrorEnum.ERR_IM_TOKEN_ERROR, tokenInfo.getErrorMessage());
-        }
-        roomResult.setAuthorization(jwtToken.getToken());
-        roomResult.setRoomId(roomId);
-        List<RoomMember> roomMemberList = roomMemberDao.findByRid(roomId);
-        roomResult.setMembers(roomMemberList);
-
-        List<Whiteboard> whiteboardList = whiteboardDao.findByRid(roomId);
-        roomResult.setWhiteboards(whiteboardList);
-        log.info("join success: roomId = {}, userId = {}, userName={}, role = {}", roomId, userId, userName, roleEnum);
-        return roomResult;
+        joinedRoom.set(room);
+        return display;
     }
 
-    private void saveRoom(String roomId, String roomName, Date createTime, String display) {
-        Room room = new Room();
-        room.setRid(roomId);
-        room.setName(roomName);
-        room.setCreateDt(createTime);
-        room.setDisplay(display);
-        room.setWhiteboardNameIndex(0);
-        roomDao.save(room);
-    }
-
-    private void saveRoomMember(String userId, String userName, String roomId, int role, boolean cameraOn, Date joinTime) {
+    private void saveRoomMember(RoomCache room, String userId, String userName, int role, boolean cameraOn, Date joinTime) {
         RoomMember roomMember = new RoomMember();
         roomMember.setUid(userId);
         roomMember.setName(userName);
-        roomMember.setRid(roomId);
+        roomMember.setRid(room.getRid());
         roomMember.setRole(role);
         roomMember.setCamera(cameraOn);
         roomMember.setJoinDt(joinTime);
-        roomMemberDao.save(roomMember);
+        roomRegistry.addMember(room, roomMember);
     }
 
-    @Transactional
     @Override
-    public Boolean leaveRoom(JwtUser jwtUser, String roomId) throws Exception {
+    public CompletableFuture<Boolean> leaveRoom(JwtUser jwtUser, String roomId) throws Exception {
         CheckUtils.checkArgument(jwtUser.getUserId() != null, "userId must't be null");
         CheckUtils.checkArgument(roomId != null, "roomId must't be null");
         CheckUtils.checkArgument(roomId.equals(jwtUser.getRoomId()), "roomId not exist");
 
-        List<Room> roomList = roomDao.findByRid(roomId);
-        if (roomList.size() == 0) {
-            log.error("room : {} not exist ", roomId);
-            throw new ApiException(ErrorEnum.ERR_ROOM_NOT_EXIST);
-        }
-
-        List<RoomMember> roomMemberList = roomMemberDao.findByRidAndUid(roomId, jwtUser.getUserId());
-        if (roomMemberList.size() == 0) {
-            log.error("{} not exist in room: {}", jwtUser.getUserId(), roomId);
-            throw new ApiException(ErrorEnum.ERR_USER_NOT_EXIST_IN_ROOM);
-        }
+        //the last member removes the room and dismisses the group, the others quit the group and
+        //are removed then. only registry changes run in the mailbox, IM calls outside of it, so
+        //that no room waits on the IM server and the quits of a room emptying at once share IM calls
+        String userId = jwtUser.getUserId();
+        AtomicBoolean dismissed = new AtomicBoolean();
+        return roomMailbox.submit(roomId, () -> roomTransaction.versioned(() -> {
+            RoomCache room = roomRegistry.getRoom(roomId);
+            if (room == null) {
+                log.error("room : {} not exist ", roomId);
+                throw new ApiException(ErrorEnum.ERR_ROOM_NOT_EXIST);
+            }
+            RoomMember member = roomRegistry.getMember(room, userId);
+            if (member == null) {
+                log.error("{} not exist in room: {}", userId, roomId);
+                throw new ApiException(ErrorEnum.ERR_USER_NOT_EXIST_IN_ROOM);
+            }
+            if (countMembers(room) != 1) {
+                return null;
+            }
+            dismissed.set(true);
+            return removeLeavingMember(room, member, jwtUser, true);
+        })).thenCompose(removedWhiteboards -> {
+            if (removedWhiteboards != null) {
+                return CompletableFuture.completedFuture(removedWhiteboards);
+            }
+            return groupBatcher.quit(userId, roomId).handle((resultInfo, e) -> {
+                if (e != null || !resultInfo.isSuccess()) {
+                    String error = e != null ? e.getMessage() : resultInfo.getErrorMessage();
+                    log.error("{} exit {} room error: {}", userId, roomId, error);
+                    throw new ApiException(ErrorEnum.ERR_EXIT_ROOM_ERROR, error);
+                }
+                return resultInfo;
+            }).thenCompose(resultInfo -> roomMailbox.submit(roomId, () -> roomTransaction.versioned(() -> {
+                RoomCache room = roomRegistry.getRoom(roomId);
+                RoomMember member = room == null ? null : roomRegistry.getMember(room, userId);
+                if (member == null) {
+                    log.info("member gone while quitting group: roomId={}, {}", roomId, jwtUser);
+                    return new ArrayList<Whiteboard>();
+                }
+                //the others left meanwhile, nobody is in the IM group any more
+                boolean dismiss = countMembers(room) == 1;
+                dismissed.set(dismiss);
+                return removeLeavingMember(room, member, jwtUser, dismiss);
+            })));
+        }).thenApplyAsync(removedWhiteboards -> {
+            if (dismissed.get()) {
+                dismissGroup(userId, roomId);
+            }
+            destroyWhiteboards(removedWhiteboards);
+            return true;
+        }, joinExecutor);
+    }
 
-        int userRole = roomMemberList.get(0).getRole();
+    /**
+     * Runs in the room mailbox, after the user quit the IM group or before the last member
+     * dismisses it. The transaction only holds the DB work, messages go out after it commits.
+     *
+     * @return whiteboards to destroy
+     */
+    private List<Whiteboard> removeLeavingMember(RoomCache room, RoomMember member, JwtUser jwtUser, boolean dismiss) {
+        String roomId = room.getRid();
+        String userId = member.getUid();
+        int userRole = member.getRole();
         log.info("leaveRoom: roomId={}, {}, role={}", roomId, jwtUser, RoleEnum.getEnumByValue(userRole));
 
+        boolean clearDisplay = false;
         if (userRole == RoleEnum.RoleTeacher.getValue() || userRole == RoleEnum.RoleAssistant.getValue()) {
-            if (isUserDisplay(roomList.get(0), jwtUser.getUserId())) {
-                updateDisplay(roomId, jwtUser.getUserId(), "", 0);
-                log.info("clear display cause speaker leave: roomId={}, {}", roomId, jwtUser);
+            if (isUserDisplay(room, userId)) {
+                clearDisplay = true;
             } else {
-                log.info("don't update current display: room={}, role={}", roomList.get(0), RoleEnum.getEnumByValue(userRole));
+                log.info("don't update current display: room={}, role={}", room, RoleEnum.getEnumByValue(userRole));
             }
         } else {
-            log.info("don't update current display: room={}, userRole={}", roomList.get(0), RoleEnum.getEnumByValue(userRole));
+            log.info("don't update current display: room={}, userRole={}", room, RoleEnum.getEnumByValue(userRole));
         }
 
-        if (roomMemberDao.countByRid(roomId) == 1) {
-            IMApiResultInfo apiResultInfo = null;
-            try {
-                apiResultInfo = imHelper.dismiss(jwtUser.getUserId(), roomId);
-                if (apiResultInfo.getCode() == 200) {
-                    roomMemberDao.deleteUserByRidAndUid(roomId, jwtUser.getUserId());
-                    roomDao.deleteByRid(roomId);
-                    deleteWhiteboardByUser(roomId, jwtUser.getUserId());
-                    log.info("dismiss the room: {}", roomId);
-                } else {
-                    log.error("{} exit {} room error: {}", jwtUser.getUserId(), roomId, apiResultInfo.getErrorMessage());
-                    throw new ApiException(ErrorEnum.ERR_EXIT_ROOM_ERROR, apiResultInfo.getErrorMessage());
-                }
-            } catch (Exception e) {
-                log.error("{} exit {} room error: {}", jwtUser.getUserId(), roomId, e.getMessage());
-                throw new ApiException(ErrorEnum.ERR_EXIT_ROOM_ERROR, e.getMessage());
+        boolean isClearDisplay = clearDisplay;
+        return transactionTemplate.execute(status -> {
+            if (isClearDisplay) {
+                updateDisplay(room, userId, "", 0);
+                log.info("clear display cause speaker leave: roomId={}, {}", roomId, jwtUser);
             }
-        } else {
-            IMApiResultInfo apiResultInfo = null;
-            try {
-                apiResultInfo = imHelper.quit(new String[]{jwtUser.getUserId()}, roomId);
-                if (apiResultInfo.isSuccess()) {
-                    roomMemberDao.deleteUserByRidAndUid(roomId, jwtUser.getUserId());
-                    MemberChangedMessage msg = new MemberChangedMessage(MemberChangedMessage.Action_Leave, jwtUser.getUserId(), userRole);
-                    msg.setUserName(jwtUser.getUserName());
-                    imHelper.publishMessage(jwtUser.getUserId(), roomId, msg);
-                    imHelper.quit(new String[]{jwtUser.getUserId()}, roomId);
-                    log.info("quit group: roomId={}, {}", roomId, jwtUser);
-                } else {
-                    throw new ApiException(ErrorEnum.ERR_EXIT_ROOM_ERROR, apiResultInfo.getErrorMessage());
-                }
-            } catch (Exception e) {
-                log.error("leave room error: roomId={}, {}, {}", roomId, jwtUser, e.getMessage());
-                throw new ApiException(ErrorEnum.ERR_EXIT_ROOM_ERROR);
+            List<Whiteboard> whiteboards = new ArrayList<>();
+            if (dismiss) {
+                whiteboards = roomRegistry.removeWhiteboardsByCreator(room, userId);
+                roomRegistry.removeRoom(roomId);
+                log.info("dismiss the room: {}", roomId);
+            } else {
+                roomRegistry.removeMember(room, userId);
+                MemberChangedMessage msg = new MemberChangedMessage(MemberChangedMessage.Action_Leave, userId, userRole);
+                msg.setUserName(jwtUser.getUserName());
+                memberDigest.dispatch(userId, roomId, msg, countMembers(room));
+                log.info("quit group: roomId={}, {}", roomId, jwtUser);
             }
-        }
-        userDao.deleteByUid(jwtUser.getUserId());
+            roomRegistry.deleteUser(userId);
+            imTokenCache.invalidate(userId);
+            return whiteboards;
+        });
+    }
 
-        return true;
+    //the room is gone already, a group left behind only holds its last member
+    private void dismissGroup(String userId, String roomId) {
+        imHelper.dismissAsync(userId, roomId).whenComplete((resultInfo, e) -> {
+            if (e != null || !resultInfo.isSuccess()) {
+                log.error("dismiss empty group error: roomId={}, {}", roomId, e != null ? e.getMessage() : resultInfo.getErrorMessage());
+            } else {
+                log.info("dismiss group: roomId={}", roomId);
+            }
+        });
     }
 
-    private void deleteWhiteboardByUser(String roomId, String userId) throws Exception {
-        List<Whiteboard> whiteboardList = whiteboardDao.findByRidAndCreator(roomId, userId);
-        if (!whiteboardList.isEmpty()) {
-            whiteboardDao.deleteByRidAndCreator(roomId, userId);
-            for (Whiteboard wb : whiteboardList) {
+    private void destroyWhiteboards(List<Whiteboard> whiteboardList) {
+        for (Whiteboard wb : whiteboardList) {
+            try {
                 whiteBoardHelper.destroy(wb.getWbRoom());
+            } catch (Exception e) {
+                log.error("destroy whiteboard error: {}, {}", wb.getWbRoom(), e.getMessage());
             }
         }
     }
 
-    @Transactional
     @Override
     public void destroyRoom(String roomId) {
-        roomDao.deleteByRid(roomId);
-        whiteboardDao.deleteByRid(roomId);
-
-        List<RoomMember> list = roomMemberDao.findByRid(roomId);
+        List<RoomMember> list;
+        try {
+            list = roomMailbox.call(roomId, () -> transactionTemplate.execute(status -> {
+                RoomCache room = roomRegistry.getRoom(roomId);
+                List<RoomMember> members = room == null ? new ArrayList<>() : room.getMembers();
+                roomRegistry.removeRoom(roomId);
+                return members;
+            }));
+        } catch (Exception e) {
+            log.error("destroyRoom error: roomId={}, {}", roomId, e.getMessage(), e);
+            return;
+        }
         if (!list.isEmpty()) {
             try {
                 imHelper.dismiss(list.get(0).getUid(), roomId);
@@ -316,98 +474,99 @@ public class RoomServiceImpl implements RoomService {
                 e.printStackTrace();
             }
         }
-        roomMemberDao.deleteByRid(roomId);
         log.info("destroyRoom: {}", roomId);
     }
 
-    @Transactional
     @DeclarePermissions(RoleEnum.RoleAssistant)
     @Override
     public Boolean downgrade(String roomId, JwtUser jwtUser, List<ReqChangeUserRoleData.ChangedUser> users) throws ApiException, Exception {
         CheckUtils.checkArgument(roomId != null, "roomId must't be null");
         CheckUtils.checkArgument(users.size() > 0, "the changed user list must't be null");
 
-        List<Room> roomList = roomDao.findByRid(roomId);
-        if (roomList.isEmpty()) {
-            throw new ApiException(ErrorEnum.ERR_ROOM_NOT_EXIST);
-        }
+        return roomMailbox.call(roomId, () -> roomTransaction.versioned(() -> {
+            RoomCache room = roomRegistry.getRoom(roomId);
+            if (room == null) {
+                throw new ApiException(ErrorEnum.ERR_ROOM_NOT_EXIST);
+            }
 
-        boolean result = false;
-        List<RoleChangedMessage.ChangedUser> changedUsers = new ArrayList<>();
-        for (ReqChangeUserRoleData.ChangedUser user : users) {
-            String changedUserId = user.getUserId();
-            RoleEnum changedRole = RoleEnum.getEnumByValue(user.getRole());
-            if (changedUserId.equals(jwtUser.getUserId())) {
-                log.error("can not change self role: {}, {}, {}", roomId, jwtUser.getUserId(), changedRole);
-                throw new ApiException(ErrorEnum.ERR_CHANGE_SELF_ROLE);
-            } else {
-                List<RoomMember> oldUsers = roomMemberDao.findByRidAndUid(roomId, changedUserId);
-                if (oldUsers.size() > 0) {
-                    if (changedRole.equals(RoleEnum.RoleAudience)) {
-                        int r = roomMemberDao.updateRoleByRidAndUid(roomId, changedUserId, changedRole.getValue());
-                        RoleChangedMessage.ChangedUser u = new RoleChangedMessage.ChangedUser(changedUserId, changedRole.getValue());
-                        List<UserInfo> userInfoList = userDao.findByUid(changedUserId);
-                        if (!userInfoList.isEmpty()) {
-                            u.setUserName(userInfoList.get(0).getName());
+            boolean result = false;
+            List<RoleChangedMessage.ChangedUser> changedUsers = new ArrayList<>();
+            for (ReqChangeUserRoleData.ChangedUser user : users) {
+                String changedUserId = user.getUserId();
+                RoleEnum changedRole = RoleEnum.getEnumByValue(user.getRole());
+                if (changedUserId.equals(jwtUser.getUserId())) {
+                    log.error("can not change self role: {}, {}, {}", roomId, jwtUser.getUserId(), changedRole);
+                    throw new ApiException(ErrorEnum.ERR_CHANGE_SELF_ROLE);
+                } else {
+                    RoomMember oldUser = room.getMember(changedUserId);
+                    if (oldUser != null) {
+                        if (changedRole.equals(RoleEnum.RoleAudience)) {
+                            boolean r = roomRegistry.updateRole(room, changedUserId, changedRole.getValue());
+                            RoleChangedMessage.ChangedUser u = new RoleChangedMessage.ChangedUser(changedUserId, changedRole.getValue());
+                            u.setUserName(oldUser.getName());
+                            changedUsers.add(u);
+                            log.info("change the role: {}, {}, {}, result: {}", roomId, jwtUser.getUserId(), changedRole, r);
+                            result = true;
+                        }
+                        if (oldUser.getRole() == RoleEnum.RoleTeacher.getValue() && isUserDisplay(room, oldUser.getUid())) {
+                            updateDisplay(room, jwtUser.getUserId(), "", 1);
+                        } else {
+                            log.info("don't update display: room={}, userRole={}", room, RoleEnum.getEnumByValue(oldUser.getRole()));
                         }
-                        changedUsers.add(u);
-                        log.info("change the role: {}, {}, {}, result: {}", roomId, jwtUser.getUserId(), changedRole, r);
-                        result = true;
-                    }
-                    if (oldUsers.get(0).getRole() == RoleEnum.RoleTeacher.getValue() && isUserDisplay(roomList.get(0), oldUsers.get(0).getUid())) {
-                        updateDisplay(roomId, jwtUser.getUserId(), "", 1);
                     } else {
-                        log.info("don't update display: room={}, userRole={}", roomList.get(0), RoleEnum.getEnumByValue(oldUsers.get(0).getRole()));
+                        log.info("role changed fail, not exist: {} - {} - {}", roomId, jwtUser.getUserId(), changedRole);
                     }
-                } else {
-                    log.info("role changed fail, not exist: {} - {} - {}", roomId, jwtUser.getUserId(), changedRole);
                 }
             }
-        }
-        if (result) {
-            RoleChangedMessage msg = new RoleChangedMessage(jwtUser.getUserId());
-            msg.setUsers(changedUsers);
-            imHelper.publishMessage(jwtUser.getUserId(), roomId, msg, 1);
-        }
-        return result;
+            if (result) {
+                RoleChangedMessage msg = new RoleChangedMessage(jwtUser.getUserId());
+                msg.setUsers(changedUsers);
+                messageDispatcher.dispatch(jwtUser.getUserId(), roomId, msg, 1);
+            }
+            return result;
+        }));
     }
 
     @DeclarePermissions(RoleEnum.RoleAssistant)
     @Override
-    public Boolean kickMember(String roomId, String userId, JwtUser jwtUser) throws ApiException, Exception {
+    public CompletableFuture<Boolean> kickMember(String roomId, String userId, JwtUser jwtUser) throws ApiException, Exception {
         CheckUtils.checkArgument(userId != null, "userId must't be null");
         CheckUtils.checkArgument(roomId != null, "roomId must't be null");
 
-        List<RoomMember> kickedUsers = roomMemberDao.findByRidAndUid(roomId, userId);
-        int result = roomMemberDao.deleteUserByRidAndUid(roomId, userId);
-        log.info("kickMember: roomId={}, userId={}, result = {}, {}", roomId, userId, result, jwtUser);
-        if (result == 0) {
-            throw new ApiException(ErrorEnum.ERR_USER_NOT_EXIST_IN_ROOM);
-        } else {
-            MemberChangedMessage msg = new MemberChangedMessage(MemberChangedMessage.Action_Kick, userId, kickedUsers.get(0).getRole());
-            List<UserInfo> userInfoList = userDao.findByUid(userId);
-            if (!userInfoList.isEmpty()) {
-                msg.setUserName(userInfoList.get(0).getName());
+        return roomMailbox.submit(roomId, () -> roomTransaction.versioned(() -> {
+            RoomCache room = roomRegistry.getRoom(roomId);
+            RoomMember member = room == null ? null : roomRegistry.getMember(room, userId);
+            boolean result = member != null && roomRegistry.removeMember(room, userId);
+            log.info("kickMember: roomId={}, userId={}, result = {}, {}", roomId, userId, result, jwtUser);
+            if (!result) {
+                throw new ApiException(ErrorEnum.ERR_USER_NOT_EXIST_IN_ROOM);
             }
-            IMApiResultInfo apiResultInfo = imHelper.publishMessage(jwtUser.getUserId(), roomId, msg, 1);
-            if (!apiResultInfo.isSuccess()) {
-                throw new ApiException(ErrorEnum.ERR_MESSAGE_ERROR);
-            }
-            Thread.sleep(50);
-            log.info("published msg: {}, msg={}", jwtUser, msg);
-            List<Room> roomList = roomDao.findByRid(roomId);
-            if (kickedUsers.get(0).getRole() == RoleEnum.RoleTeacher.getValue() && isUserDisplay(roomList.get(0), userId)) {
-                updateDisplay(roomId, jwtUser.getUserId(), "", 1);
+            if (member.getRole() == RoleEnum.RoleTeacher.getValue() && isUserDisplay(room, userId)) {
+                updateDisplay(room, jwtUser.getUserId(), "", 1);
             } else {
-                log.info("don't update display: room={}, userRole={}", roomId, RoleEnum.getEnumByValue(kickedUsers.get(0).getRole()));
+                log.info("don't update display: room={}, userRole={}", roomId, RoleEnum.getEnumByValue(member.getRole()));
             }
-        }
-        userDao.deleteByUid(userId);
-        IMApiResultInfo apiResultInfo = imHelper.quit(new String[]{userId}, roomId);
-        if (!apiResultInfo.isSuccess()) {
-            throw new ApiException(ErrorEnum.ERR_EXIT_ROOM_ERROR, apiResultInfo.getErrorMessage());
-        }
-        return true;
+            roomRegistry.deleteUser(userId);
+            imTokenCache.invalidate(userId);
+            return member;
+        })).thenCompose(kickedUser -> {
+            //outside the mailbox: the kicked user gets the message while still in the group,
+            //then quits it, kicks of one room share quit calls
+            MemberChangedMessage msg = new MemberChangedMessage(MemberChangedMessage.Action_Kick, userId, kickedUser.getRole());
+            msg.setUserName(kickedUser.getName());
+            return imHelper.publishMessageAsync(jwtUser.getUserId(), roomId, msg, 1).thenCompose(resultInfo -> {
+                if (!resultInfo.isSuccess()) {
+                    throw new ApiException(ErrorEnum.ERR_MESSAGE_ERROR, resultInfo.getErrorMessage());
+                }
+                log.info("published msg: {}, objectName={}", jwtUser, msg.getObjectName());
+                return groupBatcher.quit(userId, roomId);
+            });
+        }).thenApply(resultInfo -> {
+            if (!resultInfo.isSuccess()) {
+                throw new ApiException(ErrorEnum.ERR_EXIT_ROOM_ERROR, resultInfo.getErrorMessage());
+            }
+            return true;
+        });
     }
 
     @DeclarePermissions({RoleEnum.RoleTeacher, RoleEnum.RoleAssistant})
@@ -418,65 +577,57 @@ public class RoomServiceImpl implements RoomService {
         CheckUtils.checkArgument(type >= 0 && type < DisplayEnum.values().length, "type not exist");
         DisplayEnum displayEnum = DisplayEnum.values()[type];
 
-        if (displayEnum.equals(DisplayEnum.None)) {
-            roomDao.updateDisplayByRid(roomId, "");
-            DisplayMessage displayMessage = new DisplayMessage("");
-            IMApiResultInfo apiResultInfo = imHelper.publishMessage(jwtUser.getUserId(), roomId, displayMessage);
-            if (apiResultInfo.isSuccess()) {
+        return roomMailbox.call(roomId, () -> roomTransaction.versioned(() -> {
+            RoomCache room = roomRegistry.getRoom(roomId);
+            if (room == null) {
+                throw new ApiException(ErrorEnum.ERR_ROOM_NOT_EXIST);
+            }
+            if (displayEnum.equals(DisplayEnum.None)) {
+                updateDisplay(room, jwtUser.getUserId(), "", 0);
                 return true;
-            } else {
-                throw new ApiException(ErrorEnum.ERR_MESSAGE_ERROR, apiResultInfo.getErrorMessage());
             }
-        }
 
-        String display = "display://type=" + type;
-        if (displayEnum.equals(DisplayEnum.Teacher)) {
-            List<RoomMember> teachers = roomMemberDao.findByRidAndRole(roomId, RoleEnum.RoleTeacher.getValue());
-            if (teachers.isEmpty()) {
-                throw new ApiException(ErrorEnum.ERR_TEACHER_NOT_EXIST_IN_ROOM);
-            } else {
-                display += "?userId=" + teachers.get(0).getUid() + "?uri=";
-                roomDao.updateDisplayByRid(roomId, display);
-                DisplayMessage displayMessage = new DisplayMessage(display);
-                imHelper.publishMessage(jwtUser.getUserId(), roomId, displayMessage);
-                log.info("change display to teacher: roomId={}, {}, display={}", roomId, jwtUser, display);
-            }
-        } else if (displayEnum.equals(DisplayEnum.Assistant)) {
-            List<RoomMember> assistants = roomMemberDao.findByRidAndRole(roomId, RoleEnum.RoleAssistant.getValue());
-            if (assistants.isEmpty()) {
-                throw new ApiException(ErrorEnum.ERR_ASSISTANT_NOT_EXIST_IN_ROOM);
+            String display = "display://type=" + type;
+            if (displayEnum.equals(DisplayEnum.Teacher)) {
+                List<RoomMember> teachers = getMembersByRole(roomId, RoleEnum.RoleTeacher);
+                if (teachers.isEmpty()) {
+                    throw new ApiException(ErrorEnum.ERR_TEACHER_NOT_EXIST_IN_ROOM);
+                } else {
+                    display += "?userId=" + teachers.get(0).getUid() + "?uri=";
+                    updateDisplay(room, jwtUser.getUserId(), display, 0);
+                    log.info("change display to teacher: roomId={}, {}, display={}", roomId, jwtUser, display);
+                }
+            } else if (displayEnum.equals(DisplayEnum.Assistant)) {
+                List<RoomMember> assistants = getMembersByRole(roomId, RoleEnum.RoleAssistant);
+                if (assistants.isEmpty()) {
+                    throw new ApiException(ErrorEnum.ERR_ASSISTANT_NOT_EXIST_IN_ROOM);
+                } else {
+                    display += "?userId=" + assistants.get(0).getUid() + "?uri=";
+                    updateDisplay(room, jwtUser.getUserId(), display, 0);
+                    log.info("change display to assistant: roomId={}, {}, display={}", roomId, jwtUser, display);
+                }
+            } else if (displayEnum.equals(DisplayEnum.Screen)) {
+                display += "?userId=" + userId + "?uri=";
+                updateDisplay(room, jwtUser.getUserId(), display, 0);
+                log.info("change display to screen: roomId={}, {}, display={}", roomId, jwtUser, display);
             } else {
-                display += "?userId=" + assistants.get(0).getUid() + "?uri=";
-                roomDao.updateDisplayByRid(roomId, display);
-                DisplayMessage displayMessage = new DisplayMessage(display);
-                imHelper.publishMessage(jwtUser.getUserId(), roomId, displayMessage);
-                log.info("change display to assistant: roomId={}, {}, display={}", roomId, jwtUser, display);
-            }
-        } else if (displayEnum.equals(DisplayEnum.Screen)) {
-            display += "?userId=" + userId + "?uri=";
-            roomDao.updateDisplayByRid(roomId, display);
-            DisplayMessage displayMessage = new DisplayMessage(display);
-            imHelper.publishMessage(jwtUser.getUserId(), roomId, displayMessage);
-            log.info("change display to screen: roomId={}, {}, display={}", roomId, jwtUser, display);
-        } else {
-            display += "?userId=" + "?uri=" + uri;
-            CheckUtils.checkArgument(uri != null, "uri must't be null");
-            CheckUtils.checkArgument(whiteboardDao.findByRidAndWbid(roomId, uri).size() > 0, "whiteboard not exist");
+                display += "?userId=" + "?uri=" + uri;
+                CheckUtils.checkArgument(uri != null, "uri must't be null");
+                CheckUtils.checkArgument(room.getWhiteboard(uri) != null, "whiteboard not exist");
 
-            roomDao.updateDisplayByRid(roomId, display);
-            DisplayMessage displayMessage = new DisplayMessage(display);
-            imHelper.publishMessage(jwtUser.getUserId(), roomId, displayMessage);
-        }
-        log.info("result display in room: {}, type = {}, uri = {}, {}", roomId, type, uri, jwtUser);
-        return true;
+                updateDisplay(room, jwtUser.getUserId(), display, 0);
+            }
+            log.info("result display in room: {}, type = {}, uri = {}, {}", roomId, type, uri, jwtUser);
+            return true;
+        }));
     }
 
     @DeclarePermissions({RoleEnum.RoleTeacher, RoleEnum.RoleAssistant})
     @Override
     public String createWhiteBoard(String roomId, JwtUser jwtUser) throws ApiException, Exception {
         CheckUtils.checkArgument(roomId != null, "roomId must't be null");
-        CheckUtils.checkArgument(roomDao.existsByRid(roomId), "room not exist");
-        CheckUtils.checkArgument(roomMemberDao.existsByRidAndUid(roomId, jwtUser.getUserId()), "room member not exist");
+        CheckUtils.checkArgument(roomRegistry.existsRoom(roomId), "room not exist");
+        CheckUtils.checkArgument(roomRegistry.getMember(roomId, jwtUser.getUserId()) != null, "room member not exist");
 
         log.info("createWhiteBoard: roomId = {},  {}", roomId, jwtUser);
 
@@ -485,29 +636,29 @@ public class RoomServiceImpl implements RoomService {
         if (resultInfo.isSuccess()) {
             String wbId = resultInfo.getData();
             Date date = DateTimeUtils.currentUTC();
-            List<Room> roomList = roomDao.findByRid(roomId);
-            int whiteboardNameIndex = roomList.get(0).getWhiteboardNameIndex() + 1;
-            String name = "白板" + whiteboardNameIndex;
-            roomDao.updateWhiteboardNameIndexByRid(roomId, whiteboardNameIndex);
-            Whiteboard wb = new Whiteboard();
-            wb.setRid(roomId);
-            wb.setWbRoom(wbRoom);
-            wb.setWbid(wbId);
-            wb.setName(name);
-            wb.setCreator(jwtUser.getUserId());
-            wb.setCreateDt(date);
-            wb.setCurPg(0);
-            whiteboardDao.save(wb);
-            WhiteboardMessage wbmsg = new WhiteboardMessage(WhiteboardMessage.Create);
-            wbmsg.setWhiteboardId(wbId);
-            wbmsg.setWhiteboardName(name);
-            imHelper.publishMessage(jwtUser.getUserId(), roomId, wbmsg);
-            String display = "display://type=2?userId=" + jwtUser.getUserId() + "?uri=" + wbId;
-            roomDao.updateDisplayByRid(roomId, display);
-            DisplayMessage displayMessage = new DisplayMessage(display);
-            imHelper.publishMessage(jwtUser.getUserId(), roomId, displayMessage, 1);
-
-            return wbId;
+            return roomMailbox.call(roomId, () -> roomTransaction.versioned(() -> {
+                RoomCache room = roomRegistry.getRoom(roomId);
+                CheckUtils.checkArgument(room != null, "room not exist");
+                int whiteboardNameIndex = roomRegistry.nextWhiteboardNameIndex(room);
+                String name = "白板" + whiteboardNameIndex;
+                Whiteboard wb = new Whiteboard();
+                wb.setRid(roomId);
+                wb.setWbRoom(wbRoom);
+                wb.setWbid(wbId);
+                wb.setName(name);
+                wb.setCreator(jwtUser.getUserId());
+                wb.setCreateDt(date);
+                wb.setCurPg(0);
+                roomRegistry.addWhiteboard(room, wb);
+                WhiteboardMessage wbmsg = new WhiteboardMessage(WhiteboardMessage.Create);
+                wbmsg.setWhiteboardId(wbId);
+                wbmsg.setWhiteboardName(name);
+                messageDispatcher.dispatch(jwtUser.getUserId(), roomId, wbmsg);
+                String display = "display://type=2?userId=" + jwtUser.getUserId() + "?uri=" + wbId;
+                updateDisplay(room, jwtUser.getUserId(), display, 1);
+
+                return wbId;
+            }));
         } else {
             throw new ApiException(ErrorEnum.ERR_CREATE_WHITE_BOARD, resultInfo.getMsg());
         }
@@ -519,44 +670,50 @@ public class RoomServiceImpl implements RoomService {
         CheckUtils.checkArgument(roomId != null, "roomId must't be null");
         CheckUtils.checkArgument(whiteBoardId != null, "whiteBoardId must't be null");
 
-        List<Whiteboard> whiteboardList = whiteboardDao.findByRidAndWbid(roomId, whiteBoardId);
-        CheckUtils.checkArgument(whiteboardList.size() > 0, "whiteboard not exist");
-
-        List<Room> roomList = roomDao.findByRid(roomId);
-        CheckUtils.checkArgument(!roomList.isEmpty(), "room not exist");
+        RoomCache room = roomRegistry.getRoom(roomId);
+        CheckUtils.checkArgument(room != null, "room not exist");
+        Whiteboard whiteboard = room.getWhiteboard(whiteBoardId);
+        CheckUtils.checkArgument(whiteboard != null, "whiteboard not exist");
 
-        log.info("deleteWhiteboard: room={}, whiteBoardId={}, {}", roomList.get(0), whiteBoardId, jwtUser);
+        log.info("deleteWhiteboard: room={}, whiteBoardId={}, {}", room, whiteBoardId, jwtUser);
 
-        String display = roomList.get(0).getDisplay();
-        if (display.contains("uri=" + whiteBoardId)) {
-            int result = roomDao.updateDisplayByRid(roomId, "");
-            log.info("clear room display, room: {}, result: {}", roomId, result);
-            DisplayMessage displayMessage = new DisplayMessage("");
-            imHelper.publishMessage(jwtUser.getUserId(), roomId, displayMessage, 1);
-        } else {
-            log.info("no display to clean: room={}", roomList.get(0));
+        //destroyed outside the mailbox, the room only waits on its own changes
+        WhiteBoardApiResultInfo resultInfo = whiteBoardHelper.destroy(whiteboard.getWbRoom());
+        if (!resultInfo.isSuccess()) {
+            throw new ApiException(ErrorEnum.ERR_DELETE_WHITE_BOARD, resultInfo.getMsg());
         }
 
-        String wbRoom = whiteboardList.get(0).getWbRoom();
-        WhiteBoardApiResultInfo resultInfo = whiteBoardHelper.destroy(wbRoom);
-        if (resultInfo.isSuccess()) {
-            int result = whiteboardDao.deleteByWbid(whiteBoardId);
+        return roomMailbox.call(roomId, () -> roomTransaction.versioned(() -> {
+            RoomCache current = roomRegistry.getRoom(roomId);
+            if (current == null) {
+                log.info("room gone while deleting whiteboard: roomId={}, whiteBoardId={}", roomId, whiteBoardId);
+                return true;
+            }
+
+            String display = current.getDisplay();
+            if (display.contains("uri=" + whiteBoardId)) {
+                updateDisplay(current, jwtUser.getUserId(), "", 1);
+                log.info("clear room display, room: {}", roomId);
+            } else {
+                log.info("no display to clean: room={}", current);
+            }
+
+            boolean result = roomRegistry.removeWhiteboard(current, whiteBoardId);
             log.info("delete whiteboard: roomId = {}, whiteBoardId = {}, result = {}", roomId, whiteBoardId, result);
             WhiteboardMessage wbmsg = new WhiteboardMessage(WhiteboardMessage.Delete);
             wbmsg.setWhiteboardId(whiteBoardId);
-            imHelper.publishMessage(jwtUser.getUserId(), roomId, wbmsg, 1);
+            messageDispatcher.dispatch(jwtUser.getUserId(), roomId, wbmsg, 1);
             return true;
-        } else {
-            throw new ApiException(ErrorEnum.ERR_DELETE_WHITE_BOARD, resultInfo.getMsg());
-        }
+        }));
     }
 
     @Override
     public List<RoomResult.WhiteboardResult> getWhiteboard(String roomId, JwtUser jwtUser) throws ApiException, Exception {
         CheckUtils.checkArgument(roomId != null, "roomId must't be null");
-        CheckUtils.checkArgument(roomDao.existsByRid(roomId), "room not exist");
+        RoomCache room = roomRegistry.getRoom(roomId);
+        CheckUtils.checkArgument(room != null, "room not exist");
 
-        List<Whiteboard> whiteboards = whiteboardDao.findByRid(roomId);
+        List<Whiteboard> whiteboards = room.getWhiteboards();
         List<RoomResult.WhiteboardResult> result = new ArrayList<>();
         for (Whiteboard wb : whiteboards) {
             RoomResult.WhiteboardResult r = new RoomResult.WhiteboardResult();
@@ -573,15 +730,17 @@ public class RoomServiceImpl implements RoomService {
     public Boolean turnWhiteBoardPage(String roomId, String whiteBoardId, int page, JwtUser jwtUser) throws ApiException, Exception {
         CheckUtils.checkArgument(roomId != null, "roomId must't be null");
         CheckUtils.checkArgument(whiteBoardId != null, "whiteBoardId must't be null");
-        List<Room> roomList = roomDao.findByRid(roomId);
-        CheckUtils.checkArgument(!roomList.isEmpty(), "room not exist");
+        CheckUtils.checkArgument(roomRegistry.existsRoom(roomId), "room not exist");
 
-        int result = whiteboardDao.updatePageByRidAndWbid(roomId, whiteBoardId, page);
-        log.info("turn page to: {}, room: {}, wb : {}; r: {}", page, roomId, whiteBoardId, result);
+        return roomMailbox.call(roomId, () -> roomTransaction.versioned(() -> {
+            RoomCache room = roomRegistry.getRoom(roomId);
+            boolean result = room != null && roomRegistry.updateWhiteboardPage(room, whiteBoardId, page);
+            log.info("turn page to: {}, room: {}, wb : {}; r: {}", page, roomId, whiteBoardId, result);
 
-        TurnPageMessage turnPageMessage = new TurnPageMessage(whiteBoardId, jwtUser.getUserId(), page);
-        imHelper.publishMessage(jwtUser.getUserId(), roomId, turnPageMessage);
-        return true;
+            TurnPageMessage turnPageMessage = new TurnPageMessage(whiteBoardId, jwtUser.getUserId(), page);
+            messageDispatcher.dispatch(jwtUser.getUserId(), roomId, turnPageMessage);
+            return true;
+        }));
     }
 
     @DeclarePermissions(RoleEnum.RoleAssistant)
@@ -589,42 +748,46 @@ public class RoomServiceImpl implements RoomService {
     public Boolean controlDevice(String roomId, String userId, DeviceTypeEnum typeEnum, boolean enable, JwtUser jwtUser) throws ApiException, Exception {
         CheckUtils.checkArgument(roomId != null, "roomId must't be null");
         CheckUtils.checkArgument(userId != null, "userId must't be null");
-        CheckUtils.checkArgument(roomDao.existsByRid(roomId), "room not exist");
-        CheckUtils.checkArgument(roomMemberDao.existsByRidAndUid(roomId, userId), "room member not exist");
-
-        log.info("controlDevice: {}, userId={}, typeEnum={}, onOff={}", jwtUser, userId, typeEnum, enable);
-
-        if (enable) {
-            String ticket = IdentifierUtils.uuid();
-            ControlDeviceTaskInfo taskInfo = new ControlDeviceTaskInfo();
-            taskInfo.setRoomId(roomId);
-            taskInfo.setTypeEnum(typeEnum);
-            taskInfo.setOnOff(true);
-            taskInfo.setApplyUserId(jwtUser.getUserId());
-            taskInfo.setTargetUserId(userId);
-            taskInfo.setTicket(ticket);
-            scheduleManager.addTask(taskInfo);
-            ControlDeviceNotifyMessage msg = new ControlDeviceNotifyMessage(ActionEnum.Invite.ordinal());
-            msg.setTicket(ticket);
-            msg.setType(taskInfo.getTypeEnum().ordinal());
-            msg.setOpUserId(jwtUser.getUserId());
-            msg.setOpUserName(jwtUser.getUserName());
-            imHelper.publishMessage(jwtUser.getUserId(), userId, roomId, msg);
-        } else {
-            if (typeEnum.equals(DeviceTypeEnum.Camera)) {
-                roomMemberDao.updateCameraByRidAndUid(roomId, jwtUser.getUserId(), false);
+        CheckUtils.checkArgument(roomRegistry.existsRoom(roomId), "room not exist");
+        return roomMailbox.call(roomId, () -> roomTransaction.versioned(() -> {
+            RoomMember targetUser = roomRegistry.getMember(roomId, userId);
+            CheckUtils.checkArgument(targetUser != null, "room member not exist");
+
+            log.info("controlDevice: {}, userId={}, typeEnum={}, onOff={}", jwtUser, userId, typeEnum, enable);
+
+            if (enable) {
+                String ticket = IdentifierUtils.uuid();
+                ControlDeviceTaskInfo taskInfo = new ControlDeviceTaskInfo();
+                taskInfo.setRoomId(roomId);
+                taskInfo.setTypeEnum(typeEnum);
+                taskInfo.setOnOff(true);
+                taskInfo.setApplyUserId(jwtUser.getUserId());
+                taskInfo.setTargetUserId(userId);
+                taskInfo.setTicket(ticket);
+                scheduleManager.addTask(taskInfo);
+                ControlDeviceNotifyMessage msg = new ControlDeviceNotifyMessage(ActionEnum.Invite.ordinal());
+                msg.setTicket(ticket);
+                msg.setType(taskInfo.getTypeEnum().ordinal());
+                msg.setOpUserId(jwtUser.getUserId());
+                msg.setOpUserName(jwtUser.getUserName());
+                messageDispatcher.dispatch(jwtUser.getUserId(), userId, roomId, msg, 0);
             } else {
-                roomMemberDao.updateMicByRidAndUid(roomId, jwtUser.getUserId(), false);
-            }
-            DeviceStateChangedMessage deviceResourceMessage = new DeviceStateChangedMessage(typeEnum.ordinal(), false);
-            deviceResourceMessage.setUserId(userId);
-            List<UserInfo> userInfoList = userDao.findByUid(userId);
-            if (!userInfoList.isEmpty()) {
-                deviceResourceMessage.setUserName(userInfoList.get(0).getName());
+                RoomCache room = roomRegistry.getRoom(roomId);
+                if (room == null) {
+                    throw new ApiException(ErrorEnum.ERR_ROOM_NOT_EXIST);
+                }
+                if (typeEnum.equals(DeviceTypeEnum.Camera)) {
+                    roomRegistry.updateCamera(room, jwtUser.getUserId(), false);
+                } else {
+                    roomRegistry.updateMic(room, jwtUser.getUserId(), false);
+                }
+                DeviceStateChangedMessage deviceResourceMessage = new DeviceStateChangedMessage(typeEnum.ordinal(), false);
+                deviceResourceMessage.setUserId(userId);
+                deviceResourceMessage.setUserName(targetUser.getName());
+                messageDispatcher.dispatch(jwtUser.getUserId(), roomId, deviceResourceMessage, 1);
             }
-            imHelper.publishMessage(jwtUser.getUserId(), roomId, deviceResourceMessage, 1);
-        }
-        return true;
+            return true;
+        }));
     }
 
     @DeclarePermissions({RoleEnum.RoleTeacher, RoleEnum.RoleStudent})
@@ -633,22 +796,30 @@ public class RoomServiceImpl implements RoomService {
         CheckUtils.checkArgument(ticket != null, "ticket must't be null");
 
         log.info("approveControlDevice: jwtUser={}, ticket={}", jwtUser, ticket);
-        ControlDeviceTaskInfo taskInfo = (ControlDeviceTaskInfo) scheduleManager.executeTask(ticket);
-        if (taskInfo.getTypeEnum().equals(DeviceTypeEnum.Camera)) {
-            roomMemberDao.updateCameraByRidAndUid(roomId, jwtUser.getUserId(), taskInfo.isOnOff());
-        } else {
-            roomMemberDao.updateMicByRidAndUid(roomId, jwtUser.getUserId(), taskInfo.isOnOff());
-        }
-        ControlDeviceNotifyMessage msg = new ControlDeviceNotifyMessage(ActionEnum.Approve.ordinal());
-        msg.setType(taskInfo.getTypeEnum().ordinal());
-        msg.setOpUserId(jwtUser.getUserId());
-        msg.setOpUserName(jwtUser.getUserName());
-        imHelper.publishMessage(jwtUser.getUserId(), taskInfo.getApplyUserId(), roomId, msg);
-
-        DeviceStateChangedMessage deviceResourceMessage = new DeviceStateChangedMessage(taskInfo.getTypeEnum().ordinal(), taskInfo.isOnOff());
-        deviceResourceMessage.setUserId(jwtUser.getUserId());
-        imHelper.publishMessage(jwtUser.getUserId(), roomId, deviceResourceMessage, 1);
-        return true;
+        return roomMailbox.call(roomId, () -> {
+            ControlDeviceTaskInfo taskInfo = (ControlDeviceTaskInfo) scheduleManager.executeTask(ticket);
+            return roomTransaction.versioned(() -> {
+                RoomCache room = roomRegistry.getRoom(roomId);
+                if (room == null) {
+                    throw new ApiException(ErrorEnum.ERR_ROOM_NOT_EXIST);
+                }
+                if (taskInfo.getTypeEnum().equals(DeviceTypeEnum.Camera)) {
+                    roomRegistry.updateCamera(room, jwtUser.getUserId(), taskInfo.isOnOff());
+                } else {
+                    roomRegistry.updateMic(room, jwtUser.getUserId(), taskInfo.isOnOff());
+                }
+                ControlDeviceNotifyMessage msg = new ControlDeviceNotifyMessage(ActionEnum.Approve.ordinal());
+                msg.setType(taskInfo.getTypeEnum().ordinal());
+                msg.setOpUserId(jwtUser.getUserId());
+                msg.setOpUserName(jwtUser.getUserName());
+                messageDispatcher.dispatch(jwtUser.getUserId(), taskInfo.getApplyUserId(), roomId, msg, 0);
+
+                DeviceStateChangedMessage deviceResourceMessage = new DeviceStateChangedMessage(taskInfo.getTypeEnum().ordinal(), taskInfo.isOnOff());
+                deviceResourceMessage.setUserId(jwtUser.getUserId());
+                messageDispatcher.dispatch(jwtUser.getUserId(), roomId, deviceResourceMessage, 1);
+                return true;
+            });
+        });
     }
 
     @DeclarePermissions({RoleEnum.RoleTeacher, RoleEnum.RoleStudent})
@@ -662,7 +833,7 @@ public class RoomServiceImpl implements RoomService {
         msg.setType(taskInfo.getTypeEnum().ordinal());
         msg.setOpUserId(jwtUser.getUserId());
         msg.setOpUserName(jwtUser.getUserName());
-        imHelper.publishMessage(jwtUser.getUserId(), taskInfo.getApplyUserId(), roomId, msg);
+        messageDispatcher.dispatch(jwtUser.getUserId(), taskInfo.getApplyUserId(), roomId, msg, 0);
         return true;
     }
 
@@ -670,41 +841,132 @@ public class RoomServiceImpl implements RoomService {
     @Override
     public Boolean syncDeviceState(String roomId, DeviceTypeEnum type, boolean enable, JwtUser jwtUser) throws ApiException, Exception {
         CheckUtils.checkArgument(roomId != null, "roomId must't be null");
-        CheckUtils.checkArgument(roomDao.existsByRid(roomId), "room not exist");
+        CheckUtils.checkArgument(roomRegistry.existsRoom(roomId), "room not exist");
+
+        return roomMailbox.call(roomId, () -> roomTransaction.versioned(() -> {
+            RoomCache room = roomRegistry.getRoom(roomId);
+            CheckUtils.checkArgument(room != null, "room not exist");
+            boolean result;
+            DeviceStateChangedMessage deviceResourceMessage;
+            if (type.equals(DeviceTypeEnum.Camera)) {
+                result = roomRegistry.updateCamera(room, jwtUser.getUserId(), enable);
+                deviceResourceMessage = new DeviceStateChangedMessage(type.ordinal(), enable);
+            } else {
+                result = roomRegistry.updateMic(room, jwtUser.getUserId(), enable);
+                deviceResourceMessage = new DeviceStateChangedMessage(type.ordinal(), enable);
+            }
+            deviceResourceMessage.setUserId(jwtUser.getUserId());
+            messageDispatcher.dispatch(jwtUser.getUserId(), roomId, deviceResourceMessage, 1);
+            log.info("syncDeviceState : {}, {}, result = {}, jwtUser={}", roomId, enable, result, jwtUser);
+            return true;
+        }));
+    }
+
+    @DeclarePermissions({RoleEnum.RoleAssistant, RoleEnum.RoleTeacher, RoleEnum.RoleStudent, RoleEnum.RoleAudience})
+    @Override
+    public RoomSnapshot getRoomSnapshot(String roomId, JwtUser jwtUser) throws ApiException, Exception {
+        CheckUtils.checkArgument(roomId != null, "roomId must't be null");
 
-        int result;
-        DeviceStateChangedMessage deviceResourceMessage;
-        if (type.equals(DeviceTypeEnum.Camera)) {
-            result = roomMemberDao.updateCameraByRidAndUid(roomId, jwtUser.getUserId(), enable);
-            deviceResourceMessage = new DeviceStateChangedMessage(type.ordinal(), enable);
-        } else {
-            result = roomMemberDao.updateMicByRidAndUid(roomId, jwtUser.getUserId(), enable);
-            deviceResourceMessage = new DeviceStateChangedMessage(type.ordinal(), enable);
+        RoomCache room = roomRegistry.getRoom(roomId);
+        return room == null ? RoomSnapshot.EMPTY : roomRegistry.getSnapshot(room);
+    }
+
+    @DeclarePermissions({RoleEnum.RoleAssistant, RoleEnum.RoleTeacher, RoleEnum.RoleStudent, RoleEnum.RoleAudience})
+    @Override
+    public RoomResult.MemberDeltaResult getMemberChanges(String roomId, long sinceVersion, JwtUser jwtUser) throws ApiException, Exception {
+        CheckUtils.checkArgument(roomId != null, "roomId must't be null");
+
+        RoomCache room = roomRegistry.getRoom(roomId);
+        if (room == null) {
+            throw new ApiException(ErrorEnum.ERR_ROOM_NOT_EXIST);
         }
-        deviceResourceMessage.setUserId(jwtUser.getUserId());
-        imHelper.publishMessage(jwtUser.getUserId(), roomId, deviceResourceMessage, 1);
-        log.info("syncDeviceState : {}, {}, result = {}, jwtUser={}", roomId, enable, result, jwtUser);
-        return true;
+        RoomResult.MemberDeltaResult result = new RoomResult.MemberDeltaResult();
+        MemberDelta delta = roomRegistry.getMemberDelta(room, sinceVersion);
+        if (delta == null) {
+            log.info("member changes not logged, full resync: roomId={}, sinceVersion={}, memberVersion={}", roomId, sinceVersion, room.getMemberVersion());
+            result.setMemberVersion(room.getMemberVersion());
+            result.setFull(true);
+            return result;
+        }
+        result.setMemberVersion(delta.getMemberVersion());
+        result.setMembers(delta.getUpdated());
+        result.setRemoved(delta.getRemoved());
+        return result;
     }
 
     @DeclarePermissions({RoleEnum.RoleAssistant, RoleEnum.RoleTeacher, RoleEnum.RoleStudent, RoleEnum.RoleAudience})
     @Override
-    public List<RoomResult.MemberResult> getMembers(String roomId, JwtUser jwtUser) throws ApiException, Exception {
+    public RoomResult.MemberPageResult getMembersPage(String roomId, String cursor, int count, JwtUser jwtUser) throws ApiException, Exception {
         CheckUtils.checkArgument(roomId != null, "roomId must't be null");
+        CheckUtils.checkArgument(count > 0 && count <= roomProperties.getMemberPageSize(), "count out of range");
 
-        List<RoomMember> roomMemberList = roomMemberDao.findByRid(roomId);
-        RoomResult roomResult = new RoomResult();
-        roomResult.setMembers(roomMemberList);
-        return roomResult.getMembers();
+        RoomCache room = roomRegistry.getRoom(roomId);
+        if (room == null) {
+            throw new ApiException(ErrorEnum.ERR_ROOM_NOT_EXIST);
+        }
+        //read the version first, changes made while paging are then returned by the next delta
+        RoomResult.MemberPageResult result = new RoomResult.MemberPageResult();
+        result.setMemberVersion(room.getMemberVersion());
+        List<RoomMember> page = room.getMembersPage(cursor == null || cursor.isEmpty() ? null : cursor, count);
+        result.setMembers(page);
+        result.setNext(page.size() < count ? null : RoomCache.cursorOf(page.get(page.size() - 1)));
+        return result;
+    }
+
+    @DeclarePermissions({RoleEnum.RoleAssistant, RoleEnum.RoleTeacher, RoleEnum.RoleStudent, RoleEnum.RoleAudience})
+    @Override
+    public RoomResult.AudienceResult getAudience(String roomId, int offset, int count, JwtUser jwtUser) throws ApiException, Exception {
+        CheckUtils.checkArgument(roomId != null, "roomId must't be null");
+        CheckUtils.checkArgument(offset >= 0, "offset must't be negative");
+        CheckUtils.checkArgument(count > 0 && count <= roomProperties.getAudiencePageSize(), "count out of range");
+
+        RoomResult.AudienceResult result = new RoomResult.AudienceResult();
+        result.setTotal(roomRegistry.countAudience(roomId));
+        result.setMembers(roomRegistry.getAudience(roomId, offset, count));
+        result.setNext(offset + count < result.getTotal() ? offset + count : -1);
+        return result;
+    }
+
+    //members of the room, the large audience is not covered
+    @DeclarePermissions({RoleEnum.RoleAssistant, RoleEnum.RoleTeacher})
+    @Override
+    public RoomResult.PresenceResult getPresence(String roomId, JwtUser jwtUser) throws ApiException, Exception {
+        CheckUtils.checkArgument(roomId != null, "roomId must't be null");
+
+        RoomCache room = roomRegistry.getRoom(roomId);
+        RoomResult.PresenceResult result = new RoomResult.PresenceResult();
+        if (room == null) {
+            return result;
+        }
+        for (RoomMember member : room.getMembers()) {
+            RoomResult.MemberPresence presence = new RoomResult.MemberPresence();
+            presence.setUserId(member.getUid());
+            OnlineStatusQueue.UserPresence p = onlineStatusQueue.getPresence(member.getUid());
+            if (p == null) {
+                presence.setStatus(OnlineStatusQueue.STATUS_UNKNOWN);
+                presence.setPendingStatus(OnlineStatusQueue.STATUS_UNKNOWN);
+            } else {
+                presence.setStatus(p.getStatus());
+                presence.setPendingStatus(p.getPendingStatus());
+                presence.setSince(p.getSince());
+                presence.setFlaps(p.getFlaps());
+                presence.setTotalFlaps(p.getTotalFlaps());
+                presence.setDamped(p.isDamped());
+                result.setFlaps(result.getFlaps() + p.getFlaps());
+                result.setDamped(result.getDamped() + (p.isDamped() ? 1 : 0));
+            }
+            result.getMembers().add(presence);
+        }
+        return result;
     }
 
     @DeclarePermissions(RoleEnum.RoleAudience)
     @Override
     public Boolean applySpeech(String roomId, JwtUser jwtUser) throws ApiException, Exception {
         CheckUtils.checkArgument(roomId != null, "roomId must't be null");
-        CheckUtils.checkArgument(roomDao.existsByRid(roomId), "room not exist");
+        CheckUtils.checkArgument(roomRegistry.existsRoom(roomId), "room not exist");
 
-        List<RoomMember> assistants = roomMemberDao.findByRidAndRole(roomId, RoleEnum.RoleAssistant.getValue());
+        List<RoomMember> assistants = getMembersByRole(roomId, RoleEnum.RoleAssistant);
         if (assistants.isEmpty()) {
             throw new ApiException(ErrorEnum.ERR_ASSISTANT_NOT_EXIST_IN_ROOM);
         }
@@ -736,50 +998,54 @@ public class RoomServiceImpl implements RoomService {
     @Override
     public Boolean approveSpeech(String roomId, String ticket, JwtUser jwtUser) throws ApiException, Exception {
         CheckUtils.checkArgument(roomId != null, "roomId must't be null");
-        CheckUtils.checkArgument(roomDao.existsByRid(roomId), "room not exist");
+        return roomMailbox.call(roomId, () -> {
+            RoomCache room = roomRegistry.getRoom(roomId);
+            CheckUtils.checkArgument(room != null, "room not exist");
 
-        int count = roomMemberDao.countByRidAndExcludeRole(roomId, RoleEnum.RoleAudience.getValue());
-        if (count == roomProperties.getMaxCount()) {
-            log.error("approveSpeech error: roomId = {}, jwtUser = {}, ticket={}", roomId, jwtUser, ticket);
-            throw new ApiException(ErrorEnum.ERR_OVER_MAX_COUNT);
-        }
-
-        ScheduledTaskInfo taskInfo = scheduleManager.executeTask(ticket);
-        log.info("approveSpeech: task = {}, jwtUser={}", taskInfo, jwtUser);
-        roomMemberDao.updateRoleByRidAndUid(roomId, taskInfo.getApplyUserId(), RoleEnum.RoleStudent.getValue());
-
-        SpeechResultMessage msg = new SpeechResultMessage(SpeechResultMessage.Action_Approve);
-        List<UserInfo> userInfoList = userDao.findByUid(taskInfo.getApplyUserId());
-        msg.setOpUserId(jwtUser.getUserId());
-        msg.setOpUserName(jwtUser.getUserName());
-        msg.setReqUserId(taskInfo.getApplyUserId());
-        if (!userInfoList.isEmpty()) {
-            msg.setReqUserName(userInfoList.get(0).getName());
-        }
-        msg.setRole(RoleEnum.RoleStudent.getValue());
-        IMApiResultInfo resultInfo = imHelper.publishMessage(jwtUser.getUserId(), taskInfo.getApplyUserId(), roomId, msg);
-        if (!resultInfo.isSuccess()) {
-            throw new ApiException(ErrorEnum.ERR_MESSAGE_ERROR, resultInfo.getErrorMessage());
-        }
+            int count = room.countMembersExcludeRole(RoleEnum.RoleAudience.getValue());
+            if (count == roomProperties.getMaxCount()) {
+                log.error("approveSpeech error: roomId = {}, jwtUser = {}, ticket={}", roomId, jwtUser, ticket);
+                throw new ApiException(ErrorEnum.ERR_OVER_MAX_COUNT);
+            }
 
-        RoleChangedMessage rcMsg = new RoleChangedMessage(jwtUser.getUserId());
-        List<RoleChangedMessage.ChangedUser> changedUserList = new ArrayList<>();
-        RoleChangedMessage.ChangedUser user = new RoleChangedMessage.ChangedUser(taskInfo.getApplyUserId(), RoleEnum.RoleStudent.getValue());
-        if (!userInfoList.isEmpty()) {
-            user.setUserName(userInfoList.get(0).getName());
-        }
-        changedUserList.add(user);
-        rcMsg.setUsers(changedUserList);
-        imHelper.publishMessage(jwtUser.getUserId(), roomId, rcMsg, 1);
+            ScheduledTaskInfo taskInfo = scheduleManager.executeTask(ticket);
+            log.info("approveSpeech: task = {}, jwtUser={}", taskInfo, jwtUser);
+            return roomTransaction.versioned(() -> {
+                RoomCache current = roomRegistry.getRoom(roomId);
+                CheckUtils.checkArgument(current != null, "room not exist");
+                roomRegistry.updateRole(current, taskInfo.getApplyUserId(), RoleEnum.RoleStudent.getValue());
+
+                SpeechResultMessage msg = new SpeechResultMessage(SpeechResultMessage.Action_Approve);
+                RoomMember applyUser = roomRegistry.getMember(roomId, taskInfo.getApplyUserId());
+                msg.setOpUserId(jwtUser.getUserId());
+                msg.setOpUserName(jwtUser.getUserName());
+                msg.setReqUserId(taskInfo.getApplyUserId());
+                if (applyUser != null) {
+                    msg.setReqUserName(applyUser.getName());
+                }
+                msg.setRole(RoleEnum.RoleStudent.getValue());
+                messageDispatcher.dispatch(jwtUser.getUserId(), taskInfo.getApplyUserId(), roomId, msg, 0);
+
+                RoleChangedMessage rcMsg = new RoleChangedMessage(jwtUser.getUserId());
+                List<RoleChangedMessage.ChangedUser> changedUserList = new ArrayList<>();
+                RoleChangedMessage.ChangedUser user = new RoleChangedMessage.ChangedUser(taskInfo.getApplyUserId(), RoleEnum.RoleStudent.getValue());
+                if (applyUser != null) {
+                    user.setUserName(applyUser.getName());
+                }
+                changedUserList.add(user);
+                rcMsg.setUsers(changedUserList);
+                messageDispatcher.dispatch(jwtUser.getUserId(), roomId, rcMsg, 1);
 
-        return true;
+                return true;
+            });
+        });
     }
 
     @DeclarePermissions(RoleEnum.RoleAssistant)
     @Override
     public Boolean rejectSpeech(String roomId, String ticket, JwtUser jwtUser) throws ApiException, Exception {
         CheckUtils.checkArgument(roomId != null, "roomId must't be null");
-        CheckUtils.checkArgument(roomDao.existsByRid(roomId), "room not exist");
+        CheckUtils.checkArgument(roomRegistry.existsRoom(roomId), "room not exist");
 
         ScheduledTaskInfo taskInfo = scheduleManager.executeTask(ticket);
 
@@ -798,7 +1064,8 @@ public class RoomServiceImpl implements RoomService {
 
     private void checkOverMax(String roomId, RoomMember targetUser, int targetRole) {
         if (RoleEnum.getEnumByValue(targetUser.getRole()).equals(RoleEnum.RoleAudience)) {
-            int count = roomMemberDao.countByRidAndExcludeRole(roomId, RoleEnum.RoleAudience.getValue());
+            RoomCache room = roomRegistry.getRoom(roomId);
+            int count = room == null ? 0 : room.countMembersExcludeRole(RoleEnum.RoleAudience.getValue());
             if (count == roomProperties.getMaxCount()) {
                 log.error("assign error: roomId = {}, userId = {}, role = {}", roomId, targetUser.getRid(), targetUser.getRole());
                 throw new ApiException(ErrorEnum.ERR_OVER_MAX_COUNT);
@@ -816,36 +1083,33 @@ public class RoomServiceImpl implements RoomService {
         CheckUtils.checkArgument(!userId.equals(jwtUser.getUserId()), "can't set self role");
 
         log.info("transfer: roomId = {}, userId = {}, {}", roomId, userId, jwtUser);
-        List<RoomMember> roomMemberList = roomMemberDao.findByRidAndUid(roomId, userId);
-        if (roomMemberList.size() == 0) {
-            log.error("assistant transfer error: {} toUser = {}, opUser={}", roomId, userId, jwtUser.getUserId());
-            throw new ApiException(ErrorEnum.ERR_USER_NOT_EXIST_IN_ROOM);
-        }
+        return roomMailbox.call(roomId, () -> roomTransaction.versioned(() -> {
+            RoomCache room = roomRegistry.getRoom(roomId);
+            if (room == null) {
+                log.error("assistant transfer error: {} toUser = {}, opUser={}", roomId, userId, jwtUser.getUserId());
+                throw new ApiException(ErrorEnum.ERR_ROOM_NOT_EXIST);
+            }
 
-        List<Room> roomList = roomDao.findByRid(roomId);
-        if (roomList.size() == 0) {
-            log.error("assistant transfer error: {} toUser = {}, opUser={}", roomId, userId, jwtUser.getUserId());
-            throw new ApiException(ErrorEnum.ERR_ROOM_NOT_EXIST);
-        }
+            if (roomRegistry.getMember(roomId, userId) == null) {
+                log.error("assistant transfer error: {} toUser = {}, opUser={}", roomId, userId, jwtUser.getUserId());
+                throw new ApiException(ErrorEnum.ERR_USER_NOT_EXIST_IN_ROOM);
+            }
 
-        if (isUserDisplay(roomList.get(0), jwtUser.getUserId()) || isUserDisplay(roomList.get(0), userId)) {
-            updateDisplay(roomId, jwtUser.getUserId(), "", 1);
-        } else {
-            log.info("don't update display: room={}", roomList.get(0));
-        }
+            if (isUserDisplay(room, jwtUser.getUserId()) || isUserDisplay(room, userId)) {
+                updateDisplay(room, jwtUser.getUserId(), "", 1);
+            } else {
+                log.info("don't update display: room={}", room);
+            }
 
-        roomMemberDao.updateRoleByRidAndUid(roomId, jwtUser.getUserId(), RoleEnum.RoleStudent.getValue());
-        roomMemberDao.updateRoleByRidAndUid(roomId, userId, RoleEnum.RoleAssistant.getValue());
+            roomRegistry.updateRole(room, jwtUser.getUserId(), RoleEnum.RoleStudent.getValue());
+            roomRegistry.updateRole(room, userId, RoleEnum.RoleAssistant.getValue());
 
-        AssistantTransferMessage msg = new AssistantTransferMessage();
-        msg.setOpUserId(jwtUser.getUserId());
-        msg.setToUserId(userId);
-        IMApiResultInfo resultInfo = imHelper.publishMessage(jwtUser.getUserId(), roomId, msg, 1);
-        if (resultInfo.isSuccess()) {
+            AssistantTransferMessage msg = new AssistantTransferMessage();
+            msg.setOpUserId(jwtUser.getUserId());
+            msg.setToUserId(userId);
+            messageDispatcher.dispatch(jwtUser.getUserId(), roomId, msg, 1);
             return true;
-        } else {
-            throw new ApiException(ErrorEnum.ERR_MESSAGE_ERROR, resultInfo.getErrorMessage());
-        }
+        }));
     }
 
     @DeclarePermissions(RoleEnum.RoleAssistant)
@@ -854,16 +1118,13 @@ public class RoomServiceImpl implements RoomService {
         CheckUtils.checkArgument(roomId != null, "roomId must't be null");
         CheckUtils.checkArgument(targetUserId != null, "userId must't be null");
         CheckUtils.checkArgument(!targetUserId.equals(jwtUser.getUserId()), "can't set self role");
-        CheckUtils.checkArgument(roomMemberDao.existsByRidAndUid(roomId, targetUserId), "room member not exist");
 
         log.info("inviteUpgradeRole roomId = {}, targetUserId = {}, targetRole = {}, jwtUser={}", roomId, targetUserId, targetRole, jwtUser);
 
-        List<RoomMember> targetUser = roomMemberDao.findByRidAndUid(roomId, targetUserId);
-        if (targetUser.isEmpty()) {
-            throw new ApiException(ErrorEnum.ERR_USER_NOT_EXIST_IN_ROOM);
-        }
+        RoomMember targetUser = roomRegistry.getMember(roomId, targetUserId);
+        CheckUtils.checkArgument(targetUser != null, "room member not exist");
 
-        checkOverMax(roomId, targetUser.get(0), targetRole);
+        checkOverMax(roomId, targetUser, targetRole);
 
         String ticket = IdentifierUtils.uuid();
 
@@ -893,41 +1154,44 @@ public class RoomServiceImpl implements RoomService {
     public Boolean approveUpgradeRole(String roomId, String ticket, JwtUser jwtUser) throws ApiException, Exception {
         CheckUtils.checkArgument(roomId != null, "roomId must't be null");
         CheckUtils.checkArgument(ticket != null, "ticket must't be null");
-        CheckUtils.checkArgument(roomDao.existsByRid(roomId), "room not exist");
-        CheckUtils.checkArgument(roomMemberDao.existsByRidAndUid(roomId, jwtUser.getUserId()), "room member not exist");
-
-        UpgradeRoleTaskInfo taskInfo = (UpgradeRoleTaskInfo) scheduleManager.executeTask(ticket);
-        log.info("approveUpgradeRole roomId = {}, task={}, jwtUser={}", roomId, taskInfo, jwtUser);
-
-        List<RoomMember> targetUser = roomMemberDao.findByRidAndUid(roomId, jwtUser.getUserId());
-        if (targetUser.isEmpty()) {
-            throw new ApiException(ErrorEnum.ERR_USER_NOT_EXIST_IN_ROOM);
-        }
-        if (!taskInfo.getTargetUserId().equals(jwtUser.getUserId())) {
-            throw new ApiException(ErrorEnum.ERR_APPLY_TICKET_INVALID);
-        }
+        CheckUtils.checkArgument(roomRegistry.existsRoom(roomId), "room not exist");
+        CheckUtils.checkArgument(roomRegistry.getMember(roomId, jwtUser.getUserId()) != null, "room member not exist");
+
+        return roomMailbox.call(roomId, () -> {
+            UpgradeRoleTaskInfo taskInfo = (UpgradeRoleTaskInfo) scheduleManager.executeTask(ticket);
+            log.info("approveUpgradeRole roomId = {}, task={}, jwtUser={}", roomId, taskInfo, jwtUser);
+            return roomTransaction.versioned(() -> {
+                RoomCache room = roomRegistry.getRoom(roomId);
+                CheckUtils.checkArgument(room != null, "room not exist");
+
+                RoomMember targetUser = roomRegistry.getMember(roomId, jwtUser.getUserId());
+                if (targetUser == null) {
+                    throw new ApiException(ErrorEnum.ERR_USER_NOT_EXIST_IN_ROOM);
+                }
+                if (!taskInfo.getTargetUserId().equals(jwtUser.getUserId())) {
+                    throw new ApiException(ErrorEnum.ERR_APPLY_TICKET_INVALID);
+                }
 
-        checkOverMax(roomId, targetUser.get(0), taskInfo.getRole().getValue());
-        roomMemberDao.updateRoleByRidAndUid(roomId, jwtUser.getUserId(), taskInfo.getRole().getValue());
+                checkOverMax(roomId, targetUser, taskInfo.getRole().getValue());
+                roomRegistry.updateRole(room, jwtUser.getUserId(), taskInfo.getRole().getValue());
 
-        UpgradeRoleMessage msg = new UpgradeRoleMessage(ActionEnum.Approve.ordinal());
-        msg.setOpUserName(jwtUser.getUserName());
-        msg.setOpUserId(jwtUser.getUserId());
-        msg.setRole(taskInfo.getRole().getValue());
-        IMApiResultInfo resultInfo = imHelper.publishMessage(jwtUser.getUserId(), taskInfo.getApplyUserId(), roomId, msg);
-        if (!resultInfo.isSuccess()) {
-            throw new ApiException(ErrorEnum.ERR_MESSAGE_ERROR, resultInfo.getErrorMessage());
-        }
+                UpgradeRoleMessage msg = new UpgradeRoleMessage(ActionEnum.Approve.ordinal());
+                msg.setOpUserName(jwtUser.getUserName());
+                msg.setOpUserId(jwtUser.getUserId());
+                msg.setRole(taskInfo.getRole().getValue());
+                messageDispatcher.dispatch(jwtUser.getUserId(), taskInfo.getApplyUserId(), roomId, msg, 0);
 
-        RoleChangedMessage rcMsg = new RoleChangedMessage(jwtUser.getUserId());
-        List<RoleChangedMessage.ChangedUser> changedUserList = new ArrayList<>();
-        RoleChangedMessage.ChangedUser user = new RoleChangedMessage.ChangedUser(jwtUser.getUserId(), taskInfo.getRole().getValue());
-        user.setUserName(jwtUser.getUserName());
-        changedUserList.add(user);
-        rcMsg.setUsers(changedUserList);
-        imHelper.publishMessage(jwtUser.getUserId(), roomId, rcMsg, 1);
+                RoleChangedMessage rcMsg = new RoleChangedMessage(jwtUser.getUserId());
+                List<RoleChangedMessage.ChangedUser> changedUserList = new ArrayList<>();
+                RoleChangedMessage.ChangedUser user = new RoleChangedMessage.ChangedUser(jwtUser.getUserId(), taskInfo.getRole().getValue());
+                user.setUserName(jwtUser.getUserName());
+                changedUserList.add(user);
+                rcMsg.setUsers(changedUserList);
+                messageDispatcher.dispatch(jwtUser.getUserId(), roomId, rcMsg, 1);
 
-        return true;
+                return true;
+            });
+        });
     }
 
     @DeclarePermissions({RoleEnum.RoleAudience, RoleEnum.RoleStudent})
@@ -935,8 +1199,8 @@ public class RoomServiceImpl implements RoomService {
     public Boolean rejectUpgradeRole(String roomId, String ticket, JwtUser jwtUser) throws ApiException, Exception {
         CheckUtils.checkArgument(roomId != null, "roomId must't be null");
         CheckUtils.checkArgument(ticket != null, "ticket must't be null");
-        CheckUtils.checkArgument(roomDao.existsByRid(roomId), "room not exist");
-        CheckUtils.checkArgument(roomMemberDao.existsByRidAndUid(roomId, jwtUser.getUserId()), "room member not exist");
+        CheckUtils.checkArgument(roomRegistry.existsRoom(roomId), "room not exist");
+        CheckUtils.checkArgument(roomRegistry.getMember(roomId, jwtUser.getUserId()) != null, "room member not exist");
 
         UpgradeRoleTaskInfo taskInfo = (UpgradeRoleTaskInfo) scheduleManager.executeTask(ticket);
         UpgradeRoleMessage msg = new UpgradeRoleMessage(ActionEnum.Reject.ordinal());
@@ -956,54 +1220,45 @@ public class RoomServiceImpl implements RoomService {
     public Boolean changeRole(String roomId, String targetUserId, int targetRole, JwtUser jwtUser) throws ApiException, Exception {
         CheckUtils.checkArgument(roomId != null, "roomId must't be null");
         CheckUtils.checkArgument(targetUserId != null, "userId must't be null");
-        CheckUtils.checkArgument(roomDao.existsByRid(roomId), "room not exist");
-        CheckUtils.checkArgument(RoleEnum.getEnumByValue(targetRole).equals(RoleEnum.RoleTeacher), "only set to teacher");
-        CheckUtils.checkArgument(roomMemberDao.existsByRidAndUid(roomId, targetUserId), "room member not exist");
-
-        List<RoomMember> targetUser = roomMemberDao.findByRidAndUid(roomId, targetUserId);
-        if (targetUser.isEmpty()) {
-            throw new ApiException(ErrorEnum.ERR_USER_NOT_EXIST_IN_ROOM);
-        } else {
-            if (!RoleEnum.getEnumByValue(targetUser.get(0).getRole()).equals(RoleEnum.RoleStudent)) {
+        return roomMailbox.call(roomId, () -> roomTransaction.versioned(() -> {
+            RoomCache room = roomRegistry.getRoom(roomId);
+            CheckUtils.checkArgument(room != null, "room not exist");
+            CheckUtils.checkArgument(RoleEnum.getEnumByValue(targetRole).equals(RoleEnum.RoleTeacher), "only set to teacher");
+
+            RoomMember targetUser = room.getMember(targetUserId);
+            CheckUtils.checkArgument(targetUser != null, "room member not exist");
+            if (!RoleEnum.getEnumByValue(targetUser.getRole()).equals(RoleEnum.RoleStudent)) {
                 log.error("change role error: {}, targetUserId={}, targetRole = {}", jwtUser, targetUser, RoleEnum.getEnumByValue(targetRole));
                 throw new ApiException(ErrorEnum.ERR_CHANGE_ROLE);
             }
-        }
 
-        log.info("changeRole: roomId={}, {}, targetUserId={}", roomId, jwtUser, targetUserId);
-        List<RoleChangedMessage.ChangedUser> changedUserList = new ArrayList<>();
-        RoleChangedMessage msg = new RoleChangedMessage(jwtUser.getUserId());
-
-        List<RoomMember> teachers = roomMemberDao.findByRidAndRole(roomId, RoleEnum.RoleTeacher.getValue());
-        if (!teachers.isEmpty()) {
-            roomMemberDao.updateRoleByRidAndUid(roomId, teachers.get(0).getUid(), RoleEnum.RoleStudent.getValue());
-            RoleChangedMessage.ChangedUser user = new RoleChangedMessage.ChangedUser(teachers.get(0).getUid(), RoleEnum.RoleStudent.getValue());
-            List<UserInfo> userInfoList = userDao.findByUid(teachers.get(0).getUid());
-            if (!userInfoList.isEmpty()) {
-                user.setUserName(userInfoList.get(0).getName());
+            log.info("changeRole: roomId={}, {}, targetUserId={}", roomId, jwtUser, targetUserId);
+            List<RoleChangedMessage.ChangedUser> changedUserList = new ArrayList<>();
+            RoleChangedMessage msg = new RoleChangedMessage(jwtUser.getUserId());
+
+            List<RoomMember> teachers = room.getMembersByRole(RoleEnum.RoleTeacher.getValue());
+            if (!teachers.isEmpty()) {
+                roomRegistry.updateRole(room, teachers.get(0).getUid(), RoleEnum.RoleStudent.getValue());
+                RoleChangedMessage.ChangedUser user = new RoleChangedMessage.ChangedUser(teachers.get(0).getUid(), RoleEnum.RoleStudent.getValue());
+                user.setUserName(teachers.get(0).getName());
+                changedUserList.add(user);
+            } else {
+                log.info("change directly cause no teacher exist in room, roomId={}", roomId);
             }
-            changedUserList.add(user);
-        } else {
-            log.info("change directly cause no teacher exist in room, roomId={}", roomId);
-        }
 
-        roomMemberDao.updateRoleByRidAndUid(roomId, targetUserId, targetRole);
-        RoleChangedMessage.ChangedUser user = new RoleChangedMessage.ChangedUser(targetUserId, targetRole);
-        List<UserInfo> userInfoList = userDao.findByUid(targetUserId);
-        if (!userInfoList.isEmpty()) {
-            user.setUserName(userInfoList.get(0).getName());
-        }
-        changedUserList.add(user);
-        msg.setUsers(changedUserList);
-        imHelper.publishMessage(jwtUser.getUserId(), roomId, msg, 1);
+            roomRegistry.updateRole(room, targetUserId, targetRole);
+            RoleChangedMessage.ChangedUser user = new RoleChangedMessage.ChangedUser(targetUserId, targetRole);
+            user.setUserName(targetUser.getName());
+            changedUserList.add(user);
+            msg.setUsers(changedUserList);
+            messageDispatcher.dispatch(jwtUser.getUserId(), roomId, msg, 1);
 
-        String display = "display://type=1?userId=" + targetUserId + "?uri=";
-        DisplayMessage displayMessage = new DisplayMessage(display);
-        roomDao.updateDisplayByRid(roomId, display);
-        imHelper.publishMessage(jwtUser.getUserId(), roomId, displayMessage, 1);
-        log.info("changeRole, display changed: roomId={}, {}, targetUserId={}", roomId, display, targetUserId);
+            String display = "display://type=1?userId=" + targetUserId + "?uri=";
+            updateDisplay(room, jwtUser.getUserId(), display, 1);
+            log.info("changeRole, display changed: roomId={}, {}, targetUserId={}", roomId, display, targetUserId);
 
-        return true;
+            return true;
+        }));
     }
 
    @Override
@@ -1015,91 +1270,106 @@ public class RoomServiceImpl implements RoomService {
             return true;
         }
 
-        for (ReqMemberOnlineStatus status : statusList) {
-            int s = Integer.parseInt(status.getStatus());
-            String userId = status.getUserId();
-
-            log.info("memberOnlineStatus, userId={}, status={}", userId, status);
-            //1：offline 离线； 0: online 在线
-            if (s == 1) {
-                List<RoomMember> members = roomMemberDao.findByUid(userId);
-                if (!members.isEmpty()) {
-                    scheduleManager.userIMOffline(userId);
-                }
-            } else if (s == 0) {
-                scheduleManager.userIMOnline(userId);
-            }
-        }
-
+        //answered at once, the IM server retries slow replies
+        log.info("memberOnlineStatus, entries={}", statusList.size());
+        onlineStatusQueue.offer(statusList);
         return true;
     }
 
     @Override
     public void userIMOfflineKick(String userId) {
-        List<RoomMember> members = roomMemberDao.findByUid(userId);
-        for (RoomMember member : members) {
-            int userRole = member.getRole();
-            log.info("userIMOfflineKick: roomId={}, {}, role={}", member.getRid(), userId, RoleEnum.getEnumByValue(userRole));
+        List<RoomMember> members = roomRegistry.getMembersByUid(userId);
+        for (RoomMember found : members) {
+            String roomId = found.getRid();
             try {
-                if (userRole == RoleEnum.RoleTeacher.getValue() || userRole == RoleEnum.RoleAssistant.getValue()) {
-                    List<Room> rooms = roomDao.findByRid(member.getRid());
-                    if (rooms.isEmpty()) {
-                        break;
+                //the member is read again in the mailbox, it may have changed role or left meanwhile
+                AtomicBoolean dismissed = new AtomicBoolean();
+                List<Whiteboard> removedWhiteboards = roomMailbox.call(roomId, () -> roomTransaction.versioned(() -> {
+                    RoomCache room = roomRegistry.getRoom(roomId);
+                    RoomMember member = room == null ? null : roomRegistry.getMember(room, userId);
+                    if (member == null) {
+                        log.info("userIMOfflineKick, member gone: roomId={}, {}", roomId, userId);
+                        return null;
                     }
-                    if (isUserDisplay(rooms.get(0), member.getUid())) {
-                        updateDisplay(member.getRid(), member.getUid(), "", 0);
-                        log.info("memberOnlineStatus offline: roomId={}, {}", member.getRid(), member.getUid());
+                    int userRole = member.getRole();
+                    log.info("userIMOfflineKick: roomId={}, {}, role={}", roomId, userId, RoleEnum.getEnumByValue(userRole));
+                    if ((userRole == RoleEnum.RoleTeacher.getValue() || userRole == RoleEnum.RoleAssistant.getValue())
+                            && isUserDisplay(room, userId)) {
+                        updateDisplay(room, userId, "", 0);
+                        log.info("memberOnlineStatus offline: roomId={}, {}", roomId, userId);
                     }
-                }
-                if (roomMemberDao.countByRid(member.getRid()) == 1) {
-                    IMApiResultInfo apiResultInfo = null;
-                    apiResultInfo = imHelper.dismiss(member.getUid(), member.getRid());
-                    if (apiResultInfo.getCode() == 200) {
-                        roomMemberDao.deleteUserByRidAndUid(member.getRid(), member.getUid());
-                        roomDao.deleteByRid(member.getRid());
-                        deleteWhiteboardByUser(member.getRid(), member.getUid());
-                        log.info("dismiss the room: {}", member.getRid());
+                    boolean dismiss = countMembers(room) == 1;
+                    dismissed.set(dismiss);
+                    List<Whiteboard> whiteboards = new ArrayList<>();
+                    if (dismiss) {
+                        whiteboards = roomRegistry.removeWhiteboardsByCreator(room, userId);
+                        roomRegistry.removeRoom(roomId);
+                        log.info("dismiss the room: {}", roomId);
                     } else {
-                        log.error("{} exit {} room error: {}", member.getUid(), member.getRid(), apiResultInfo.getErrorMessage());
-                    }
-                } else {
-                    IMApiResultInfo apiResultInfo = null;
-                    apiResultInfo = imHelper.quit(new String[]{member.getUid()}, member.getRid());
-                    if (apiResultInfo.isSuccess()) {
-                        roomMemberDao.deleteUserByRidAndUid(member.getRid(), member.getUid());
-                        MemberChangedMessage msg = new MemberChangedMessage(MemberChangedMessage.Action_Leave, member.getUid(), userRole);
+                        roomRegistry.removeMember(room, userId);
+                        MemberChangedMessage msg = new MemberChangedMessage(MemberChangedMessage.Action_Leave, userId, userRole);
                         msg.setUserName(member.getName());
-                        imHelper.publishMessage(member.getUid(), member.getRid(), msg);
-                        imHelper.quit(new String[]{member.getUid()}, member.getRid());
-                        log.info("quit group: roomId={}, {}", member.getRid(), member.getUid());
-                    } else {
-                        log.error("{} exit {} room error: {}", member.getUid(), member.getRid(), apiResultInfo.getErrorMessage());
+                        memberDigest.dispatch(userId, roomId, msg, countMembers(room));
                     }
+                    roomRegistry.deleteUser(userId);
+                    imTokenCache.invalidate(userId);
+                    return whiteboards;
+                }));
+                if (removedWhiteboards == null) {
+                    continue;
                 }
-                userDao.deleteByUid(member.getUid());
+
+                //IM calls outside the mailbox, quits of users going offline together share calls
+                if (dismissed.get()) {
+                    dismissGroup(userId, roomId);
+                } else {
+                    groupBatcher.quit(userId, roomId).whenComplete((resultInfo, e) -> {
+                        if (e != null || !resultInfo.isSuccess()) {
+                            log.error("{} exit {} room error: {}", userId, roomId, e != null ? e.getMessage() : resultInfo.getErrorMessage());
+                        } else {
+                            log.info("quit group: roomId={}, {}", roomId, userId);
+                        }
+                    });
+                }
+                destroyWhiteboards(removedWhiteboards);
             } catch (Exception e) {
-                log.error("userIMOfflineKick error: userId={}", userId);
+                log.error("userIMOfflineKick error: roomId={}, userId={}, {}", roomId, userId, e.getMessage());
             }
         }
     }
-	private void updateDisplay(String roomId, String senderId, String display, Integer isIncludeSender) throws ApiException, Exception {
-        roomDao.updateDisplayByRid(roomId, display);
+
+	private void updateDisplay(RoomCache room, String senderId, String display, Integer isIncludeSender) {
+        roomRegistry.updateDisplay(room, display);
         DisplayMessage displayMessage = new DisplayMessage(display);
-        imHelper.publishMessage(senderId, roomId, displayMessage, isIncludeSender);
+        messageDispatcher.dispatch(senderId, room.getRid(), displayMessage, isIncludeSender);
     }
-    private boolean isTeacherDisplay(Room room, String userId) {
+
+    private int countMembers(RoomCache room) {
+        return room.getMemberCount() + roomRegistry.countAudience(room.getRid());
+    }
+
+    private boolean isLargeAudience(int role) {
+        return roomRegistry.isLargeAudience() && role == RoleEnum.RoleAudience.getValue();
+    }
+
+    private List<RoomMember> getMembersByRole(String roomId, RoleEnum role) {
+        RoomCache room = roomRegistry.getRoom(roomId);
+        return room == null ? new ArrayList<>() : room.getMembersByRole(role.getValue());
+    }
+
+    private boolean isTeacherDisplay(RoomCache room, String userId) {
         return !room.getDisplay().isEmpty() && room.getDisplay().contains("userId=" + userId);
     }
 
-    private boolean isTeacherDisplayWhiteboard(Room room, String userId) {
+    private boolean isTeacherDisplayWhiteboard(RoomCache room, String userId) {
         return !room.getDisplay().isEmpty() && room.getDisplay().contains("userId=" + userId) && room.getDisplay().contains("type=2");
     }
 
-    private boolean isAssistantDisplay(Room room, String userId) {
+    private boolean isAssistantDisplay(RoomCache room, String userId) {
         return !room.getDisplay().isEmpty() && room.getDisplay().contains("userId=" + userId);
     }
 
-    private boolean isUserDisplay(Room room, String userId) {
+    private boolean isUserDisplay(RoomCache room, String userId) {
         boolean result = false;
         if (!room.getDisplay().isEmpty() && room.getDisplay().contains("userId=" + userId)) {
             if (room.getDisplay().contains("type=0") || room.getDisplay().contains("type=1") || room.getDisplay().contains("type=3")) {
@@ -3,6 +3,7 @@ package cn.rongcloud.service.Impl;
 import cn.rongcloud.common.ApiException;
 import cn.rongcloud.common.ErrorEnum;
 import cn.rongcloud.im.IMHelper;
+import cn.rongcloud.im.IMTokenCache;
 import cn.rongcloud.pojo.IMTokenInfo;
 import cn.rongcloud.service.UserService;
 import cn.rongcloud.dao.UserDao;
@@ -13,6 +14,7 @@ import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Created by weiqinxiao on 2019/2/25.
@@ -26,14 +28,18 @@ public class UserServiceImpl implements UserService {
     @Autowired
     IMHelper imHelper;
 
+    @Autowired
+    IMTokenCache imTokenCache;
+
     @Override
-    public String refreshToken(String userId, String name) throws ApiException, Exception  {
+    public CompletableFuture<String> refreshToken(String userId, String name) throws ApiException, Exception  {
         log.info("request token: {}, {}", userId, name);
-        IMTokenInfo tokenInfo = imHelper.getToken(userId, name, "");
-        if (tokenInfo.isSuccess()) {
-            return tokenInfo.getToken();
-        } else {
-            throw new ApiException(ErrorEnum.ERR_IM_TOKEN_ERROR, tokenInfo.getErrorMessage());
-        }
+        return imTokenCache.refresh(userId, name).thenApply(tokenInfo -> {
+            if (tokenInfo.isSuccess()) {
+                return tokenInfo.getToken();
+            } else {
+                throw new ApiException(ErrorEnum.ERR_IM_TOKEN_ERROR, tokenInfo.getErrorMessage());
+            }
+        });
     }
 }
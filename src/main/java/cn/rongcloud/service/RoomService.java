@@ -3,22 +3,24 @@ package cn.rongcloud.service;
 import cn.rongcloud.common.ApiException;
 import cn.rongcloud.common.JwtUser;
 import cn.rongcloud.pojo.*;
+import cn.rongcloud.room.RoomSnapshot;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Created by weiqinxiao on 2019/2/28.
  */
 public interface RoomService {
     //everyone
-    public RoomResult joinRoom(String userName, String roomId, boolean isAudience, boolean isDisableCamera, JwtUser jwtUser) throws ApiException, Exception;
+    public CompletableFuture<RoomResult> joinRoom(String userName, String roomId, boolean isAudience, boolean isDisableCamera, JwtUser jwtUser) throws ApiException, Exception;
 
-    public Boolean leaveRoom(JwtUser jwtUser, String roomId) throws ApiException, Exception;
+    public CompletableFuture<Boolean> leaveRoom(JwtUser jwtUser, String roomId) throws ApiException, Exception;
 
     //only host
     public Boolean downgrade(String roomId, JwtUser jwtUser, List<ReqChangeUserRoleData.ChangedUser> users) throws ApiException, Exception;
 
-    public Boolean kickMember(String roomId, String userId, JwtUser jwtUser) throws ApiException, Exception;
+    public CompletableFuture<Boolean> kickMember(String roomId, String userId, JwtUser jwtUser) throws ApiException, Exception;
 
 
     //only teacher
@@ -39,7 +41,15 @@ public interface RoomService {
     public Boolean rejectControlDevice(String roomId, String ticket, JwtUser jwtUser) throws ApiException, Exception;
 
 
-    public List<RoomResult.MemberResult> getMembers(String roomId, JwtUser jwtUser) throws  ApiException, Exception;
+    public RoomSnapshot getRoomSnapshot(String roomId, JwtUser jwtUser) throws  ApiException, Exception;
+
+    public RoomResult.MemberDeltaResult getMemberChanges(String roomId, long sinceVersion, JwtUser jwtUser) throws  ApiException, Exception;
+
+    public RoomResult.MemberPageResult getMembersPage(String roomId, String cursor, int count, JwtUser jwtUser) throws  ApiException, Exception;
+
+    public RoomResult.AudienceResult getAudience(String roomId, int offset, int count, JwtUser jwtUser) throws  ApiException, Exception;
+
+    public RoomResult.PresenceResult getPresence(String roomId, JwtUser jwtUser) throws  ApiException, Exception;
 
     public Boolean applySpeech(String roomId, JwtUser jwtUser) throws  ApiException, Exception;
 
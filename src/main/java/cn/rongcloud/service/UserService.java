@@ -3,10 +3,12 @@ package cn.rongcloud.service;
 import cn.rongcloud.common.ApiException;
 import cn.rongcloud.pojo.UserInfo;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Created by weiqinxiao on 2019/2/25.
  */
 public interface UserService {
 
-    public String refreshToken(String userId, String name) throws ApiException, Exception;
+    public CompletableFuture<String> refreshToken(String userId, String name) throws ApiException, Exception;
 }
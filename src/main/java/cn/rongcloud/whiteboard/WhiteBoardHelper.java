@@ -8,7 +8,6 @@ import com.alibaba.fastjson.JSON;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import java.net.HttpURLConnection;
 import java.net.URLEncoder;
 
 /**
@@ -34,10 +33,9 @@ public class WhiteBoardHelper {
         StringBuilder sb = new StringBuilder();
         sb.append("&appId=").append(URLEncoder.encode(imProperties.getAppKey(), UTF8));
         sb.append("&roomNr=").append(URLEncoder.encode(roomId, UTF8));
-        HttpURLConnection connection= httpHelper.createWhiteBoardPostHttpConnection(whiteBoardProperties.getHost(), "/room/create", "application/x-www-form-urlencoded");
-        httpHelper.setBodyParameter(sb, connection);
+        String result = httpHelper.postWhiteBoard(whiteBoardProperties.getHost(), "/room/create", "application/x-www-form-urlencoded", sb.toString());
 
-        return JSON.parseObject(httpHelper.returnResult(connection, sb.toString()), WhiteBoardApiResultInfo.class);
+        return JSON.parseObject(result, WhiteBoardApiResultInfo.class);
     }
 
     public WhiteBoardApiResultInfo destroy(String roomId) throws Exception {
@@ -48,9 +46,8 @@ public class WhiteBoardHelper {
         StringBuilder sb = new StringBuilder();
         sb.append("&appId=").append(URLEncoder.encode(imProperties.getAppKey(), UTF8));
         sb.append("&roomNr=").append(URLEncoder.encode(roomId, UTF8));
-        HttpURLConnection connection= httpHelper.createWhiteBoardPostHttpConnection(whiteBoardProperties.getHost(), "/room/destroy", "application/x-www-form-urlencoded");
-        httpHelper.setBodyParameter(sb, connection);
+        String result = httpHelper.postWhiteBoard(whiteBoardProperties.getHost(), "/room/destroy", "application/x-www-form-urlencoded", sb.toString());
 
-        return JSON.parseObject(httpHelper.returnResult(connection, sb.toString()), WhiteBoardApiResultInfo.class);
+        return JSON.parseObject(result, WhiteBoardApiResultInfo.class);
     }
 }
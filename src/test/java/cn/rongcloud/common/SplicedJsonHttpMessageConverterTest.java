@@ -0,0 +1,59 @@
+package cn.rongcloud.common;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.parser.Feature;
+import com.alibaba.fastjson.serializer.SerializerFeature;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.MediaType;
+import org.springframework.mock.http.MockHttpOutputMessage;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class SplicedJsonHttpMessageConverterTest {
+    private static final MediaType COMPACT = MediaType.valueOf("application/vnd.sealclass.compact+json");
+
+    private SplicedJsonHttpMessageConverter converter;
+    private SplicedJson json;
+
+    @Before
+    public void setUp() {
+        converter = new SplicedJsonHttpMessageConverter(MediaType.APPLICATION_JSON_UTF8, MediaType.APPLICATION_JSON, COMPACT);
+        converter.setPrettyMediaTypes(Arrays.asList(MediaType.APPLICATION_JSON_UTF8, MediaType.APPLICATION_JSON));
+        json = SplicedJson.response(
+                "{\"members\":".getBytes(StandardCharsets.UTF_8),
+                "[{\"name\":\"老师 ,{[\\\"\",\"role\":1,\"tags\":[]},{\"name\":null,\"extra\":{}}]".getBytes(StandardCharsets.UTF_8),
+                ",\"version\":3}".getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String write(MediaType contentType) throws Exception {
+        MockHttpOutputMessage message = new MockHttpOutputMessage();
+        converter.write(json, contentType, message);
+        return message.getBodyAsString(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void prettyTypesAreIndentedAsTheOtherResponses() throws Exception {
+        Object parsed = JSON.parse(json.toString(), Feature.OrderedField);
+        String expected = JSON.toJSONString(parsed, SerializerFeature.WriteMapNullValue, SerializerFeature.PrettyFormat);
+        assertEquals(expected, write(MediaType.APPLICATION_JSON_UTF8));
+        assertEquals(expected, write(MediaType.APPLICATION_JSON));
+    }
+
+    @Test
+    public void compactTypeIsWrittenAsItIs() throws Exception {
+        assertEquals(json.toString(), write(COMPACT));
+    }
+
+    @Test
+    public void withoutPrettyTypesEveryTypeIsCompact() throws Exception {
+        converter.setPrettyMediaTypes(Arrays.asList());
+        String written = write(MediaType.APPLICATION_JSON_UTF8);
+        assertEquals(json.toString(), written);
+        assertFalse(written.contains("\n"));
+    }
+}
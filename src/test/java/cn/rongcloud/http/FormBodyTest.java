@@ -0,0 +1,83 @@
+package cn.rongcloud.http;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.serializer.SerializeConfig;
+import org.junit.Test;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class FormBodyTest {
+    private static final String[] VALUES = {
+            "",
+            "abcXYZ019.-*_",
+            "a b+c&d=e/f?g%h~i",
+            "\n\t\"'<>",
+            "é中文 한국어",
+            "😀 emoji 👍🏽",
+            //lone halves are encoded as the UTF-8 encoder replaces them
+            "low \uDE00 alone",
+            "high \uD83D alone",
+            "\uD83D😀",
+            "ends high \uD83D",
+    };
+
+    private static String encode(String value) throws UnsupportedEncodingException {
+        return URLEncoder.encode(value, "UTF-8");
+    }
+
+    @Test
+    public void encodesFieldsAsURLEncoder() throws UnsupportedEncodingException {
+        for (String value : VALUES) {
+            FormBody body = FormBody.builder().add("k", value).build();
+            assertEquals(value, "k=" + encode(value), body.toString());
+        }
+    }
+
+    @Test
+    public void highSurrogateAtTheEndOfAFieldIsNotPairedWithTheNext() throws UnsupportedEncodingException {
+        FormBody body = FormBody.builder().add("a", "x\uD83D").add("\uDE00b", "y").build();
+        assertEquals("a=" + encode("x\uD83D") + "&" + encode("\uDE00b") + "=y", body.toString());
+
+        body = FormBody.builder().add("a", "\uD83D").build();
+        assertEquals("a=" + encode("\uD83D"), body.toString());
+    }
+
+    @Test
+    public void encodesJsonAsURLEncoderDoesItsString() throws UnsupportedEncodingException {
+        Map<String, Object> value = new LinkedHashMap<>();
+        value.put("name", "中文 😀 \uD83D");
+        value.put("list", VALUES);
+        value.put("count", 3);
+        FormBody body = FormBody.builder()
+                .add("userId", "u1")
+                .addJson("content", value, SerializeConfig.getGlobalInstance())
+                .build();
+        assertEquals("userId=u1&content=" + encode(JSON.toJSONString(value)), body.toString());
+    }
+
+    @Test
+    public void resetFreesTheBuilderOfTheThread() {
+        FormBody.Builder builder = FormBody.builder().add("k", "v");
+        builder.build();
+        FormBody.Builder next = FormBody.builder();
+        assertSame(builder, next);
+
+        //a body built meanwhile does not get the buffer in use
+        FormBody.Builder nested = FormBody.builder();
+        assertNotSame(next, nested);
+        nested.reset();
+
+        next.add("k", "given up");
+        next.reset();
+        FormBody.Builder again = FormBody.builder();
+        assertSame(next, again);
+        assertEquals("k=v", again.add("k", "v").build().toString());
+    }
+}
@@ -0,0 +1,110 @@
+package cn.rongcloud.im;
+
+import cn.rongcloud.config.IMProperties;
+import cn.rongcloud.pojo.IMApiResultInfo;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.mockito.AdditionalMatchers.aryEq;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class GroupBatcherTest {
+    private IMHelper imHelper;
+    private GroupBatcher batcher;
+
+    @Before
+    public void setUp() {
+        imHelper = mock(IMHelper.class);
+        IMProperties imProperties = new IMProperties();
+        imProperties.setGroupBatchWindow(50);
+        imProperties.setGroupBatchSize(3);
+        batcher = new GroupBatcher(imHelper, imProperties, new SimpleMeterRegistry());
+        batcher.init();
+    }
+
+    @After
+    public void tearDown() {
+        batcher.destroy();
+    }
+
+    private static IMApiResultInfo success() {
+        IMApiResultInfo info = new IMApiResultInfo();
+        info.setCode(200);
+        return info;
+    }
+
+    @Test
+    public void joinsWithinTheWindowShareOneCall() {
+        IMApiResultInfo result = success();
+        when(imHelper.joinGroupAsync(any(), eq("g1"), eq("g1"))).thenReturn(CompletableFuture.completedFuture(result));
+
+        CompletableFuture<IMApiResultInfo> u1 = batcher.join("u1", "g1", "g1");
+        CompletableFuture<IMApiResultInfo> u2 = batcher.join("u2", "g1", "g1");
+
+        verify(imHelper, timeout(2000)).joinGroupAsync(aryEq(new String[]{"u1", "u2"}), eq("g1"), eq("g1"));
+        assertSame(result, u1.join());
+        assertSame(result, u2.join());
+    }
+
+    @Test
+    public void fullBatchGoesOutWithoutWaitingForTheWindow() {
+        when(imHelper.joinGroupAsync(any(), eq("g1"), eq("g1"))).thenReturn(CompletableFuture.completedFuture(success()));
+
+        batcher.join("u1", "g1", "g1");
+        batcher.join("u2", "g1", "g1");
+        batcher.join("u3", "g1", "g1");
+        batcher.join("u4", "g1", "g1");
+
+        verify(imHelper).joinGroupAsync(aryEq(new String[]{"u1", "u2", "u3"}), eq("g1"), eq("g1"));
+        verify(imHelper, timeout(2000)).joinGroupAsync(aryEq(new String[]{"u4"}), eq("g1"), eq("g1"));
+    }
+
+    @Test
+    public void quitWaitsForAnEarlierJoinOfTheGroup() {
+        CompletableFuture<IMApiResultInfo> joinCall = new CompletableFuture<>();
+        when(imHelper.joinGroupAsync(any(), eq("g1"), eq("g1"))).thenReturn(joinCall);
+        when(imHelper.quitAsync(any(), eq("g1"))).thenReturn(CompletableFuture.completedFuture(success()));
+
+        CompletableFuture<IMApiResultInfo> joined = batcher.join("u1", "g1", "g1");
+        CompletableFuture<IMApiResultInfo> quit = batcher.quit("u1", "g1");
+
+        //the quit closes the join batch, which goes out at once
+        verify(imHelper).joinGroupAsync(aryEq(new String[]{"u1"}), eq("g1"), eq("g1"));
+        verify(imHelper, after(200).never()).quitAsync(any(), eq("g1"));
+        assertFalse(quit.isDone());
+
+        joinCall.complete(success());
+        verify(imHelper, timeout(2000)).quitAsync(aryEq(new String[]{"u1"}), eq("g1"));
+        joined.join();
+        quit.join();
+        InOrder order = inOrder(imHelper);
+        order.verify(imHelper).joinGroupAsync(any(), eq("g1"), eq("g1"));
+        order.verify(imHelper).quitAsync(any(), eq("g1"));
+    }
+
+    @Test
+    public void groupsDoNotWaitOnEachOther() throws Exception {
+        when(imHelper.joinGroupAsync(any(), eq("g1"), eq("g1"))).thenReturn(new CompletableFuture<>());
+        when(imHelper.quitAsync(any(), eq("g2"))).thenReturn(CompletableFuture.completedFuture(success()));
+
+        batcher.join("u1", "g1", "g1");
+        batcher.quit("u2", "g2").get(2, TimeUnit.SECONDS);
+        verify(imHelper, never()).quitAsync(any(), eq("g1"));
+    }
+}
@@ -0,0 +1,144 @@
+package cn.rongcloud.im;
+
+import cn.rongcloud.config.IMProperties;
+import cn.rongcloud.pojo.IMTokenInfo;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class IMTokenCacheTest {
+    private IMHelper imHelper;
+    private IMTokenCache cache;
+
+    @Before
+    public void setUp() {
+        imHelper = mock(IMHelper.class);
+        IMProperties imProperties = new IMProperties();
+        imProperties.setTokenCacheTtl(60000);
+        imProperties.setTokenCacheSize(10);
+        cache = new IMTokenCache(imHelper, imProperties);
+    }
+
+    private static IMTokenInfo token(int code) {
+        IMTokenInfo info = new IMTokenInfo();
+        info.setCode(code);
+        info.setToken("token" + code);
+        return info;
+    }
+
+    private static IMTokenInfo issued(String token) {
+        IMTokenInfo info = token(200);
+        info.setToken(token);
+        return info;
+    }
+
+    @Test
+    public void concurrentRequestsShareOneCall() {
+        CompletableFuture<IMTokenInfo> remote = new CompletableFuture<>();
+        when(imHelper.getTokenAsync(anyString(), anyString(), anyString())).thenReturn(remote);
+
+        CompletableFuture<IMTokenInfo> first = cache.getToken("u1", "u1");
+        CompletableFuture<IMTokenInfo> second = cache.getToken("u1", "u1");
+        assertSame(first, second);
+        verify(imHelper, times(1)).getTokenAsync("u1", "u1", "");
+
+        remote.complete(token(200));
+        assertEquals("token200", first.join().getToken());
+        assertEquals("token200", cache.getToken("u1", "u1").join().getToken());
+        verify(imHelper, times(1)).getTokenAsync("u1", "u1", "");
+    }
+
+    @Test
+    public void unsuccessfulResultIsNotKept() {
+        CompletableFuture<IMTokenInfo> failed = new CompletableFuture<>();
+        when(imHelper.getTokenAsync("u1", "u1", "")).thenReturn(failed, CompletableFuture.completedFuture(token(200)));
+
+        CompletableFuture<IMTokenInfo> first = cache.getToken("u1", "u1");
+        failed.complete(token(500));
+        assertEquals(500, (int) first.join().getCode());
+
+        assertTrue(cache.getToken("u1", "u1").join().isSuccess());
+        verify(imHelper, times(2)).getTokenAsync("u1", "u1", "");
+    }
+
+    @Test
+    public void failedCallIsNotKept() {
+        CompletableFuture<IMTokenInfo> failed = new CompletableFuture<>();
+        when(imHelper.getTokenAsync("u1", "u1", "")).thenReturn(failed, CompletableFuture.completedFuture(token(200)));
+
+        CompletableFuture<IMTokenInfo> first = cache.getToken("u1", "u1");
+        failed.completeExceptionally(new RuntimeException("timeout"));
+        assertTrue(first.isCompletedExceptionally());
+
+        assertTrue(cache.getToken("u1", "u1").join().isSuccess());
+    }
+
+    @Test
+    public void invalidateLoadsAgain() {
+        when(imHelper.getTokenAsync("u1", "u1", ""))
+                .thenReturn(CompletableFuture.completedFuture(token(200)), CompletableFuture.completedFuture(token(200)));
+
+        CompletableFuture<IMTokenInfo> first = cache.getToken("u1", "u1");
+        cache.invalidate("u1");
+        assertNotSame(first, cache.getToken("u1", "u1"));
+        verify(imHelper, times(2)).getTokenAsync("u1", "u1", "");
+    }
+
+    @Test
+    public void tokenIsReusedForTheSameNameOnly() {
+        when(imHelper.getTokenAsync(anyString(), anyString(), anyString()))
+                .thenReturn(CompletableFuture.completedFuture(token(200)), CompletableFuture.completedFuture(issued("new")));
+
+        cache.getToken("u1", "u1").join();
+        assertEquals("new", cache.getToken("u1", "new name").join().getToken());
+        assertEquals("new", cache.getToken("u1", "new name").join().getToken());
+        verify(imHelper).getTokenAsync("u1", "new name", "");
+    }
+
+    @Test
+    public void refreshReplacesTheCachedToken() {
+        when(imHelper.getTokenAsync("u1", "u1", ""))
+                .thenReturn(CompletableFuture.completedFuture(token(200)), CompletableFuture.completedFuture(issued("new")));
+
+        assertEquals("token200", cache.getToken("u1", "u1").join().getToken());
+        assertEquals("new", cache.refresh("u1", "u1").join().getToken());
+        assertEquals("new", cache.getToken("u1", "u1").join().getToken());
+        verify(imHelper, times(2)).getTokenAsync("u1", "u1", "");
+    }
+
+    @Test
+    public void concurrentRefreshesShareOneCall() {
+        CompletableFuture<IMTokenInfo> remote = new CompletableFuture<>();
+        when(imHelper.getTokenAsync("u1", "u1", "")).thenReturn(CompletableFuture.completedFuture(token(200)), remote);
+        cache.getToken("u1", "u1").join();
+
+        CompletableFuture<IMTokenInfo> first = cache.refresh("u1", "u1");
+        assertSame(first, cache.refresh("u1", "u1"));
+        assertSame(first, cache.getToken("u1", "u1"));
+        remote.complete(issued("new"));
+        assertEquals("new", first.join().getToken());
+        verify(imHelper, times(2)).getTokenAsync("u1", "u1", "");
+    }
+
+    @Test
+    public void failedRefreshIsNotKept() {
+        when(imHelper.getTokenAsync("u1", "u1", ""))
+                .thenReturn(CompletableFuture.completedFuture(token(200)), CompletableFuture.completedFuture(token(500)),
+                        CompletableFuture.completedFuture(issued("new")));
+        cache.getToken("u1", "u1").join();
+
+        assertEquals(500, (int) cache.refresh("u1", "u1").join().getCode());
+        assertEquals("new", cache.getToken("u1", "u1").join().getToken());
+    }
+}
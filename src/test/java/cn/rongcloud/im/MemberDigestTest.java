@@ -0,0 +1,117 @@
+package cn.rongcloud.im;
+
+import cn.rongcloud.config.IMProperties;
+import cn.rongcloud.im.message.MemberChangedMessage;
+import cn.rongcloud.im.message.MemberDigestMessage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class MemberDigestTest {
+    private MessageDispatcher messageDispatcher;
+    private MemberDigest digest;
+
+    @Before
+    public void setUp() {
+        messageDispatcher = mock(MessageDispatcher.class);
+        IMProperties imProperties = new IMProperties();
+        imProperties.setMemberDigestThreshold(3);
+        //flushed by the tests
+        imProperties.setMemberDigestInterval(3600000);
+        imProperties.setMemberDigestMaxChanges(2);
+        digest = new MemberDigest(messageDispatcher, imProperties, new SimpleMeterRegistry());
+        digest.init();
+    }
+
+    @After
+    public void tearDown() {
+        digest.destroy();
+    }
+
+    private static MemberChangedMessage join(String userId) {
+        return new MemberChangedMessage(MemberChangedMessage.Action_Join, userId, 2);
+    }
+
+    @Test
+    public void smallRoomGetsAMessagePerChange() {
+        MemberChangedMessage msg = join("u1");
+        digest.dispatch("u1", "r1", msg, 2);
+
+        verify(messageDispatcher).dispatchNow("u1", "r1", msg, 0);
+    }
+
+    @Test
+    public void largeRoomGetsDigestsSplitAtMaxChanges() {
+        for (int i = 1; i <= 5; i++) {
+            digest.dispatch("u" + i, "r1", join("u" + i), 3 + i);
+        }
+        verify(messageDispatcher, never()).dispatchNow(anyString(), anyString(), any(), anyInt());
+
+        digest.flush();
+
+        ArgumentCaptor<BaseMessage> captor = ArgumentCaptor.forClass(BaseMessage.class);
+        verify(messageDispatcher, times(3)).dispatchNow(anyString(), eq("r1"), captor.capture(), eq(1));
+        List<BaseMessage> digests = captor.getAllValues();
+        String[][] expected = {{"u1", "u2"}, {"u3", "u4"}, {"u5"}};
+        for (int i = 0; i < expected.length; i++) {
+            List<MemberDigestMessage.Change> changes = ((MemberDigestMessage) digests.get(i)).getChanges();
+            assertEquals(expected[i].length, changes.size());
+            for (int j = 0; j < expected[i].length; j++) {
+                assertEquals(expected[i][j], changes.get(j).getUserId());
+            }
+        }
+    }
+
+    @Test
+    public void roomWithChangesHeldKeepsHoldingThemWhenItShrinks() {
+        digest.dispatch("u1", "r1", join("u1"), 3);
+        MemberChangedMessage leave = new MemberChangedMessage(MemberChangedMessage.Action_Leave, "u2", 2);
+        digest.dispatch("u2", "r1", leave, 2);
+        verify(messageDispatcher, never()).dispatchNow(anyString(), anyString(), any(), anyInt());
+
+        digest.flush();
+        ArgumentCaptor<BaseMessage> captor = ArgumentCaptor.forClass(BaseMessage.class);
+        verify(messageDispatcher).dispatchNow(eq("u1"), eq("r1"), captor.capture(), eq(1));
+        assertEquals(2, ((MemberDigestMessage) captor.getValue()).getChanges().size());
+
+        //flushed, the small room gets messages of its own again
+        MemberChangedMessage next = join("u3");
+        digest.dispatch("u3", "r1", next, 2);
+        ArgumentCaptor<BaseMessage> single = ArgumentCaptor.forClass(BaseMessage.class);
+        verify(messageDispatcher).dispatchNow(eq("u3"), eq("r1"), single.capture(), eq(0));
+        assertSame(next, single.getValue());
+    }
+
+    @Test
+    public void flushingARoomSendsItsChangesOnly() {
+        digest.dispatch("u1", "r1", join("u1"), 3);
+        digest.dispatch("u2", "r2", join("u2"), 3);
+
+        digest.flush("r1");
+        ArgumentCaptor<BaseMessage> captor = ArgumentCaptor.forClass(BaseMessage.class);
+        verify(messageDispatcher).dispatchNow(eq("u1"), eq("r1"), captor.capture(), eq(1));
+        assertEquals("u1", ((MemberDigestMessage) captor.getValue()).getChanges().get(0).getUserId());
+        verify(messageDispatcher, never()).dispatchNow(anyString(), eq("r2"), any(), anyInt());
+
+        //nothing left for r1
+        digest.flush("r1");
+        verify(messageDispatcher, times(1)).dispatchNow(anyString(), eq("r1"), any(), anyInt());
+        digest.flush();
+        verify(messageDispatcher).dispatchNow(eq("u2"), eq("r2"), any(), eq(1));
+    }
+}
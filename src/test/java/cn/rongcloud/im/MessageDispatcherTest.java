@@ -0,0 +1,105 @@
+package cn.rongcloud.im;
+
+import cn.rongcloud.config.IMProperties;
+import cn.rongcloud.im.message.DisplayMessage;
+import cn.rongcloud.im.message.MemberChangedMessage;
+import cn.rongcloud.im.message.MemberDigestMessage;
+import cn.rongcloud.pojo.IMApiResultInfo;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class MessageDispatcherTest {
+    private IMHelper imHelper;
+    private MemberDigest memberDigest;
+    private MessageDispatcher dispatcher;
+
+    @Before
+    public void setUp() throws Exception {
+        imHelper = mock(IMHelper.class);
+        IMProperties imProperties = new IMProperties();
+        imProperties.setDispatchThreads(1);
+        IMApiResultInfo success = new IMApiResultInfo();
+        success.setCode(200);
+        when(imHelper.publishMessage(anyString(), isNull(), any(String[].class), any(BaseMessage.class),
+                anyString(), anyString(), anyInt(), anyInt(), anyInt(), anyInt(), anyInt())).thenReturn(success);
+        memberDigest = mock(MemberDigest.class);
+        dispatcher = new MessageDispatcher(imHelper, imProperties, new SimpleMeterRegistry(), memberDigest);
+        dispatcher.init();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        dispatcher.destroy();
+    }
+
+    private List<BaseMessage> published(int count) throws Exception {
+        ArgumentCaptor<BaseMessage> captor = ArgumentCaptor.forClass(BaseMessage.class);
+        verify(imHelper, timeout(2000).times(count)).publishMessage(anyString(), isNull(), any(String[].class), captor.capture(),
+                anyString(), anyString(), anyInt(), anyInt(), anyInt(), anyInt(), anyInt());
+        return captor.getAllValues();
+    }
+
+    @Test
+    public void digestHeldForTheRoomGoesBeforeTheNextMessage() throws Exception {
+        MemberDigestMessage digest = new MemberDigestMessage();
+        digest.setChanges(Collections.singletonList(new MemberDigestMessage.Change(
+                new MemberChangedMessage(MemberChangedMessage.Action_Join, "u1", 2))));
+        doAnswer(invocation -> {
+            dispatcher.dispatchNow("u1", "r1", digest, 1);
+            return null;
+        }).when(memberDigest).flush("r1");
+
+        DisplayMessage display = new DisplayMessage("display://type=1?userId=u1");
+        dispatcher.dispatch("u1", "r1", display);
+
+        List<BaseMessage> messages = published(2);
+        assertSame(digest, messages.get(0));
+        assertSame(display, messages.get(1));
+    }
+
+    @Test
+    public void digestIsFlushedAfterTheCommitOfTheMessage() throws Exception {
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            dispatcher.dispatch("u1", "r1", new DisplayMessage(""));
+            verify(memberDigest, never()).flush(anyString());
+
+            for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+                synchronization.afterCommit();
+            }
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+        verify(memberDigest).flush("r1");
+        assertTrue(published(1).get(0) instanceof DisplayMessage);
+    }
+
+    @Test
+    public void digestMessagesDoNotFlushTheDigest() throws Exception {
+        dispatcher.dispatchNow("u1", "r1", new MemberDigestMessage(), 1);
+        assertEquals(1, published(1).size());
+        verify(memberDigest, never()).flush(anyString());
+    }
+}
@@ -0,0 +1,109 @@
+package cn.rongcloud.im;
+
+import cn.rongcloud.EmbeddedRedis;
+import cn.rongcloud.common.ApiException;
+import cn.rongcloud.config.IMProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PublishGovernorTest {
+    @ClassRule
+    public static final EmbeddedRedis redis = new EmbeddedRedis();
+
+    private IMProperties imProperties;
+    private PublishGovernor governor;
+
+    @Before
+    public void setUp() {
+        redis.flush();
+        imProperties = new IMProperties();
+        imProperties.setPublishRate(10);
+        imProperties.setPublishBurst(3);
+        governor = governor(redis.getTemplate());
+    }
+
+    @After
+    public void tearDown() {
+        governor.destroy();
+    }
+
+    private PublishGovernor governor(StringRedisTemplate template) {
+        PublishGovernor governor = new PublishGovernor(template, imProperties, new SimpleMeterRegistry());
+        governor.init();
+        return governor;
+    }
+
+    @Test
+    public void grantsTheBurstThenTellsHowLongToWait() {
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, governor.tryAcquire());
+        }
+        long wait = governor.tryAcquire();
+        assertTrue(String.valueOf(wait), wait > 0 && wait <= 100);
+    }
+
+    @Test
+    public void nodesShareTheBucket() {
+        PublishGovernor other = governor(redis.getTemplate());
+        try {
+            assertEquals(0, governor.tryAcquire());
+            assertEquals(0, other.tryAcquire());
+            assertEquals(0, governor.tryAcquire());
+            assertTrue(other.tryAcquire() > 0);
+        } finally {
+            other.destroy();
+        }
+    }
+
+    @Test
+    public void tokensComeBackAtTheRate() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            governor.tryAcquire();
+        }
+        //a token every 100ms
+        governor.acquireAsync().get(2, TimeUnit.SECONDS);
+        governor.acquire();
+    }
+
+    @Test(expected = ApiException.class)
+    public void givesUpPastTheMaxWait() throws ApiException {
+        imProperties.setPublishRate(1);
+        imProperties.setPublishMaxWait(100);
+        for (int i = 0; i < 3; i++) {
+            governor.tryAcquire();
+        }
+        governor.acquire();
+    }
+
+    @Test
+    public void letsMessagesThroughWithoutRedis() throws IOException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        LettuceConnectionFactory factory = new LettuceConnectionFactory(new RedisStandaloneConfiguration("127.0.0.1", port));
+        factory.afterPropertiesSet();
+        PublishGovernor down = governor(new StringRedisTemplate(factory));
+        try {
+            for (int i = 0; i < 5; i++) {
+                assertEquals(0, down.tryAcquire());
+            }
+        } finally {
+            down.destroy();
+            factory.destroy();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package cn.rongcloud.im;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PublishQueueTest {
+    private static PublishQueue.Entry entry(String groupId, boolean control, String coalesceKey) {
+        return new PublishQueue.Entry("sender", null, groupId, null, 0, control, coalesceKey);
+    }
+
+    private static PublishQueue.Entry take(PublishQueue queue) throws InterruptedException {
+        PublishQueue.Entry entry = queue.take();
+        queue.done(entry);
+        return entry;
+    }
+
+    @Test
+    public void keepsOrderWithinAGroupWhateverThePriority() throws InterruptedException {
+        PublishQueue queue = new PublishQueue(100);
+        PublishQueue.Entry info = entry("g1", false, null);
+        PublishQueue.Entry control = entry("g1", true, null);
+        queue.offer(info);
+        queue.offer(control);
+
+        assertSame(info, take(queue));
+        assertSame(control, take(queue));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void takesGroupsWithAControlMessageFirst() throws InterruptedException {
+        PublishQueue queue = new PublishQueue(100);
+        PublishQueue.Entry info1 = entry("g1", false, null);
+        PublishQueue.Entry info2 = entry("g2", false, null);
+        PublishQueue.Entry before = entry("g3", false, null);
+        PublishQueue.Entry control = entry("g3", true, null);
+        queue.offer(info1);
+        queue.offer(info2);
+        queue.offer(before);
+        queue.offer(control);
+
+        //g3 goes first, in its own order
+        assertSame(before, take(queue));
+        assertSame(control, take(queue));
+        assertSame(info1, take(queue));
+        assertSame(info2, take(queue));
+    }
+
+    @Test
+    public void handsAGroupToOneWorkerAtATime() throws InterruptedException {
+        PublishQueue queue = new PublishQueue(100);
+        PublishQueue.Entry a1 = entry("a", false, null);
+        PublishQueue.Entry a2 = entry("a", false, null);
+        PublishQueue.Entry b1 = entry("b", false, null);
+        queue.offer(a1);
+        queue.offer(a2);
+        queue.offer(b1);
+
+        assertSame(a1, queue.take());
+        assertSame(b1, queue.take());
+        assertFalse(queue.isEmpty());
+        queue.done(a1);
+        assertSame(a2, queue.take());
+        queue.done(b1);
+        queue.done(a2);
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void newerMessageSupersedesAQueuedOneAtTheTail() throws InterruptedException {
+        PublishQueue queue = new PublishQueue(100);
+        PublishQueue.Entry display1 = entry("g1", false, "display:g1");
+        PublishQueue.Entry page = entry("g1", false, null);
+        PublishQueue.Entry display2 = entry("g1", false, "display:g1");
+
+        assertEquals(PublishQueue.Offer.QUEUED, queue.offer(display1));
+        assertEquals(PublishQueue.Offer.QUEUED, queue.offer(page));
+        assertEquals(PublishQueue.Offer.COALESCED, queue.offer(display2));
+        assertEquals(2, queue.size(false));
+
+        assertSame(page, take(queue));
+        assertSame(display2, take(queue));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void coalescesNoLongerOnceTaken() throws InterruptedException {
+        PublishQueue queue = new PublishQueue(100);
+        PublishQueue.Entry display1 = entry("g1", false, "display:g1");
+        PublishQueue.Entry display2 = entry("g1", false, "display:g1");
+        queue.offer(display1);
+        assertSame(display1, queue.take());
+
+        assertEquals(PublishQueue.Offer.QUEUED, queue.offer(display2));
+        queue.done(display1);
+        assertSame(display2, take(queue));
+    }
+
+    @Test
+    public void dropsMessagesBeyondCapacity() throws InterruptedException {
+        PublishQueue queue = new PublishQueue(2);
+        PublishQueue.Entry display1 = entry("g1", false, "display:g1");
+        PublishQueue.Entry control = entry("g2", true, null);
+        assertEquals(PublishQueue.Offer.QUEUED, queue.offer(display1));
+        assertEquals(PublishQueue.Offer.QUEUED, queue.offer(control));
+
+        assertEquals(PublishQueue.Offer.DROPPED, queue.offer(entry("g3", true, null)));
+        //superseding does not grow the queue
+        PublishQueue.Entry display2 = entry("g1", false, "display:g1");
+        assertEquals(PublishQueue.Offer.COALESCED, queue.offer(display2));
+        assertEquals(1, queue.size(true));
+        assertEquals(1, queue.size(false));
+
+        assertSame(control, take(queue));
+        assertSame(display2, take(queue));
+    }
+}
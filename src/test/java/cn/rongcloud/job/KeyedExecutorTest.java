@@ -0,0 +1,103 @@
+package cn.rongcloud.job;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class KeyedExecutorTest {
+    private KeyedExecutor executor;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        executor.shutdown(1000);
+    }
+
+    @Test
+    public void runsTasksOfOneKeyInSubmitOrder() throws InterruptedException {
+        executor = new KeyedExecutor("test-keyed", 4);
+        int keys = 5;
+        int tasks = 200;
+        Map<String, List<Integer>> runs = new HashMap<>();
+        for (int k = 0; k < keys; k++) {
+            runs.put("key" + k, Collections.synchronizedList(new ArrayList<>()));
+        }
+        CountDownLatch done = new CountDownLatch(keys * tasks);
+        for (int i = 0; i < tasks; i++) {
+            for (int k = 0; k < keys; k++) {
+                int index = i;
+                List<Integer> run = runs.get("key" + k);
+                executor.execute("key" + k, () -> {
+                    if (ThreadLocalRandom.current().nextInt(10) == 0) {
+                        Thread.yield();
+                    }
+                    run.add(index);
+                    done.countDown();
+                });
+            }
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (List<Integer> run : runs.values()) {
+            assertEquals(tasks, run.size());
+            for (int i = 0; i < tasks; i++) {
+                assertEquals(i, (int) run.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void keysDoNotWaitOnEachOther() throws InterruptedException {
+        executor = new KeyedExecutor("test-keyed", 2);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch otherRan = new CountDownLatch(1);
+        executor.execute("slow", () -> {
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        executor.execute("fast", otherRan::countDown);
+
+        assertTrue(otherRan.await(5, TimeUnit.SECONDS));
+        release.countDown();
+    }
+
+    @Test
+    public void freeSlotsFollowPendingTasks() throws InterruptedException {
+        executor = new KeyedExecutor("test-keyed", 2);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(3);
+        for (int i = 0; i < 3; i++) {
+            executor.execute("key", () -> {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            });
+        }
+        assertEquals(3, executor.pendingCount());
+        assertEquals(0, executor.freeSlots());
+
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (executor.pendingCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, executor.freeSlots());
+    }
+}
@@ -0,0 +1,133 @@
+package cn.rongcloud.job;
+
+import cn.rongcloud.config.RoomProperties;
+import cn.rongcloud.pojo.ReqMemberOnlineStatus;
+import cn.rongcloud.pojo.RoomMember;
+import cn.rongcloud.room.RoomRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class OnlineStatusQueueTest {
+    private RoomRegistry roomRegistry;
+    private ScheduleManager scheduleManager;
+    private RoomProperties roomProperties;
+    private OnlineStatusQueue queue;
+
+    @Before
+    public void setUp() {
+        roomRegistry = mock(RoomRegistry.class);
+        scheduleManager = mock(ScheduleManager.class);
+        when(roomRegistry.getMembersByUids(any()))
+                .thenReturn(Collections.singletonList(new RoomMember("u1", "r1")));
+        roomProperties = new RoomProperties();
+        //applied by the tests
+        roomProperties.setOnlineStatusInterval(3600000);
+        queue = new OnlineStatusQueue(roomRegistry, scheduleManager, roomProperties, new SimpleMeterRegistry());
+        queue.init();
+    }
+
+    @After
+    public void tearDown() {
+        queue.destroy();
+    }
+
+    private static ReqMemberOnlineStatus status(int status, long time) {
+        ReqMemberOnlineStatus entry = new ReqMemberOnlineStatus();
+        entry.setUserId("u1");
+        entry.setStatus(String.valueOf(status));
+        entry.setTime(String.valueOf(time));
+        return entry;
+    }
+
+    private void offer(ReqMemberOnlineStatus... entries) {
+        queue.offer(Arrays.asList(entries));
+    }
+
+    private void apply() {
+        queue.apply(false);
+    }
+
+    @Test
+    public void repeatedOfflineStatusKicksOnce() {
+        roomProperties.setPresenceOfflineDwell(0);
+        offer(status(OnlineStatusQueue.STATUS_OFFLINE, 100), status(OnlineStatusQueue.STATUS_OFFLINE, 101));
+        offer(status(OnlineStatusQueue.STATUS_OFFLINE, 102));
+        apply();
+        offer(status(OnlineStatusQueue.STATUS_OFFLINE, 103));
+        apply();
+
+        verify(scheduleManager, times(1)).userIMOffline(eq("u1"), anyLong());
+        verify(roomRegistry, times(1)).getMembersByUids(any());
+        assertEquals(OnlineStatusQueue.STATUS_OFFLINE, queue.getPresence("u1").getStatus());
+    }
+
+    @Test
+    public void switchingBackWithinTheDwellIsAFlap() {
+        offer(status(OnlineStatusQueue.STATUS_OFFLINE, 100));
+        offer(status(OnlineStatusQueue.STATUS_ONLINE, 101));
+        apply();
+
+        verify(scheduleManager, never()).userIMOffline(anyString(), anyLong());
+        verify(scheduleManager).usersIMOnline(Collections.singletonMap("u1", 101L));
+        OnlineStatusQueue.UserPresence presence = queue.getPresence("u1");
+        assertEquals(1, presence.getFlaps());
+        assertEquals(OnlineStatusQueue.STATUS_ONLINE, presence.getPendingStatus());
+    }
+
+    @Test
+    public void flappingUserWaitsLongerToGoOffline() {
+        roomProperties.setPresenceOfflineDwell(0);
+        roomProperties.setPresenceFlapThreshold(1);
+        roomProperties.setPresenceFlappingOfflineDwell(3600000);
+        offer(status(OnlineStatusQueue.STATUS_OFFLINE, 100), status(OnlineStatusQueue.STATUS_ONLINE, 101),
+                status(OnlineStatusQueue.STATUS_OFFLINE, 102));
+        apply();
+
+        verify(scheduleManager, never()).userIMOffline(anyString(), anyLong());
+        OnlineStatusQueue.UserPresence presence = queue.getPresence("u1");
+        assertTrue(presence.isDamped());
+        assertEquals(OnlineStatusQueue.STATUS_OFFLINE, presence.getPendingStatus());
+    }
+
+    @Test
+    public void olderStatusThanTheLatestIsDropped() {
+        roomProperties.setPresenceOfflineDwell(0);
+        offer(status(OnlineStatusQueue.STATUS_OFFLINE, 200));
+        offer(status(OnlineStatusQueue.STATUS_ONLINE, 100));
+        apply();
+
+        verify(scheduleManager).userIMOffline("u1", 200L);
+        verify(scheduleManager, never()).usersIMOnline(anyMap());
+        assertEquals(0, queue.getPresence("u1").getFlaps());
+    }
+
+    @Test
+    public void offlineUserOutOfAnyRoomIsNotKicked() {
+        roomProperties.setPresenceOfflineDwell(0);
+        List<RoomMember> none = Collections.emptyList();
+        when(roomRegistry.getMembersByUids(any())).thenReturn(none);
+        offer(status(OnlineStatusQueue.STATUS_OFFLINE, 100));
+        apply();
+
+        verify(scheduleManager, never()).userIMOffline(anyString(), anyLong());
+    }
+}
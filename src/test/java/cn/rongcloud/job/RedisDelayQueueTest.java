@@ -0,0 +1,150 @@
+package cn.rongcloud.job;
+
+import cn.rongcloud.EmbeddedRedis;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RedisDelayQueueTest {
+    @ClassRule
+    public static final EmbeddedRedis redis = new EmbeddedRedis();
+
+    private static final String KEY = "sealclass:delay:test";
+
+    private RedisDelayQueue queue;
+    private RedisDelayQueue otherNode;
+
+    @Before
+    public void setUp() {
+        redis.flush();
+        queue = new RedisDelayQueue(redis.getTemplate(), "test", 60000);
+        otherNode = new RedisDelayQueue(redis.getTemplate(), "test", 60000);
+    }
+
+    private static long past() {
+        return System.currentTimeMillis() - 1000;
+    }
+
+    private static Double score(String member) {
+        return redis.getTemplate().opsForZSet().score(KEY, member);
+    }
+
+    @Test
+    public void claimLeasesDueEntriesToOneNode() {
+        queue.offer("a", past());
+        queue.offer("b", past() + 1);
+        queue.offer("later", System.currentTimeMillis() + 60000);
+
+        List<RedisDelayQueue.Entry> claimed = queue.claim(1);
+        assertEquals(1, claimed.size());
+        assertEquals("a", claimed.get(0).getMember());
+        claimed = otherNode.claim(10);
+        assertEquals(1, claimed.size());
+        assertEquals("b", claimed.get(0).getMember());
+        assertTrue(queue.claim(10).isEmpty());
+
+        //still queued, leased
+        assertTrue(score("a") > System.currentTimeMillis());
+    }
+
+    @Test
+    public void entryOfANodeGoneComesDueAgain() throws InterruptedException {
+        RedisDelayQueue shortLease = new RedisDelayQueue(redis.getTemplate(), "test", 10);
+        shortLease.offer("a", past());
+        RedisDelayQueue.Entry first = shortLease.claim(10).get(0);
+        Thread.sleep(20);
+
+        RedisDelayQueue.Entry second = otherNode.claim(10).get(0);
+        assertEquals("a", second.getMember());
+        //the first claim must not run any more
+        assertFalse(shortLease.renew(first));
+        assertTrue(otherNode.renew(second));
+    }
+
+    @Test
+    public void ackKeepsAnEntryOfferedAgainAfterTheClaim() {
+        queue.offer("a", past());
+        RedisDelayQueue.Entry entry = queue.claim(10).get(0);
+        long due = System.currentTimeMillis() + 60000;
+        otherNode.offer("a", due);
+
+        assertFalse(queue.renew(entry));
+        queue.ack(entry);
+        assertEquals(due, score("a").longValue());
+    }
+
+    @Test
+    public void ackRemovesTheClaimedEntry() {
+        queue.offer("a", past());
+        RedisDelayQueue.Entry entry = queue.claim(10).get(0);
+        assertTrue(queue.renew(entry));
+
+        queue.ack(entry);
+        assertNull(score("a"));
+    }
+
+    @Test
+    public void offerIfAbsentLeavesAQueuedOrClaimedEntry() {
+        long due = System.currentTimeMillis() + 60000;
+        assertTrue(queue.offerIfAbsent("a", due));
+        assertFalse(otherNode.offerIfAbsent("a", due + 1));
+        assertEquals(due, score("a").longValue());
+
+        queue.offer("b", past());
+        queue.claim(10);
+        assertFalse(otherNode.offerIfAbsent("b", due));
+    }
+
+    @Test
+    public void cancelForAnEventGuardsAgainstOffersForEarlierOnes() {
+        long due = System.currentTimeMillis() + 60000;
+        assertTrue(queue.offer("u1", due, 100));
+        Map<String, Long> times = new HashMap<>();
+        times.put("u1", 200L);
+        times.put("u2", 150L);
+        otherNode.cancel(times, 60000);
+        assertNull(score("u1"));
+
+        //an offline status older than the online one seen on the other node
+        assertFalse(queue.offer("u1", due, 199));
+        assertFalse(queue.offer("u2", due, 150));
+        assertTrue(queue.offer("u1", due, 201));
+        assertEquals(due, score("u1").longValue());
+    }
+
+    @Test
+    public void guardKeepsTheLatestCancelledTime() {
+        long due = System.currentTimeMillis() + 60000;
+        otherNode.cancel(Collections.singletonMap("u1", 200L), 60000);
+        queue.cancel(Collections.singletonMap("u1", 100L), 60000);
+
+        assertFalse(queue.offer("u1", due, 150));
+        assertTrue(queue.offer("u1", due, 250));
+    }
+
+    @Test
+    public void guardExpiresAfterItsTime() throws InterruptedException {
+        long due = System.currentTimeMillis() + 60000;
+        queue.cancel(Collections.singletonMap("u1", 200L), 10);
+        Thread.sleep(30);
+
+        assertTrue(queue.offer("u1", due, 100));
+    }
+
+    @Test
+    public void cancelRemovesTheEntryForEveryNode() {
+        queue.offer("a", past());
+        otherNode.cancel("a");
+        assertTrue(queue.claim(10).isEmpty());
+    }
+}
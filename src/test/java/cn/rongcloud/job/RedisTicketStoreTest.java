@@ -0,0 +1,114 @@
+package cn.rongcloud.job;
+
+import cn.rongcloud.EmbeddedRedis;
+import cn.rongcloud.pojo.ControlDeviceTaskInfo;
+import cn.rongcloud.pojo.DeviceTypeEnum;
+import cn.rongcloud.pojo.ScheduledTaskInfo;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RedisTicketStoreTest {
+    @ClassRule
+    public static final EmbeddedRedis redis = new EmbeddedRedis();
+
+    private final List<String> expired = Collections.synchronizedList(new ArrayList<>());
+    private RedisTicketStore store;
+    private RedisTicketStore otherNode;
+
+    @Before
+    public void setUp() {
+        redis.flush();
+        //polled by the tests
+        store = new RedisTicketStore(redis.getTemplate(), 3600000, 2, task -> expired.add(task.getTicket()));
+        otherNode = new RedisTicketStore(redis.getTemplate(), 3600000, 2, task -> expired.add(task.getTicket()));
+    }
+
+    @After
+    public void tearDown() {
+        store.close();
+        otherNode.close();
+    }
+
+    private static ScheduledTaskInfo task(String ticket) {
+        ScheduledTaskInfo task = new ScheduledTaskInfo();
+        task.setTicket(ticket);
+        task.setRoomId("r1");
+        task.setApplyUserId("u1");
+        task.setTargetUserId("u2");
+        return task;
+    }
+
+    @Test
+    public void ticketIsRemovedOnceOnAnyNode() {
+        ControlDeviceTaskInfo task = new ControlDeviceTaskInfo();
+        task.setTicket("t1");
+        task.setRoomId("r1");
+        task.setTypeEnum(DeviceTypeEnum.Camera);
+        task.setOnOff(true);
+        assertTrue(store.add("t1", task, 60000));
+
+        ScheduledTaskInfo removed = otherNode.remove("t1");
+        assertTrue(removed instanceof ControlDeviceTaskInfo);
+        assertEquals(DeviceTypeEnum.Camera, ((ControlDeviceTaskInfo) removed).getTypeEnum());
+        assertTrue(((ControlDeviceTaskInfo) removed).isOnOff());
+        assertEquals("r1", removed.getRoomId());
+        assertNull(store.remove("t1"));
+    }
+
+    @Test
+    public void ticketIsAddedOnce() {
+        assertTrue(store.add("t1", task("t1"), 60000));
+        assertFalse(otherNode.add("t1", task("t1"), 60000));
+        assertEquals("u1", store.remove("t1").getApplyUserId());
+    }
+
+    @Test
+    public void dueTicketIsLeftToThePoller() throws InterruptedException {
+        store.add("t1", task("t1"), 0);
+        Thread.sleep(5);
+        assertNull(store.remove("t1"));
+
+        store.poll();
+        assertEquals(Collections.singletonList("t1"), expired);
+    }
+
+    @Test
+    public void dueTicketsExpireOnceAcrossNodesInBatches() throws InterruptedException {
+        for (int i = 1; i <= 5; i++) {
+            store.add("t" + i, task("t" + i), 0);
+        }
+        store.add("later", task("later"), 60000);
+        Thread.sleep(5);
+
+        store.poll();
+        otherNode.poll();
+
+        List<String> sorted = new ArrayList<>(expired);
+        Collections.sort(sorted);
+        assertEquals(Arrays.asList("t1", "t2", "t3", "t4", "t5"), sorted);
+        assertEquals("later", store.remove("later").getTicket());
+    }
+
+    @Test
+    public void ticketWithoutDataIsDroppedWithoutACallback() throws InterruptedException {
+        store.add("t1", task("t1"), 0);
+        redis.getTemplate().delete("sealclass:ticket:data:t1");
+        Thread.sleep(5);
+
+        store.poll();
+        assertTrue(expired.isEmpty());
+        assertEquals(Long.valueOf(0), redis.getTemplate().opsForZSet().zCard("sealclass:ticket:due"));
+    }
+}
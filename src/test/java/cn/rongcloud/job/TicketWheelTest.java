@@ -0,0 +1,80 @@
+package cn.rongcloud.job;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TicketWheelTest {
+    private static final long TICK_MS = 10;
+
+    private final BlockingQueue<String> expired = new LinkedBlockingQueue<>();
+    private TicketWheel<String> wheel;
+
+    @Before
+    public void setUp() {
+        wheel = new TicketWheel<>("test-wheel", TICK_MS, 8, 3, expired::add);
+    }
+
+    @After
+    public void tearDown() {
+        wheel.close();
+    }
+
+    @Test
+    public void expiresNotBeforeItsDelay() throws InterruptedException {
+        long start = System.nanoTime();
+        assertTrue(wheel.add("a", "A", 50));
+
+        assertEquals("A", expired.poll(2, TimeUnit.SECONDS));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("expired after " + elapsed + "ms", elapsed >= 50 - TICK_MS);
+        assertEquals(0, wheel.size());
+        assertNull(wheel.remove("a"));
+    }
+
+    @Test
+    public void waitsMoreRevolutionsThanTheWheelHas() throws InterruptedException {
+        long start = System.nanoTime();
+        //8 buckets of 10ms, 200ms is two and a half revolutions
+        assertTrue(wheel.add("late", "LATE", 200));
+        assertTrue(wheel.add("early", "EARLY", 20));
+
+        assertEquals("EARLY", expired.poll(2, TimeUnit.SECONDS));
+        assertEquals("LATE", expired.poll(2, TimeUnit.SECONDS));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("expired after " + elapsed + "ms", elapsed >= 200 - TICK_MS);
+    }
+
+    @Test
+    public void removedTicketDoesNotExpire() throws InterruptedException {
+        assertTrue(wheel.add("a", "A", 30));
+        assertTrue(wheel.add("b", "B", 30));
+
+        assertEquals("A", wheel.remove("a"));
+        assertEquals("B", expired.poll(2, TimeUnit.SECONDS));
+        assertNull(expired.poll(100, TimeUnit.MILLISECONDS));
+        assertNull(wheel.remove("a"));
+    }
+
+    @Test
+    public void rejectsDuplicatesAndTicketsBeyondMax() {
+        assertTrue(wheel.add("a", "A", 10000));
+        assertFalse(wheel.add("a", "A2", 10000));
+        assertTrue(wheel.add("b", "B", 10000));
+        assertTrue(wheel.add("c", "C", 10000));
+        assertFalse(wheel.add("d", "D", 10000));
+
+        assertEquals("B", wheel.remove("b"));
+        assertTrue(wheel.add("d", "D", 10000));
+        assertEquals(3, wheel.size());
+    }
+}
@@ -0,0 +1,108 @@
+package cn.rongcloud.room;
+
+import cn.rongcloud.EmbeddedRedis;
+import cn.rongcloud.config.RoomProperties;
+import cn.rongcloud.pojo.RoleEnum;
+import cn.rongcloud.pojo.RoomMember;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AudienceStoreTest {
+    @ClassRule
+    public static final EmbeddedRedis redis = new EmbeddedRedis();
+
+    private AudienceStore store;
+
+    @Before
+    public void setUp() {
+        redis.flush();
+        RoomProperties roomProperties = new RoomProperties();
+        roomProperties.setRoomTtl(60000);
+        store = new AudienceStore(redis.getTemplate(), roomProperties);
+    }
+
+    private static RoomMember member(String uid, String rid, String name, long joinTime) {
+        RoomMember member = new RoomMember(uid, rid);
+        member.setName(name);
+        member.setJoinDt(new Date(joinTime));
+        return member;
+    }
+
+    private static List<String> uids(List<RoomMember> members) {
+        List<String> result = new ArrayList<>();
+        for (RoomMember member : members) {
+            result.add(member.getUid());
+        }
+        return result;
+    }
+
+    @Test
+    public void memberIsAddedOnceAndReadBack() {
+        assertTrue(store.add(member("u1", "r1", "观众|1", 1000)));
+        assertFalse(store.add(member("u1", "r1", "again", 2000)));
+
+        RoomMember member = store.get("r1", "u1");
+        assertEquals("观众|1", member.getName());
+        assertEquals(1000, member.getJoinDt().getTime());
+        assertEquals(RoleEnum.RoleAudience.getValue(), member.getRole());
+        assertEquals("r1", store.getByUid("u1").getRid());
+        assertEquals(1, store.count("r1"));
+    }
+
+    @Test
+    public void removeDropsTheMemberOnce() {
+        store.add(member("u1", "r1", "a", 1000));
+        assertTrue(store.remove("r1", "u1"));
+        assertFalse(store.remove("r1", "u1"));
+
+        assertNull(store.get("r1", "u1"));
+        assertNull(store.getByUid("u1"));
+        assertEquals(0, store.count("r1"));
+    }
+
+    @Test
+    public void leavingAnOldRoomKeepsThePointerToTheNewOne() {
+        store.add(member("u1", "r1", "a", 1000));
+        store.add(member("u1", "r2", "a", 2000));
+        store.remove("r1", "u1");
+
+        assertEquals("r2", store.getByUid("u1").getRid());
+    }
+
+    @Test
+    public void pagesFollowTheJoinOrder() {
+        store.add(member("u3", "r1", "c", 3000));
+        store.add(member("u1", "r1", "a", 1000));
+        store.add(member("u2", "r1", "b", 2000));
+
+        assertEquals(Arrays.asList("u1", "u2"), uids(store.page("r1", 0, 2)));
+        assertEquals(Collections.singletonList("u3"), uids(store.page("r1", 2, 2)));
+        assertTrue(store.page("r1", 3, 2).isEmpty());
+    }
+
+    @Test
+    public void lookupByUidsSkipsUsersOutOfAnyAudience() {
+        store.add(member("u1", "r1", "a", 1000));
+        store.add(member("u2", "r2", "b", 2000));
+        store.add(member("u3", "r3", "c", 3000));
+        //the pointer of u3 outlives its cleared room
+        store.clear("r3");
+
+        List<RoomMember> found = store.getByUids(Arrays.asList("u2", "nobody", "u1", "u3"));
+        assertEquals(Arrays.asList("u2", "u1"), uids(found));
+        assertEquals("r2", found.get(0).getRid());
+        assertEquals(0, store.count("r3"));
+    }
+}
@@ -0,0 +1,168 @@
+package cn.rongcloud.room;
+
+import cn.rongcloud.pojo.Room;
+import cn.rongcloud.pojo.RoomMember;
+import cn.rongcloud.pojo.RoomMemberChange;
+import cn.rongcloud.pojo.Whiteboard;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RoomCacheTest {
+    private RoomCache cache;
+
+    private static RoomMember member(String uid, long joinTime) {
+        RoomMember member = new RoomMember(uid, "r1");
+        member.setJoinDt(new Date(joinTime));
+        return member;
+    }
+
+    private static Whiteboard whiteboard(String wbid, String creator) {
+        Whiteboard wb = new Whiteboard();
+        wb.setRid("r1");
+        wb.setWbid(wbid);
+        wb.setCreator(creator);
+        return wb;
+    }
+
+    private static List<String> uids(List<RoomMember> members) {
+        List<String> result = new ArrayList<>();
+        for (RoomMember member : members) {
+            result.add(member.getUid());
+        }
+        return result;
+    }
+
+    @Before
+    public void setUp() {
+        Room room = new Room();
+        room.setRid("r1");
+        room.setName("room");
+        room.setVersion(5);
+        room.setMemberVersion(100);
+        cache = new RoomCache(room, Arrays.asList(member("u1", 1000), member("u2", 2000)),
+                Arrays.asList(whiteboard("w1", "u1"), whiteboard("w2", "u1"), whiteboard("w3", "u2")), 3);
+    }
+
+    @Test
+    public void deltaHasTheMembersChangedSinceAVersion() {
+        long since = cache.getMemberVersion();
+        MemberDelta none = cache.getMemberDelta(since);
+        assertTrue(none.getUpdated().isEmpty());
+        assertTrue(none.getRemoved().isEmpty());
+
+        cache.addMember(member("u3", 3000));
+        cache.updateRole("u1", 2);
+        cache.removeMember("u2");
+
+        MemberDelta delta = cache.getMemberDelta(since);
+        assertEquals(since + 3, delta.getMemberVersion());
+        assertEquals(Arrays.asList("u1", "u3"), uids(delta.getUpdated()));
+        assertEquals(2, delta.getUpdated().get(0).getRole());
+        assertEquals(Collections.singletonList("u2"), delta.getRemoved());
+
+        delta = cache.getMemberDelta(since + 2);
+        assertTrue(delta.getUpdated().isEmpty());
+        assertEquals(Collections.singletonList("u2"), delta.getRemoved());
+    }
+
+    @Test
+    public void deltaIsNullOnceTheChangesAreNoLongerLogged() {
+        long since = cache.getMemberVersion();
+        cache.addMember(member("u3", 3000));
+        cache.addMember(member("u4", 4000));
+        cache.addMember(member("u5", 5000));
+        assertNotNull(cache.getMemberDelta(since));
+
+        cache.addMember(member("u6", 6000));
+        assertNull(cache.getMemberDelta(since));
+        assertEquals(Arrays.asList("u6", "u5", "u4"), uids(cache.getMemberDelta(since + 1).getUpdated()));
+    }
+
+    @Test
+    public void memberVersionStartsFromTheRow() {
+        assertEquals(100, cache.getMemberVersion());
+        //a room loaded again has no changes in memory
+        assertNull(cache.getMemberDelta(99));
+    }
+
+    @Test
+    public void deltaFromTheLoggedChangesNeedsEveryVersion() {
+        cache.addMember(member("u3", 3000));
+        cache.removeMember("u1");
+        List<RoomMemberChange> logged = Arrays.asList(new RoomMemberChange("r1", 100, "u2"),
+                new RoomMemberChange("r1", 101, "u3"), new RoomMemberChange("r1", 102, "u1"));
+
+        MemberDelta delta = cache.getMemberDelta(99, logged);
+        assertEquals(102, delta.getMemberVersion());
+        assertEquals(Arrays.asList("u3", "u2"), uids(delta.getUpdated()));
+        assertEquals(Collections.singletonList("u1"), delta.getRemoved());
+
+        //a change not logged yet, or trimmed
+        assertNull(cache.getMemberDelta(99, logged.subList(0, 2)));
+        assertNull(cache.getMemberDelta(98, logged));
+        assertNull(cache.getMemberDelta(103, Collections.emptyList()));
+    }
+
+    @Test
+    public void deltaIsNullForAVersionNotHandedOut() {
+        assertNull(cache.getMemberDelta(cache.getMemberVersion() + 1));
+        assertNull(cache.getMemberDelta(cache.getMemberVersion() - 1));
+    }
+
+    @Test
+    public void pagesFollowTheCursorWhenMembersLeave() {
+        cache.addMember(member("u3", 3000));
+        cache.addMember(member("u0", 500));
+
+        List<RoomMember> page = cache.getMembersPage(null, 2);
+        assertEquals(Arrays.asList("u0", "u1"), uids(page));
+        String cursor = RoomCache.cursorOf(page.get(1));
+
+        cache.removeMember("u1");
+        page = cache.getMembersPage(cursor, 2);
+        assertEquals(Arrays.asList("u2", "u3"), uids(page));
+        assertTrue(cache.getMembersPage(RoomCache.cursorOf(page.get(1)), 2).isEmpty());
+    }
+
+    @Test
+    public void membersJoinedTogetherAreOrderedByUserId() {
+        cache.addMember(member("b", 2000));
+        cache.addMember(member("a", 2000));
+
+        List<RoomMember> page = cache.getMembersPage(RoomCache.cursorOf(member("u1", 1000)), 2);
+        assertEquals(Arrays.asList("a", "b"), uids(page));
+        assertEquals(Collections.singletonList("u2"), uids(cache.getMembersPage(RoomCache.cursorOf(page.get(1)), 10)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cursorWithoutTimeIsInvalid() {
+        cache.getMembersPage(":u1", 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cursorWithABadTimeIsInvalid() {
+        cache.getMembersPage("x:u1", 2);
+    }
+
+    @Test
+    public void removingTheWhiteboardsOfACreatorBumpsTheVersionOnce() {
+        long version = cache.getVersion();
+        assertEquals(2, cache.removeWhiteboardsByCreator("u1").size());
+        assertEquals(version + 1, cache.getVersion());
+        assertEquals(1, cache.getWhiteboards().size());
+
+        assertTrue(cache.removeWhiteboardsByCreator("u1").isEmpty());
+        assertEquals(version + 1, cache.getVersion());
+    }
+}
@@ -0,0 +1,226 @@
+package cn.rongcloud.room;
+
+import cn.rongcloud.config.RoomProperties;
+import cn.rongcloud.common.ApiException;
+import cn.rongcloud.common.ErrorEnum;
+import cn.rongcloud.dao.RoomDao;
+import cn.rongcloud.dao.RoomMemberChangeDao;
+import cn.rongcloud.dao.RoomMemberDao;
+import cn.rongcloud.dao.UserDao;
+import cn.rongcloud.dao.WhiteboardDao;
+import cn.rongcloud.pojo.Room;
+import cn.rongcloud.pojo.RoomMember;
+import cn.rongcloud.pojo.RoomMemberChange;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RoomRegistryTest {
+    private RoomDao roomDao;
+    private RoomMemberDao roomMemberDao;
+    private RoomMemberChangeDao roomMemberChangeDao;
+    private RoomProperties roomProperties;
+    private RoomRegistry registry;
+    private final AtomicBoolean deleted = new AtomicBoolean();
+
+    @Before
+    public void setUp() {
+        roomDao = mock(RoomDao.class);
+        roomMemberDao = mock(RoomMemberDao.class);
+        roomMemberChangeDao = mock(RoomMemberChangeDao.class);
+        WhiteboardDao whiteboardDao = mock(WhiteboardDao.class);
+        when(roomDao.findByRid("r1")).thenAnswer(invocation -> deleted.get() ? new ArrayList<>() : Collections.singletonList(room()));
+        doAnswer(invocation -> {
+            deleted.set(true);
+            return null;
+        }).when(roomDao).deleteByRid("r1");
+        when(roomDao.incrementMemberVersionByRidAndMemberVersion(eq("r1"), anyLong())).thenReturn(1);
+        when(roomMemberDao.findByRid("r1")).thenReturn(new ArrayList<>());
+        when(whiteboardDao.findByRid("r1")).thenReturn(new ArrayList<>());
+
+        roomProperties = new RoomProperties();
+        roomProperties.setCacheEnabled(true);
+        roomProperties.setPersistThreads(1);
+        registry = new RoomRegistry(roomProperties, roomDao, roomMemberDao, roomMemberChangeDao, whiteboardDao, mock(UserDao.class),
+                mock(AudienceStore.class), new SimpleMeterRegistry());
+        registry.init();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        registry.destroy();
+    }
+
+    private static Room room() {
+        Room room = new Room();
+        room.setRid("r1");
+        room.setName("room");
+        room.setDisplay("");
+        room.setMemberVersion(100);
+        return room;
+    }
+
+    //holds the next load of r1 until released
+    private CountDownLatch blockLoad(CountDownLatch loading) {
+        CountDownLatch release = new CountDownLatch(1);
+        when(roomDao.findByRid("r1")).thenAnswer(invocation -> {
+            loading.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return deleted.get() ? new ArrayList<>() : Collections.singletonList(room());
+        });
+        return release;
+    }
+
+    @Test
+    public void roomRemovedWhileLoadingIsNotKept() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = blockLoad(loading);
+        CompletableFuture<RoomCache> read = CompletableFuture.supplyAsync(() -> registry.getRoom("r1"));
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+
+        //the delete is queued behind the load, the eviction happens at once
+        registry.removeRoom("r1");
+        release.countDown();
+
+        //the room loaded before the delete is dropped and read again
+        assertNull(read.get(5, TimeUnit.SECONDS));
+        verify(roomDao, times(2)).findByRid("r1");
+        assertTrue(deleted.get());
+        assertNull(registry.getRoom("r1"));
+        assertFalse(registry.existsRoom("r1"));
+    }
+
+    @Test
+    public void concurrentReadsKeepOneCopy() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = blockLoad(loading);
+        CompletableFuture<RoomCache> first = CompletableFuture.supplyAsync(() -> registry.getRoom("r1"));
+        CompletableFuture<RoomCache> second = CompletableFuture.supplyAsync(() -> registry.getRoom("r1"));
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+        release.countDown();
+
+        RoomCache room = first.get(5, TimeUnit.SECONDS);
+        assertNotNull(room);
+        assertSame(room, second.get(5, TimeUnit.SECONDS));
+        assertSame(room, registry.getRoom("r1"));
+    }
+
+    @Test
+    public void failedWriteDropsTheRoomUntilTheNextRead() throws Exception {
+        RoomCache room = registry.getRoom("r1");
+        when(roomMemberDao.save(any(RoomMember.class))).thenThrow(new IllegalStateException("db down"));
+        assertTrue(registry.addMember(room, new RoomMember("u1", "r1")));
+        assertNotNull(room.getMember("u1"));
+
+        //loaded again after the failed write, without the member it did not persist
+        verify(roomMemberDao, timeout(2000)).save(any(RoomMember.class));
+        RoomCache reloaded = null;
+        for (int i = 0; i < 100 && (reloaded == null || reloaded == room); i++) {
+            Thread.sleep(10);
+            reloaded = registry.getRoom("r1");
+        }
+        assertNotNull(reloaded);
+        assertNotSame(room, reloaded);
+        assertNull(reloaded.getMember("u1"));
+        assertNull(registry.getMember("r1", "u1"));
+        verify(roomDao, times(2)).findByRid("r1");
+        assertEquals(0, reloaded.getMemberCount());
+    }
+
+    @Test
+    public void memberChangeMovesTheSharedVersionOnAndIsLogged() {
+        roomProperties.setCacheEnabled(false);
+        RoomCache room = registry.getRoom("r1");
+        assertTrue(registry.addMember(room, new RoomMember("u1", "r1")));
+
+        assertEquals(101, room.getMemberVersion());
+        verify(roomDao).incrementMemberVersionByRidAndMemberVersion("r1", 100);
+        verify(roomMemberDao).save(any(RoomMember.class));
+        verify(roomMemberChangeDao).save(any(RoomMemberChange.class));
+    }
+
+    @Test
+    public void memberChangedOnAnotherNodeConflicts() {
+        roomProperties.setCacheEnabled(false);
+        RoomCache room = registry.getRoom("r1");
+        when(roomDao.incrementMemberVersionByRidAndMemberVersion("r1", 100)).thenReturn(0);
+        try {
+            registry.addMember(room, new RoomMember("u1", "r1"));
+            fail();
+        } catch (ApiException e) {
+            assertEquals(ErrorEnum.ERR_UPDATE_CONFLICT, e.getError());
+        }
+        verify(roomMemberDao, times(0)).save(any(RoomMember.class));
+    }
+
+    @Test
+    public void deltaNotInMemoryIsReadFromTheLog() {
+        roomProperties.setCacheEnabled(false);
+        RoomCache room = registry.getRoom("r1");
+        when(roomMemberChangeDao.findByRidAndMemberVersionBetween("r1", 98, 100)).thenReturn(Arrays.asList(
+                new RoomMemberChange("r1", 99, "u1"), new RoomMemberChange("r1", 100, "u2")));
+
+        MemberDelta delta = registry.getMemberDelta(room, 98);
+        assertEquals(100, delta.getMemberVersion());
+        assertEquals(Arrays.asList("u2", "u1"), delta.getRemoved());
+        assertNull(registry.getMemberDelta(room, 97));
+        assertTrue(registry.getMemberDelta(room, 100).getRemoved().isEmpty());
+    }
+
+    @Test
+    public void copiesReadWithoutTheCacheShareTheSnapshot() {
+        roomProperties.setCacheEnabled(false);
+        RoomCache room = registry.getRoom("r1");
+        RoomSnapshot snapshot = registry.getSnapshot(room);
+        assertSame(snapshot, registry.getSnapshot(registry.getRoom("r1")));
+
+        registry.addMember(room, new RoomMember("u1", "r1"));
+        RoomSnapshot changed = registry.getSnapshot(room);
+        assertNotSame(snapshot, changed);
+        assertEquals(101, changed.getMemberVersion());
+
+        registry.removeRoom("r1");
+        assertNotSame(changed, registry.getSnapshot(room));
+    }
+
+    @Test
+    public void roomReadBeforeIsTheCopyWithoutTheCache() {
+        RoomCache room = registry.getRoom("r1");
+        registry.removeRoom("r1");
+        assertNull(registry.getRoom(room));
+
+        roomProperties.setCacheEnabled(false);
+        deleted.set(false);
+        RoomCache read = registry.getRoom("r1");
+        assertSame(read, registry.getRoom(read));
+        //the load, the read again after the remove, the copy
+        verify(roomDao, times(3)).findByRid("r1");
+    }
+}
@@ -0,0 +1,86 @@
+package cn.rongcloud.room;
+
+import cn.rongcloud.common.BaseResponse;
+import cn.rongcloud.pojo.RoomMember;
+import cn.rongcloud.pojo.RoomResult;
+import cn.rongcloud.pojo.Whiteboard;
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import com.alibaba.fastjson.serializer.SerializerFeature;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class RoomSnapshotTest {
+    private static RoomMember member(String uid, String name, int role) {
+        RoomMember member = new RoomMember(uid, "r1");
+        member.setName(name);
+        member.setRole(role);
+        member.setJoinDt(new Date(1550000000000L));
+        member.setMic(false);
+        member.setVersion(3);
+        return member;
+    }
+
+    private static Whiteboard whiteboard(String wbid, String name) {
+        Whiteboard wb = new Whiteboard();
+        wb.setRid("r1");
+        wb.setWbid(wbid);
+        wb.setName(name);
+        wb.setCurPg(2);
+        return wb;
+    }
+
+    //the response as it was written before the snapshot, by the message converter
+    private static JSONObject previous(String display, List<RoomMember> members, List<Whiteboard> whiteboards, long version, long memberVersion) {
+        RoomResult result = result();
+        result.setDisplay(display);
+        result.setMembers(members);
+        result.setWhiteboards(whiteboards);
+        result.setVersion(version);
+        result.setMemberVersion(memberVersion);
+        return JSON.parseObject(JSON.toJSONString(new BaseResponse<>(result), SerializerFeature.WriteMapNullValue));
+    }
+
+    private static RoomResult result() {
+        RoomResult result = new RoomResult();
+        result.setRoomId("r1");
+        result.setStartTime(new Date(1550000000000L));
+        result.setImToken("token");
+        result.setAuthorization(null);
+        result.setAudienceCount(7);
+        result.setUserInfo(RoomResult.toMemberResult(member("u1", "老师", 1)));
+        return result;
+    }
+
+    private static void assertSameAsBefore(String display, List<RoomMember> members, List<Whiteboard> whiteboards) {
+        RoomResult result = result();
+        result.setSnapshot(RoomSnapshot.encode(9, 12, display, members, whiteboards));
+        JSONObject spliced = JSON.parseObject(result.toJson().toString());
+        assertEquals(previous(display, members, whiteboards, 9, 12), spliced);
+    }
+
+    @Test
+    public void splicedResponseIsTheOneSerializedBefore() {
+        assertSameAsBefore("display://type=1?userId=u1",
+                Arrays.asList(member("u1", "老师", 1), member("u2", "学生 😀", 4)),
+                Arrays.asList(whiteboard("w1", "白板一"), whiteboard("w2", "\"quoted\"")));
+    }
+
+    @Test
+    public void nullDisplayIsWritten() {
+        assertSameAsBefore(null, Arrays.asList(member("u1", null, 1)), new ArrayList<>());
+    }
+
+    @Test
+    public void emptySnapshotWritesAnEmptyRoom() {
+        RoomResult result = result();
+        JSONObject spliced = JSON.parseObject(result.toJson().toString());
+        assertEquals(previous(null, new ArrayList<>(), new ArrayList<>(), 0, 0), spliced);
+    }
+}
@@ -0,0 +1,117 @@
+package cn.rongcloud.room;
+
+import cn.rongcloud.common.ApiException;
+import cn.rongcloud.common.ErrorEnum;
+import cn.rongcloud.config.RoomProperties;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RoomTransactionTest {
+    private RoomRegistry roomRegistry;
+    private PlatformTransactionManager transactionManager;
+    private RoomTransaction transaction;
+    private final AtomicInteger attempts = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        roomRegistry = mock(RoomRegistry.class);
+        transactionManager = mock(PlatformTransactionManager.class);
+        when(transactionManager.getTransaction(any())).thenAnswer(invocation -> new SimpleTransactionStatus());
+        RoomProperties roomProperties = new RoomProperties();
+        roomProperties.setVersionRetries(2);
+        transaction = new RoomTransaction(roomRegistry, roomProperties, new TransactionTemplate(transactionManager));
+    }
+
+    //fails with a conflict the given number of times, then returns the attempt
+    private Integer conflicts(int times) throws ApiException {
+        int attempt = attempts.incrementAndGet();
+        if (attempt <= times) {
+            throw new ApiException(ErrorEnum.ERR_UPDATE_CONFLICT);
+        }
+        return attempt;
+    }
+
+    private static void assertError(ErrorEnum error, ApiException e) {
+        assertEquals(error, e.getError());
+    }
+
+    @Test
+    public void conflictRunsTheTaskAgainInANewTransaction() throws Exception {
+        assertEquals(Integer.valueOf(3), transaction.versioned(() -> conflicts(2)));
+
+        verify(transactionManager, times(3)).getTransaction(any());
+        verify(transactionManager, times(2)).rollback(any());
+        verify(transactionManager, times(1)).commit(any());
+    }
+
+    @Test
+    public void givesUpAfterTheRetries() throws Exception {
+        try {
+            transaction.versioned(() -> conflicts(3));
+            fail();
+        } catch (ApiException e) {
+            assertError(ErrorEnum.ERR_UPDATE_CONFLICT, e);
+        }
+        assertEquals(3, attempts.get());
+        verify(transactionManager, times(3)).rollback(any());
+        verify(transactionManager, never()).commit(any());
+    }
+
+    @Test
+    public void otherErrorsAreNotRetried() throws Exception {
+        try {
+            transaction.versioned(() -> {
+                attempts.incrementAndGet();
+                throw new ApiException(ErrorEnum.ERR_ROOM_NOT_EXIST);
+            });
+            fail();
+        } catch (ApiException e) {
+            assertError(ErrorEnum.ERR_ROOM_NOT_EXIST, e);
+        }
+        assertEquals(1, attempts.get());
+        verify(transactionManager).rollback(any());
+    }
+
+    @Test
+    public void checkedExceptionIsThrownAsIs() throws Exception {
+        IOException error = new IOException("io");
+        try {
+            transaction.versioned(() -> {
+                throw error;
+            });
+            fail();
+        } catch (IOException e) {
+            assertSame(error, e);
+        }
+        verify(transactionManager).rollback(any());
+    }
+
+    @Test
+    public void withTheCacheTheTaskRunsOnceWithoutATransaction() throws Exception {
+        when(roomRegistry.isCacheEnabled()).thenReturn(true);
+        try {
+            transaction.versioned(() -> conflicts(1));
+            fail();
+        } catch (ApiException e) {
+            assertError(ErrorEnum.ERR_UPDATE_CONFLICT, e);
+        }
+        assertEquals(1, attempts.get());
+        verify(transactionManager, never()).getTransaction(any());
+    }
+}
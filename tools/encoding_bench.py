@@ -0,0 +1,98 @@
+#!/usr/bin/env python3
+# Response size and time per encoding against a running server: fills a room, then requests the
+# room reads and a join with each Accept header and prints bytes, gzipped bytes and latency.
+# application/json is indented unless cn.rongcloud.web.prettyJson=false,
+# application/vnd.sealclass.compact+json is always compact. Users join as audience, with
+# cn.rongcloud.room.largeAudience=false they are all in the member list. Each measured join leaves
+# again, so every request sees the room at --members.
+#
+#   python3 tools/encoding_bench.py --url http://127.0.0.1:9999/api/v1 --members 200 --requests 500
+
+import argparse
+import gzip
+import itertools
+import json
+import time
+import urllib.request
+import uuid
+
+FORMATS = [("pretty", "application/json"), ("compact", "application/vnd.sealclass.compact+json")]
+
+
+def call(url, accept, body=None, authorization=None):
+    headers = {"Accept": accept, "Content-Type": "application/json"}
+    if authorization:
+        headers["Authorization"] = authorization
+    request = urllib.request.Request(url, data=body, headers=headers, method="POST" if body else "GET")
+    start = time.monotonic()
+    with urllib.request.urlopen(request) as response:
+        payload = response.read()
+    latency = time.monotonic() - start
+    result = json.loads(payload)
+    if result["errCode"] != 0:
+        raise RuntimeError("%s: %s" % (url, result["errMsg"]))
+    return payload, latency
+
+
+def join(base, room_id, user_name, accept="application/json"):
+    body = json.dumps({"roomId": room_id, "userName": user_name, "audience": True, "disableCamera": True}).encode()
+    return call(base + "/room/join", accept, body)
+
+
+def join_and_leave(base, room_id, user_name, accept):
+    payload, latency = join(base, room_id, user_name, accept)
+    authorization = json.loads(payload)["data"]["result"]["authorization"]
+    call(base + "/room/leave", accept, json.dumps({"roomId": room_id}).encode(), authorization)
+    return payload, latency
+
+
+def measure(name, accept, requests, send):
+    sizes, latencies = [], []
+    #untimed, so the format measured first does not pay for the warm-up
+    for _ in range(requests // 10):
+        send(accept)
+    for _ in range(requests):
+        payload, latency = send(accept)
+        sizes.append(len(payload))
+        latencies.append(latency)
+    latencies.sort()
+    p50 = latencies[len(latencies) // 2] * 1000
+    p99 = latencies[min(len(latencies) - 1, int(len(latencies) * 0.99))] * 1000
+    zipped = len(gzip.compress(payload))
+    print("  %-8s bytes=%-8d gzip=%-8d p50=%.2fms p99=%.2fms" % (name, sizes[-1], zipped, p50, p99))
+
+
+def main(args):
+    base = args.url.rstrip("/")
+    room_id = "bench-%s" % uuid.uuid4().hex[:6]
+    authorization = None
+    for i in range(args.members):
+        payload, _ = join(base, room_id, "u%d" % i)
+        authorization = json.loads(payload)["data"]["result"]["authorization"]
+
+    reads = [
+        ("GET /room/members", "/room/members?roomId=%s" % room_id),
+        ("GET /room/members?count", "/room/members?roomId=%s&count=%d" % (room_id, min(args.members, args.page))),
+        ("GET /room/whiteboard/list", "/room/whiteboard/list?roomId=%s" % room_id),
+    ]
+    print("room=%s members=%d requests=%d" % (room_id, args.members, args.requests))
+    for title, path in reads:
+        print(title)
+        for name, accept in FORMATS:
+            measure(name, accept, args.requests,
+                    lambda a, p=path: call(base + p, a, authorization=authorization))
+
+    print("POST /room/join")
+    for name, accept in FORMATS:
+        counter = itertools.count()
+        measure(name, accept, args.requests,
+                lambda a, n=name: join_and_leave(base, room_id, "%s-%d" % (n, next(counter)), a))
+
+
+if __name__ == "__main__":
+    parser = argparse.ArgumentParser(description="response size and time per encoding")
+    parser.add_argument("--url", default="http://127.0.0.1:9999/api/v1")
+    parser.add_argument("--members", type=int, default=100)
+    parser.add_argument("--requests", type=int, default=200)
+    parser.add_argument("--page", type=int, default=200, help="cn.rongcloud.room.memberPageSize")
+    main(parser.parse_args())
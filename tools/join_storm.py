@@ -0,0 +1,74 @@
+#!/usr/bin/env python3
+# Join storm against a running server: fires concurrent /room/join requests and prints
+# throughput and latency percentiles. Run once with cn.rongcloud.web.virtualThreads=false
+# and once with true (JDK 21+) against the same IM/whiteboard endpoints, then compare.
+#
+#   python3 tools/join_storm.py --url http://127.0.0.1:9999/api/v1 --joins 20000 --concurrency 5000
+
+import argparse
+import asyncio
+import json
+import time
+import uuid
+from urllib.parse import urlparse
+
+
+async def join(host, port, path, body, timeout):
+    reader, writer = await asyncio.wait_for(asyncio.open_connection(host, port), timeout)
+    try:
+        request = ("POST %s HTTP/1.1\r\nHost: %s:%d\r\nContent-Type: application/json\r\n"
+                   "Content-Length: %d\r\nConnection: close\r\n\r\n" % (path, host, port, len(body))).encode() + body
+        writer.write(request)
+        await writer.drain()
+        response = await asyncio.wait_for(reader.read(), timeout)
+        status = int(response.split(b" ", 2)[1])
+        payload = response.split(b"\r\n\r\n", 1)[1]
+        return status == 200 and b'"errCode":0' in payload
+    finally:
+        writer.close()
+
+
+async def storm(args):
+    url = urlparse(args.url)
+    path = url.path.rstrip("/") + "/room/join"
+    run = uuid.uuid4().hex[:6]
+    semaphore = asyncio.Semaphore(args.concurrency)
+    latencies, failures = [], [0]
+
+    async def one(i):
+        body = json.dumps({"roomId": "storm-%s-%d" % (run, i % args.rooms),
+                           "userName": "u%d" % i, "audience": True}).encode()
+        async with semaphore:
+            start = time.monotonic()
+            try:
+                ok = await join(url.hostname, url.port or 80, path, body, args.timeout)
+            except Exception:
+                ok = False
+            if ok:
+                latencies.append(time.monotonic() - start)
+            else:
+                failures[0] += 1
+
+    start = time.monotonic()
+    await asyncio.gather(*(one(i) for i in range(args.joins)))
+    elapsed = time.monotonic() - start
+
+    latencies.sort()
+
+    def percentile(p):
+        return latencies[min(len(latencies) - 1, int(len(latencies) * p))] * 1000 if latencies else 0
+
+    print("joins=%d concurrency=%d rooms=%d elapsed=%.1fs" % (args.joins, args.concurrency, args.rooms, elapsed))
+    print("ok=%d failed=%d throughput=%.0f/s" % (len(latencies), failures[0], len(latencies) / elapsed))
+    print("latency ms: p50=%.0f p90=%.0f p99=%.0f max=%.0f"
+          % (percentile(0.5), percentile(0.9), percentile(0.99), percentile(1.0)))
+
+
+if __name__ == "__main__":
+    parser = argparse.ArgumentParser(description="concurrent /room/join benchmark")
+    parser.add_argument("--url", default="http://127.0.0.1:9999/api/v1")
+    parser.add_argument("--joins", type=int, default=10000)
+    parser.add_argument("--concurrency", type=int, default=2000)
+    parser.add_argument("--rooms", type=int, default=100)
+    parser.add_argument("--timeout", type=float, default=30)
+    asyncio.run(storm(parser.parse_args()))
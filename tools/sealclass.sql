@@ -43,8 +43,11 @@ CREATE TABLE IF NOT EXISTS `sealclass`.`t_room` (
   `create_dt` DATETIME NULL,
   `display` VARCHAR(1024) NULL COMMENT 'the current display: teacher, assistant, whiteboard, screen',
   `whiteboard_name_index` INT NULL,
+  `version` BIGINT NOT NULL DEFAULT 0 COMMENT 'bumped by every update, for compare-and-set',
+  `member_version` BIGINT NOT NULL DEFAULT 0 COMMENT 'bumped by every member change, for compare-and-set',
   PRIMARY KEY (`id`),
-  UNIQUE INDEX `group_idx` (`rid` ASC))
+  UNIQUE INDEX `group_idx` (`rid` ASC),
+  INDEX `create_dt_idx` (`create_dt` ASC))
 ENGINE = InnoDB;
 
 
@@ -60,6 +63,7 @@ CREATE TABLE IF NOT EXISTS `sealclass`.`t_room_member` (
   `name` VARCHAR(64) CHARACTER SET 'utf8' NULL,
   `camera` TINYINT NULL DEFAULT 1,
   `mic` TINYINT NULL DEFAULT 1,
+  `version` BIGINT NOT NULL DEFAULT 0 COMMENT 'bumped by every update, for compare-and-set',
   UNIQUE INDEX `user_group_idx` (`rid` ASC, `uid` ASC),
   PRIMARY KEY (`id`))
 ENGINE = InnoDB;
@@ -82,6 +86,19 @@ CREATE TABLE IF NOT EXISTS `sealclass`.`t_whiteboard` (
 ENGINE = InnoDB;
 
 
+-- -----------------------------------------------------
+-- Table `sealclass`.`t_room_member_change`
+-- -----------------------------------------------------
+CREATE TABLE IF NOT EXISTS `sealclass`.`t_room_member_change` (
+  `id` INT NOT NULL AUTO_INCREMENT,
+  `rid` VARCHAR(64) CHARACTER SET 'utf8' COLLATE 'utf8_bin' NOT NULL COMMENT 'room id',
+  `member_version` BIGINT NOT NULL COMMENT 'member version of the room after the change',
+  `uid` VARCHAR(64) NOT NULL COMMENT 'user id of the member changed',
+  PRIMARY KEY (`id`),
+  UNIQUE INDEX `member_version_idx` (`rid` ASC, `member_version` ASC))
+ENGINE = InnoDB;
+
+
 SET SQL_MODE=@OLD_SQL_MODE;
 SET FOREIGN_KEY_CHECKS=@OLD_FOREIGN_KEY_CHECKS;
 SET UNIQUE_CHECKS=@OLD_UNIQUE_CHECKS;
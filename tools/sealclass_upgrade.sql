@@ -0,0 +1,24 @@
+-- Upgrades tables created by an earlier sealclass.sql, run once before starting the new version.
+-- Room and member updates compare-and-set on version, existing rows start at 0.
+-- Member changes compare-and-set on member_version and are logged in t_room_member_change.
+
+USE `sealclass` ;
+
+ALTER TABLE `sealclass`.`t_room`
+  ADD COLUMN `version` BIGINT NOT NULL DEFAULT 0 COMMENT 'bumped by every update, for compare-and-set' AFTER `whiteboard_name_index`,
+  ADD INDEX `create_dt_idx` (`create_dt` ASC);
+
+ALTER TABLE `sealclass`.`t_room_member`
+  ADD COLUMN `version` BIGINT NOT NULL DEFAULT 0 COMMENT 'bumped by every update, for compare-and-set' AFTER `mic`;
+
+ALTER TABLE `sealclass`.`t_room`
+  ADD COLUMN `member_version` BIGINT NOT NULL DEFAULT 0 COMMENT 'bumped by every member change, for compare-and-set' AFTER `version`;
+
+CREATE TABLE IF NOT EXISTS `sealclass`.`t_room_member_change` (
+  `id` INT NOT NULL AUTO_INCREMENT,
+  `rid` VARCHAR(64) CHARACTER SET 'utf8' COLLATE 'utf8_bin' NOT NULL COMMENT 'room id',
+  `member_version` BIGINT NOT NULL COMMENT 'member version of the room after the change',
+  `uid` VARCHAR(64) NOT NULL COMMENT 'user id of the member changed',
+  PRIMARY KEY (`id`),
+  UNIQUE INDEX `member_version_idx` (`rid` ASC, `member_version` ASC))
+ENGINE = InnoDB;